@@ -0,0 +1,312 @@
+package org.icinga.plugin.oracle.bench;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.icinga.plugin.oracle.CheckAdapter;
+import org.icinga.plugin.oracle.CheckClusterSessions;
+import org.icinga.plugin.oracle.CheckDatabaseSessions;
+import org.icinga.plugin.oracle.CheckOracle;
+import org.icinga.plugin.oracle.CheckResult;
+import org.icinga.plugin.oracle.CheckSessionBreakdown;
+import org.icinga.plugin.oracle.CheckTablespace;
+import org.icinga.plugin.oracle.CheckTablespaces;
+import org.icinga.plugin.oracle.CheckUserSessions;
+import org.icinga.plugin.oracle.Deadline;
+import org.icinga.plugin.oracle.NagiosStatus;
+import org.icinga.plugin.oracle.TablespaceCheckOptions;
+import org.icinga.plugin.oracle.TablespaceStrategy;
+import org.icinga.plugin.oracle.Thresholds;
+import org.icinga.plugin.oracle.sim.SimulatedDriver;
+import org.icinga.plugin.oracle.sim.SimulatorConfig;
+
+/**
+ * Load test of the checks: a number of threads run a mix of checks back to back for a while, each over its own warm
+ * connection like the daemon does, and the throughput and latency percentiles are reported per check and overall.
+ * Runs against the simulator by default, or against a real database with <code>--url</code>, from the jar of
+ * <code>mvn -Pbench package</code>:
+ *
+ * <pre>
+ * java -cp target/check_oracle-bench.jar org.icinga.plugin.oracle.bench.LoadHarness \
+ *     --simulator "tablespaces=10000;sessions=100000;latency=2" --threads 16 --duration 30
+ * </pre>
+ *
+ * @author David Webb
+ */
+public class LoadHarness {
+
+	private static final String[] CHECKS = { "tablespaces", "tablespace", "sessions", "user-sessions", "breakdown",
+			"rac" };
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+	private static final TablespaceCheckOptions TABLESPACE_OPTIONS = new TablespaceCheckOptions(
+			TablespaceStrategy.FREE_SPACE, Thresholds.parse("85", "95"));
+
+	@SuppressWarnings("static-access")
+	public static void main(String args[]) throws Exception {
+		Options options = new Options();
+		options.addOption(OptionBuilder.withDescription("Simulator settings, see SimulatorConfig, e.g. "
+				+ "\"tablespaces=10000;sessions=100000;latency=2\"").withLongOpt("simulator").withArgName("settings")
+				.hasArg().create());
+		options.addOption(OptionBuilder.withDescription("JDBC URL of a real database instead of the simulator")
+				.withLongOpt("url").hasArg().create());
+		options.addOption(OptionBuilder.withLongOpt("user").hasArg().create("u"));
+		options.addOption(OptionBuilder.withLongOpt("password").hasArg().create("p"));
+		options.addOption(OptionBuilder.withDescription("Comma separated checks to mix, defaults to all of "
+				+ Arrays.toString(CHECKS)).withLongOpt("checks").hasArg().create());
+		options.addOption(OptionBuilder.withDescription("Concurrent checks, defaults to 8").withLongOpt("threads")
+				.withType(Number.class).hasArg().create("T"));
+		options.addOption(OptionBuilder.withDescription("Measured seconds, defaults to 10").withLongOpt("duration")
+				.withType(Number.class).hasArg().create());
+		options.addOption(OptionBuilder.withDescription("Seconds run before measuring, defaults to 2")
+				.withLongOpt("warmup").withType(Number.class).hasArg().create());
+		options.addOption(OptionBuilder.withDescription("Log on for every check instead of reusing the connection")
+				.withLongOpt("connect-per-check").create());
+
+		CommandLine commandLine;
+		try {
+			commandLine = new BasicParser().parse(options, args);
+		} catch (ParseException e) {
+			System.out.println(e.getMessage());
+			new HelpFormatter().printHelp("LoadHarness", options, true);
+			return;
+		}
+
+		String url = commandLine.hasOption("url") ? commandLine.getOptionValue("url") : SimulatorConfig.URL_PREFIX
+				+ (commandLine.hasOption("simulator") ? commandLine.getOptionValue("simulator") : "");
+		if (url.startsWith(SimulatorConfig.URL_PREFIX)) {
+			SimulatedDriver.register();
+			long start = System.nanoTime();
+			SimulatorConfig config = SimulatedDriver.catalog(url).getConfig();
+			System.out.println(String.format(Locale.ROOT,
+					"simulator: %d tablespaces, %d sessions, %d users, %d instances, %.1f ms per round-trip, "
+							+ "generated in %d ms", config.getTablespaces(), config.getSessions(), config.getUsers(),
+					config.getInstances(), config.getLatencyMillis(), (System.nanoTime() - start) / 1000000L));
+		} else {
+			Class.forName("oracle.jdbc.driver.OracleDriver");
+		}
+		Properties properties = new Properties();
+		properties.setProperty("user", commandLine.hasOption('u') ? commandLine.getOptionValue('u') : "monitor");
+		properties.setProperty("password", commandLine.hasOption('p') ? commandLine.getOptionValue('p') : "");
+
+		List<String> checks = Arrays.asList(commandLine.hasOption("checks") ? commandLine.getOptionValue("checks")
+				.split(",") : CHECKS);
+		for (String check : checks) {
+			if (!Arrays.asList(CHECKS).contains(check)) {
+				System.out.println("Unknown check " + check + ", use " + Arrays.toString(CHECKS));
+				return;
+			}
+		}
+		int threads = intOption(commandLine, "T", 8);
+		int duration = intOption(commandLine, "duration", 10);
+		int warmup = intOption(commandLine, "warmup", 2);
+
+		Worker[] workers = new Worker[threads];
+		CountDownLatch done = new CountDownLatch(threads);
+		AtomicBoolean measuring = new AtomicBoolean();
+		AtomicBoolean running = new AtomicBoolean(true);
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker(url, properties, checks, i, commandLine.hasOption("connect-per-check"), measuring,
+					running, done);
+			workers[i].start();
+		}
+		Thread.sleep(warmup * 1000L);
+		long coalesced = CheckAdapter.getCoalescedQueries();
+		measuring.set(true);
+		long start = System.nanoTime();
+		Thread.sleep(duration * 1000L);
+		measuring.set(false);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		coalesced = CheckAdapter.getCoalescedQueries() - coalesced;
+		running.set(false);
+		done.await();
+
+		System.out.println(String.format("%-14s %9s %9s %9s %9s %9s %9s %9s", "check", "count", "per s", "p50 ms",
+				"p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+		Samples all = new Samples();
+		int[] statuses = new int[NagiosStatus.values().length];
+		for (int c = 0; c < checks.size(); c++) {
+			Samples samples = new Samples();
+			for (Worker worker : workers) {
+				samples.addAll(worker.samples[c]);
+				for (int s = 0; s < statuses.length; s++) {
+					statuses[s] += worker.statuses[c][s];
+				}
+			}
+			all.addAll(samples);
+			print(checks.get(c), samples, seconds);
+		}
+		print("all", all, seconds);
+
+		StringBuilder summary = new StringBuilder();
+		for (NagiosStatus status : NagiosStatus.values()) {
+			summary.append(status).append(' ').append(statuses[status.ordinal()]).append("  ");
+		}
+		System.out.println(summary.append("coalesced ").append(coalesced).toString().trim());
+		for (Worker worker : workers) {
+			if (worker.failure != null) {
+				System.out.println("worker failed: " + worker.failure);
+			}
+		}
+	}
+
+	private static void print(String name, Samples samples, double seconds) {
+		long[] sorted = samples.sorted();
+		StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%-14s %9d %9.1f", name, sorted.length,
+				sorted.length / seconds));
+		for (double percentile : PERCENTILES) {
+			line.append(String.format(Locale.ROOT, " %9.2f", percentile(sorted, percentile) / 1e6));
+		}
+		line.append(String.format(Locale.ROOT, " %9.2f", sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6));
+		System.out.println(line);
+	}
+
+	/**
+	 * Nearest rank percentile
+	 */
+	static long percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+	}
+
+	private static int intOption(CommandLine commandLine, String option, int defaultValue) throws ParseException {
+		return commandLine.hasOption(option) ? ((Number) commandLine.getParsedOptionValue(option)).intValue()
+				: defaultValue;
+	}
+
+	/**
+	 * Runs the checks in turn, starting at a different check per thread so the mix is even
+	 */
+	private static final class Worker extends Thread {
+
+		private final String url;
+		private final Properties properties;
+		private final List<String> checks;
+		private final int offset;
+		private final boolean connectPerCheck;
+		private final AtomicBoolean measuring;
+		private final AtomicBoolean running;
+		private final CountDownLatch done;
+		private final Samples[] samples;
+		private final int[][] statuses;
+		private volatile Exception failure;
+
+		Worker(String url, Properties properties, List<String> checks, int offset, boolean connectPerCheck,
+				AtomicBoolean measuring, AtomicBoolean running, CountDownLatch done) {
+			super("load-" + offset);
+			this.url = url;
+			this.properties = properties;
+			this.checks = checks;
+			this.offset = offset;
+			this.connectPerCheck = connectPerCheck;
+			this.measuring = measuring;
+			this.running = running;
+			this.done = done;
+			this.samples = new Samples[checks.size()];
+			this.statuses = new int[checks.size()][NagiosStatus.values().length];
+			for (int i = 0; i < samples.length; i++) {
+				samples[i] = new Samples();
+			}
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			Connection connection = null;
+			try {
+				for (int i = offset; running.get(); i++) {
+					int check = i % checks.size();
+					long start = System.nanoTime();
+					if (connection == null) {
+						connection = DriverManager.getConnection(url, properties);
+					}
+					CheckResult result = run(connection, checks.get(check));
+					if (connectPerCheck) {
+						connection.close();
+						connection = null;
+					}
+					long nanos = System.nanoTime() - start;
+					if (measuring.get()) {
+						samples[check].add(nanos);
+						statuses[check][result.getStatus().ordinal()]++;
+					}
+				}
+			} catch (Exception e) {
+				failure = e;
+			} finally {
+				if (connection != null) {
+					try {
+						connection.close();
+					} catch (SQLException muted) {
+					}
+				}
+				done.countDown();
+			}
+		}
+
+		private static CheckResult run(Connection connection, String check) {
+			Deadline deadline = new Deadline(CheckOracle.DEFAULT_TIMEOUT);
+			try {
+				Connection guarded = deadline.guard(connection);
+				if (check.equals("tablespaces")) {
+					return CheckTablespaces.performCheck(guarded, TABLESPACE_OPTIONS, false);
+				} else if (check.equals("tablespace")) {
+					return CheckTablespace.performCheck(guarded, "USERS", TABLESPACE_OPTIONS, false);
+				} else if (check.equals("sessions")) {
+					return CheckDatabaseSessions.performCheck(guarded, "400", "500", false);
+				} else if (check.equals("user-sessions")) {
+					return CheckUserSessions.performCheck(guarded, "APP", "50", "80", false);
+				} else if (check.equals("breakdown")) {
+					return CheckSessionBreakdown.performCheck(guarded, null, "username,status", "200", "300", null,
+							false);
+				}
+				return CheckClusterSessions.performCheck(guarded, null, "400", "500", null, null, false);
+			} finally {
+				deadline.stop();
+			}
+		}
+	}
+
+	/**
+	 * Growable list of latencies in nanoseconds
+	 */
+	private static final class Samples {
+
+		private long[] values = new long[1024];
+		private int size;
+
+		void add(long value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		void addAll(Samples other) {
+			for (int i = 0; i < other.size; i++) {
+				add(other.values[i]);
+			}
+		}
+
+		long[] sorted() {
+			long[] sorted = Arrays.copyOf(values, size);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package org.icinga.plugin.oracle.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.icinga.plugin.oracle.CheckOracle;
+import org.icinga.plugin.oracle.CheckTablespaces;
+import org.icinga.plugin.oracle.Rows;
+import org.icinga.plugin.oracle.TablespaceStrategy;
+import org.icinga.plugin.oracle.bean.TablespaceMetric;
+
+/**
+ * Compares reading the full tablespace scan the former way, columns by name with the default prefetch of 10 rows,
+ * with {@link Rows}, columns by index with the fetch size derived from the row count. Reports the SQL*Net round-trips
+ * of the session, the CPU time of the client thread and the elapsed time per scan.
+ * <p>
+ * The round-trips are read from <code>v$mystat</code>, so the user needs access to <code>v$mystat</code> and
+ * <code>v$statname</code>. Build it with <code>mvn -Pbench package</code>:
+ *
+ * <pre>
+ * java -cp target/check_oracle-bench.jar org.icinga.plugin.oracle.bench.RowMappingBenchmark \
+ *     -H db01 -P 1521 -I ORCL -u monitor -p secret -n 20
+ * </pre>
+ *
+ * @author David Webb
+ */
+public class RowMappingBenchmark {
+
+	private static final String ROUNDTRIPS = "SELECT m.value FROM v$mystat m, v$statname n "
+			+ "WHERE m.statistic# = n.statistic# AND n.name = 'SQL*Net roundtrips to/from client'";
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	@SuppressWarnings("static-access")
+	public static void main(String args[]) throws SQLException {
+		Options options = new Options();
+		options.addOption(OptionBuilder.isRequired(true).withLongOpt("host").hasArg().create('H'));
+		options.addOption(OptionBuilder.isRequired(true).withLongOpt("port").withType(Number.class).hasArg().create("P"));
+		options.addOption(OptionBuilder.isRequired(true).withLongOpt("instance").hasArg().create("I"));
+		options.addOption(OptionBuilder.isRequired(true).withLongOpt("user").hasArg().create("u"));
+		options.addOption(OptionBuilder.isRequired(true).withLongOpt("password").hasArg().create("p"));
+		options.addOption(OptionBuilder.withDescription("Measured scans per variant, defaults to 20")
+				.withLongOpt("iterations").withType(Number.class).hasArg().create("n"));
+		options.addOption(OptionBuilder.withDescription("Tablespace strategy, defaults to free-space")
+				.withLongOpt("tablespace-strategy").hasArg().create());
+
+		CommandLine commandLine;
+		try {
+			commandLine = new BasicParser().parse(options, args);
+		} catch (ParseException e) {
+			System.out.println(e.getMessage());
+			new HelpFormatter().printHelp("RowMappingBenchmark", options, true);
+			return;
+		}
+
+		int iterations = commandLine.hasOption('n') ? Integer.parseInt(commandLine.getOptionValue('n')) : 20;
+		TablespaceStrategy strategy = commandLine.hasOption("tablespace-strategy") ? TablespaceStrategy
+				.fromName(commandLine.getOptionValue("tablespace-strategy")) : TablespaceStrategy.FREE_SPACE;
+		String url = CheckOracle.getConnectionUrl(commandLine.getOptionValue('H'),
+				Integer.valueOf(commandLine.getOptionValue('P')), commandLine.getOptionValue('I'));
+
+		Connection connection = DriverManager.getConnection(url, commandLine.getOptionValue('u'),
+				commandLine.getOptionValue('p'));
+		try {
+			String query = strategy.getQuery();
+			int rows = byName(connection, query).size();
+			long first = roundtrips(connection);
+			long overhead = roundtrips(connection) - first;
+
+			System.out.println(String.format("%d tablespaces, %d scans per variant", rows, iterations));
+			System.out.println(String.format("%-30s %12s %12s %12s", "variant", "roundtrips", "cpu ms", "elapsed ms"));
+
+			double[] before = new double[3];
+			double[] after = new double[3];
+			for (int i = 0; i < iterations; i++) {
+				// alternate the variants so both see the same database load
+				measure(connection, query, rows, false, overhead, before);
+				measure(connection, query, rows, true, overhead, after);
+			}
+			print("by name, prefetch " + Rows.DEFAULT_FETCH_SIZE, before, iterations);
+			print("by index, fetch " + Rows.fetchSize(rows), after, iterations);
+		} finally {
+			connection.close();
+		}
+	}
+
+	private static void measure(Connection connection, String query, int rows, boolean tuned, long overhead,
+			double[] totals) throws SQLException {
+		long roundtrips = roundtrips(connection);
+		long cpu = THREADS.getCurrentThreadCpuTime();
+		long start = System.nanoTime();
+		if (tuned) {
+			Rows.query(connection, query, rows, CheckTablespaces.READINGS);
+		} else {
+			byName(connection, query);
+		}
+		long elapsed = System.nanoTime() - start;
+		totals[1] += (THREADS.getCurrentThreadCpuTime() - cpu) / 1e6;
+		totals[2] += elapsed / 1e6;
+		// the reading of the counter is a round-trip of its own
+		totals[0] += roundtrips(connection) - roundtrips - overhead;
+	}
+
+	private static void print(String variant, double[] totals, int iterations) {
+		System.out.println(String.format("%-30s %12.1f %12.2f %12.2f", variant, totals[0] / iterations, totals[1]
+				/ iterations, totals[2] / iterations));
+	}
+
+	/**
+	 * The result loop before {@link Rows}: columns looked up by name, default prefetch
+	 */
+	static List<TablespaceMetric> byName(Connection connection, String query) throws SQLException {
+		PreparedStatement pstmt = connection.prepareStatement(query);
+		try {
+			ResultSet rs = pstmt.executeQuery();
+			try {
+				List<TablespaceMetric> readings = new ArrayList<TablespaceMetric>();
+				while (rs.next()) {
+					float actualSpace = rs.getFloat("tbs_size");
+					float freeSpace = rs.getFloat("free_space");
+					float percentUsed = rs.getFloat("pct_used");
+					readings.add(new TablespaceMetric(rs.getString("tablespace_name"), percentUsed,
+							100.00F - percentUsed, (double) actualSpace, (double) (actualSpace - freeSpace),
+							(double) freeSpace));
+				}
+				return readings;
+			} finally {
+				rs.close();
+			}
+		} finally {
+			pstmt.close();
+		}
+	}
+
+	private static long roundtrips(Connection connection) throws SQLException {
+		return Rows.queryInt(connection, ROUNDTRIPS);
+	}
+}
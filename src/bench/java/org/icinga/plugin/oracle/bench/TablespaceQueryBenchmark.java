@@ -0,0 +1,137 @@
+package org.icinga.plugin.oracle.bench;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.icinga.plugin.oracle.CheckOracle;
+import org.icinga.plugin.oracle.TablespaceStrategy;
+
+/**
+ * Compares the latency of the single tablespace query that filters inside the aggregations with the former query
+ * that aggregated all tablespaces and filtered on <code>upper(tablespace_name)</code> afterwards.
+ * <p>
+ * Build it with <code>mvn -Pbench package</code> and run it against a database with a large catalog:
+ *
+ * <pre>
+ * java -cp target/check_oracle-bench.jar org.icinga.plugin.oracle.bench.TablespaceQueryBenchmark \
+ *     -H db01 -P 1521 -I ORCL -u monitor -p secret -t USERS -n 20
+ * </pre>
+ *
+ * @author David Webb
+ */
+public class TablespaceQueryBenchmark {
+
+	/**
+	 * The single tablespace query before the filter was pushed into the aggregations.
+	 */
+	static final String AGGREGATE_THEN_FILTER = TablespaceStrategy.FREE_SPACE.getQuery()
+			+ "AND upper(b.tablespace_name) = upper(?) \n";
+
+	@SuppressWarnings("static-access")
+	public static void main(String args[]) throws SQLException {
+		Options options = new Options();
+		options.addOption(OptionBuilder.isRequired(true).withLongOpt("host").hasArg().create('H'));
+		options.addOption(OptionBuilder.isRequired(true).withLongOpt("port").withType(Number.class).hasArg().create("P"));
+		options.addOption(OptionBuilder.isRequired(true).withLongOpt("instance").hasArg().create("I"));
+		options.addOption(OptionBuilder.isRequired(true).withLongOpt("user").hasArg().create("u"));
+		options.addOption(OptionBuilder.isRequired(true).withLongOpt("password").hasArg().create("p"));
+		options.addOption(OptionBuilder.isRequired(true).withLongOpt("tablespace").hasArg().create("t"));
+		options.addOption(OptionBuilder.withDescription("Measured executions per query, defaults to 20")
+				.withLongOpt("iterations").withType(Number.class).hasArg().create("n"));
+
+		CommandLine commandLine;
+		try {
+			commandLine = new BasicParser().parse(options, args);
+		} catch (ParseException e) {
+			System.out.println(e.getMessage());
+			new HelpFormatter().printHelp("TablespaceQueryBenchmark", options, true);
+			return;
+		}
+
+		int iterations = commandLine.hasOption('n') ? Integer.parseInt(commandLine.getOptionValue('n')) : 20;
+		String tablespace = commandLine.getOptionValue('t');
+		String url = CheckOracle.getConnectionUrl(commandLine.getOptionValue('H'),
+				Integer.valueOf(commandLine.getOptionValue('P')), commandLine.getOptionValue('I'));
+
+		Connection connection = DriverManager.getConnection(url, commandLine.getOptionValue('u'),
+				commandLine.getOptionValue('p'));
+		try {
+			TablespaceStrategy strategy = TablespaceStrategy.FREE_SPACE;
+			String normalized = TablespaceStrategy.normalizeTablespaceName(tablespace);
+
+			long[] before = measure(connection, AGGREGATE_THEN_FILTER, 1, tablespace, iterations);
+			long[] after = measure(connection, strategy.getTablespaceQuery(), strategy.getTablespaceBindCount(),
+					normalized, iterations);
+
+			System.out.println(String.format("%-26s %10s %10s %10s %10s", "query", "min ms", "median ms", "p95 ms",
+					"max ms"));
+			print("aggregate, then filter", before);
+			print("filter inside aggregation", after);
+			System.out.println(String.format("median speedup: %.1fx", (double) percentile(before, 50)
+					/ Math.max(1, percentile(after, 50))));
+		} finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Executes the query once to warm up the cursor and the buffer cache, then the given number of times.
+	 *
+	 * @return sorted execution times including the fetch, in microseconds
+	 */
+	static long[] measure(Connection connection, String query, int binds, String tablespace, int iterations)
+			throws SQLException {
+		long[] micros = new long[iterations];
+		PreparedStatement pstmt = connection.prepareStatement(query);
+		try {
+			for (int i = 1; i <= binds; i++) {
+				pstmt.setString(i, tablespace);
+			}
+			execute(pstmt);
+			for (int i = 0; i < iterations; i++) {
+				long start = System.nanoTime();
+				if (execute(pstmt) != 1) {
+					throw new IllegalStateException(String.format("Tablespace [%s] does not exist", tablespace));
+				}
+				micros[i] = (System.nanoTime() - start) / 1000L;
+			}
+		} finally {
+			pstmt.close();
+		}
+		Arrays.sort(micros);
+		return micros;
+	}
+
+	private static int execute(PreparedStatement pstmt) throws SQLException {
+		int rows = 0;
+		ResultSet rs = pstmt.executeQuery();
+		try {
+			while (rs.next()) {
+				rows++;
+			}
+		} finally {
+			rs.close();
+		}
+		return rows;
+	}
+
+	private static void print(String name, long[] micros) {
+		System.out.println(String.format("%-26s %10.2f %10.2f %10.2f %10.2f", name, micros[0] / 1000.0,
+				percentile(micros, 50) / 1000.0, percentile(micros, 95) / 1000.0, micros[micros.length - 1] / 1000.0));
+	}
+
+	static long percentile(long[] sorted, int percentile) {
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+}
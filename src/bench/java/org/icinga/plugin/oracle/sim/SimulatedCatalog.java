@@ -0,0 +1,297 @@
+package org.icinga.plugin.oracle.sim;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Generated dictionary of a simulated database: tablespaces with their size and free space, and sessions with user,
+ * status, machine, program and instance. Answers the queries of the checks from it, recognising them by the views they
+ * read rather than parsing the SQL. The data is generated from a seed, so every run sees the same database.
+ * <p>
+ * With churn, tablespaces grow by {@link #GROWTH_MB} one after the other, at the configured number per second since
+ * the catalog was generated, and every growth counts as a write to the datafiles of the tablespace.
+ *
+ * @author David Webb
+ */
+public final class SimulatedCatalog {
+
+	private static final String[] MACHINES = { "app01", "app02", "app03", "app04", "batch01", "report01" };
+	private static final String[] PROGRAMS = { "JDBC Thin Client", "sqlplus@batch01 (TNS V1-V3)",
+			"oracle@report01 (TNS V1-V3)", "python3@app01" };
+	private static final String[] BUILTIN_TABLESPACES = { "SYSTEM", "SYSAUX", "UNDOTBS1", "USERS" };
+
+	/**
+	 * Growth of a tablespace per write with churn
+	 */
+	static final double GROWTH_MB = 1;
+
+	private final SimulatorConfig config;
+	private final long generatedAt = System.nanoTime();
+	private final boolean churn;
+	private final List<Object[]> tablespaces;
+	private final String[] sessionUser;
+	private final String[] sessionStatus;
+	private final String[] sessionMachine;
+	private final String[] sessionProgram;
+	private final int[] sessionInstance;
+	private final ConcurrentMap<String, List<Object[]>> aggregates = new ConcurrentHashMap<String, List<Object[]>>();
+
+	/**
+	 * Generates the dictionary
+	 *
+	 * @param config scale and seed
+	 */
+	public SimulatedCatalog(SimulatorConfig config) {
+		this.config = config;
+		this.churn = config.getChurn() > 0;
+		Random random = new Random(config.getSeed());
+
+		List<Object[]> rows = new ArrayList<Object[]>(config.getTablespaces());
+		for (int i = 0; i < config.getTablespaces(); i++) {
+			String name = i < BUILTIN_TABLESPACES.length ? BUILTIN_TABLESPACES[i] : String.format("TS_%06d", i);
+			// sizes spread over three orders of magnitude, most tablespaces half full, a few nearly full
+			double size = Math.round(100 * Math.pow(1000, random.nextDouble()) * 100) / 100.0;
+			double used = Math.min(0.999, Math.abs(random.nextGaussian() * 0.2 + 0.5));
+			double free = Math.round(size * (1 - used) * 100) / 100.0;
+			rows.add(new Object[] { name, size, free, (size - free) / size * 100 });
+		}
+		this.tablespaces = Collections.unmodifiableList(rows);
+
+		int sessions = config.getSessions();
+		this.sessionUser = new String[sessions];
+		this.sessionStatus = new String[sessions];
+		this.sessionMachine = new String[sessions];
+		this.sessionProgram = new String[sessions];
+		this.sessionInstance = new int[sessions];
+		for (int i = 0; i < sessions; i++) {
+			// a few users hold most sessions
+			int user = (int) (config.getUsers() * Math.pow(random.nextDouble(), 3));
+			sessionUser[i] = user == 0 ? "APP" : String.format("USER%04d", user);
+			sessionStatus[i] = random.nextInt(5) == 0 ? "ACTIVE" : "INACTIVE";
+			sessionMachine[i] = MACHINES[random.nextInt(MACHINES.length)];
+			sessionProgram[i] = PROGRAMS[random.nextInt(PROGRAMS.length)];
+			sessionInstance[i] = 1 + random.nextInt(config.getInstances());
+		}
+	}
+
+	public SimulatorConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * Answers a query of the checks
+	 *
+	 * @param sql query text
+	 * @param parameters values bound to the parameters in order
+	 * @param roundtrips round-trips of the session so far, answers <code>v$mystat</code>
+	 * @return column labels and rows
+	 * @throws SQLException thrown for queries the simulator does not know, like the server does for unknown views
+	 */
+	Result query(String sql, List<String> parameters, long roundtrips) throws SQLException {
+		String text = sql.toLowerCase(Locale.ROOT).replaceAll("\\s+", " ");
+		if (text.contains("v$mystat")) {
+			return new Result(Collections.singletonList(new Object[] { roundtrips }), "value");
+		}
+		if (text.contains("gv$instance")) {
+			String username = parameters.isEmpty() ? null : parameters.get(0);
+			return new Result(aggregate("instances/" + username, username, Collections.singletonList("inst_id"),
+					true), "inst_id", "count");
+		}
+		if (text.contains("from v$session") && text.contains("group by")) {
+			int start = text.indexOf("select ") + "select ".length();
+			int end = text.indexOf(", count(1)");
+			if (end < start) {
+				throw unknown(sql);
+			}
+			List<String> columns = Arrays.asList(text.substring(start, end).split(", "));
+			String username = parameters.size() > 1 ? parameters.get(1) : null;
+			List<String> labels = new ArrayList<String>(columns);
+			labels.add("count");
+			return new Result(aggregate(columns + "/" + username, username, columns, false), labels
+					.toArray(new String[labels.size()]));
+		}
+		if (text.contains("from v$session")) {
+			String username = parameters.isEmpty() ? null : parameters.get(0);
+			List<Object[]> counts = aggregate("count/" + username, username, Collections.<String> emptyList(),
+					false);
+			return new Result(counts.isEmpty() ? Collections.singletonList(new Object[] { 0 }) : counts, "count");
+		}
+		if (text.contains("dba_free_space") || text.contains("dba_tablespace_usage_metrics")
+				|| text.contains("v$filespace_usage")) {
+			long writes = writes();
+			List<Object[]> rows = new ArrayList<Object[]>(parameters.isEmpty() ? tablespaces.size() : parameters
+					.size());
+			Set<String> names = new HashSet<String>(parameters);
+			for (int i = 0; i < tablespaces.size(); i++) {
+				if (names.isEmpty() || names.contains(tablespaces.get(i)[0])) {
+					rows.add(churn ? grown(i, writes) : tablespaces.get(i));
+				}
+			}
+			return new Result(rows, "tablespace_name", "tbs_size", "free_space", "pct_used");
+		}
+		if (text.contains("v$datafile")) {
+			long writes = writes();
+			List<Object[]> rows = new ArrayList<Object[]>(tablespaces.size());
+			for (int i = 0; i < tablespaces.size(); i++) {
+				Object[] row = tablespaces.get(i);
+				// a file per 32 GB, as with small file tablespaces of 8k blocks
+				rows.add(new Object[] { row[0], 1 + (long) ((Double) row[1] / 32768), (long) ((Double) row[1]
+						* 1024 * 1024), writes(i, writes) });
+			}
+			return new Result(rows, false, "name", "files", "bytes", "writes");
+		}
+		throw unknown(sql);
+	}
+
+	/**
+	 * Returns the number of tablespace growths so far
+	 */
+	private long writes() {
+		return churn ? (long) ((System.nanoTime() - generatedAt) / 1e9 * config.getChurn()) : 0;
+	}
+
+	/**
+	 * Returns the writes of a tablespace among the given total, which go round the tablespaces in order
+	 */
+	private long writes(int tablespace, long writes) {
+		return writes / tablespaces.size() + (tablespace < writes % tablespaces.size() ? 1 : 0);
+	}
+
+	private Object[] grown(int tablespace, long writes) {
+		Object[] row = tablespaces.get(tablespace);
+		double size = (Double) row[1];
+		double free = Math.max(0, (Double) row[2] - writes(tablespace, writes) * GROWTH_MB);
+		return new Object[] { row[0], size, free, (size - free) / size * 100 };
+	}
+
+	/**
+	 * Counts the sessions per group of the given columns, computed once per grouping and user
+	 */
+	private List<Object[]> aggregate(String key, String username, List<String> columns, boolean allInstances)
+			throws SQLException {
+		List<Object[]> rows = aggregates.get(key);
+		if (rows != null) {
+			return rows;
+		}
+		Map<List<Object>, int[]> groups = new TreeMap<List<Object>, int[]>(new GroupOrder());
+		if (allInstances) {
+			// instances without sessions are reported with 0, like the outer join does
+			for (int instance = 1; instance <= config.getInstances(); instance++) {
+				groups.put(Collections.<Object> singletonList(instance), new int[1]);
+			}
+		}
+		for (int i = 0; i < sessionUser.length; i++) {
+			if (username != null && !username.equals(sessionUser[i])) {
+				continue;
+			}
+			List<Object> group = new ArrayList<Object>(columns.size());
+			for (String column : columns) {
+				group.add(value(column, i));
+			}
+			int[] count = groups.get(group);
+			if (count == null) {
+				count = new int[1];
+				groups.put(group, count);
+			}
+			count[0]++;
+		}
+		rows = new ArrayList<Object[]>(groups.size());
+		for (Map.Entry<List<Object>, int[]> group : groups.entrySet()) {
+			Object[] row = group.getKey().toArray(new Object[group.getKey().size() + 1]);
+			row[row.length - 1] = group.getValue()[0];
+			rows.add(row);
+		}
+		rows = Collections.unmodifiableList(rows);
+		aggregates.putIfAbsent(key, rows);
+		return rows;
+	}
+
+	private Object value(String column, int session) throws SQLException {
+		String name = column.trim();
+		if (name.equals("username")) {
+			return sessionUser[session];
+		} else if (name.equals("status")) {
+			return sessionStatus[session];
+		} else if (name.equals("machine")) {
+			return sessionMachine[session];
+		} else if (name.equals("program")) {
+			return sessionProgram[session];
+		} else if (name.equals("inst_id")) {
+			return sessionInstance[session];
+		}
+		throw new SQLException(String.format("ORA-00904: \"%s\": invalid identifier", name.toUpperCase(Locale.ROOT)),
+				"42000", 904);
+	}
+
+	private static SQLException unknown(String sql) {
+		return new SQLException("ORA-00942: table or view does not exist (simulated: " + sql.trim() + ")", "42000",
+				942);
+	}
+
+	/**
+	 * Orders groups column by column, numbers numerically
+	 */
+	private static final class GroupOrder implements Comparator<List<Object>> {
+
+		@Override
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public int compare(List<Object> a, List<Object> b) {
+			for (int i = 0; i < Math.min(a.size(), b.size()); i++) {
+				int order = ((Comparable) a.get(i)).compareTo(b.get(i));
+				if (order != 0) {
+					return order;
+				}
+			}
+			return a.size() - b.size();
+		}
+	}
+
+	/**
+	 * Column labels and rows of a query
+	 */
+	static final class Result {
+
+		private final List<Object[]> rows;
+		private final boolean dictionary;
+		private final String[] labels;
+
+		Result(List<Object[]> rows, String... labels) {
+			this(rows, true, labels);
+		}
+
+		/**
+		 * @param rows rows
+		 * @param dictionary whether the rows cost server time, false for in-memory views
+		 * @param labels column labels
+		 */
+		Result(List<Object[]> rows, boolean dictionary, String... labels) {
+			this.rows = rows;
+			this.dictionary = dictionary;
+			this.labels = labels;
+		}
+
+		List<Object[]> getRows() {
+			return rows;
+		}
+
+		boolean isDictionary() {
+			return dictionary;
+		}
+
+		String[] getLabels() {
+			return labels;
+		}
+	}
+}
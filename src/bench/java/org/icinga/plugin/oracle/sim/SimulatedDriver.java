@@ -0,0 +1,475 @@
+package org.icinga.plugin.oracle.sim;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * JDBC driver of a simulated Oracle database, for benchmarks and load tests without a database. Accepts URLs starting
+ * with <code>jdbc:simulated:</code> followed by the {@link SimulatorConfig} settings, e.g.
+ * <code>jdbc:simulated:tablespaces=10000;sessions=100000;latency=2</code>, and answers the queries of the checks from
+ * a {@link SimulatedCatalog} generated once per URL.
+ * <p>
+ * Every round-trip costs the configured latency: the logon takes two, a query one, and every further fetch of
+ * fetch-size rows one more, like the thin driver. The server time of a dictionary query grows with the rows it
+ * returns. Waiting ends early with ORA-01013 when the statement is cancelled or its query timeout expires. Only the
+ * JDBC methods the checks use are implemented; the connection, statements and result sets are dynamic proxies.
+ *
+ * @author David Webb
+ */
+public final class SimulatedDriver implements Driver {
+
+	private static final ConcurrentMap<String, SimulatedCatalog> CATALOGS = new ConcurrentHashMap<String, SimulatedCatalog>();
+
+	/**
+	 * Fetch size of statements without one, the thin driver default
+	 */
+	private static final int DEFAULT_FETCH_SIZE = 10;
+
+	private static final int LOGON_ROUNDTRIPS = 2;
+
+	static {
+		try {
+			DriverManager.registerDriver(new SimulatedDriver());
+		} catch (SQLException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Registers the driver with the {@link DriverManager}
+	 */
+	public static void register() {
+		// registered by the static initializer
+	}
+
+	/**
+	 * Returns the catalog of a simulator URL, generating it on first use
+	 *
+	 * @param url simulator URL
+	 * @return catalog
+	 */
+	public static SimulatedCatalog catalog(String url) {
+		SimulatedCatalog catalog = CATALOGS.get(url);
+		if (catalog == null) {
+			SimulatedCatalog created = new SimulatedCatalog(new SimulatorConfig(url));
+			catalog = CATALOGS.putIfAbsent(url, created);
+			if (catalog == null) {
+				catalog = created;
+			}
+		}
+		return catalog;
+	}
+
+	@Override
+	public Connection connect(String url, Properties info) throws SQLException {
+		if (!acceptsURL(url)) {
+			return null;
+		}
+		SimulatedCatalog catalog;
+		try {
+			catalog = catalog(url);
+		} catch (IllegalArgumentException e) {
+			throw new SQLException(e.getMessage(), e);
+		}
+		Session session = new Session(url, info.getProperty("user", "MONITOR").toUpperCase(Locale.ROOT), catalog);
+		session.roundtrips(LOGON_ROUNDTRIPS, 0, null);
+		return proxy(Connection.class, new ConnectionHandler(session));
+	}
+
+	@Override
+	public boolean acceptsURL(String url) {
+		return url != null && url.startsWith(SimulatorConfig.URL_PREFIX);
+	}
+
+	@Override
+	public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+		return new DriverPropertyInfo[0];
+	}
+
+	@Override
+	public int getMajorVersion() {
+		return 1;
+	}
+
+	@Override
+	public int getMinorVersion() {
+		return 0;
+	}
+
+	@Override
+	public boolean jdbcCompliant() {
+		return false;
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(SimulatedDriver.class.getClassLoader(), new Class<?>[] { type },
+				handler));
+	}
+
+	/**
+	 * State of one simulated session: its round-trips and the latency they cost
+	 */
+	private static final class Session {
+
+		private final String url;
+		private final String user;
+		private final SimulatedCatalog catalog;
+		private final AtomicLong roundtrips = new AtomicLong();
+		private volatile boolean closed;
+
+		Session(String url, String user, SimulatedCatalog catalog) {
+			this.url = url;
+			this.user = user;
+			this.catalog = catalog;
+		}
+
+		/**
+		 * Waits for the given round-trips and server time, unless the statement is cancelled first
+		 */
+		void roundtrips(int count, int rows, StatementHandler statement) throws SQLException {
+			roundtrips.addAndGet(count);
+			SimulatorConfig config = catalog.getConfig();
+			long nanos = (long) (count * config.getLatencyMillis() * 1000000L + rows * config.getRowCostMicros()
+					* 1000L);
+			if (nanos <= 0) {
+				return;
+			}
+			if (statement == null) {
+				sleep(nanos);
+			} else {
+				statement.await(nanos);
+			}
+		}
+
+		private static void sleep(long nanos) throws SQLException {
+			try {
+				Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted", e);
+			}
+		}
+	}
+
+	/**
+	 * Base of the handlers: Object methods, and defaults for the JDBC methods the checks do not use
+	 */
+	private abstract static class Handler implements InvocationHandler {
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("equals")) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			} else if (name.equals("toString")) {
+				return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+			} else if (name.equals("isWrapperFor")) {
+				return false;
+			} else if (name.equals("unwrap")) {
+				throw new SQLException("Not a wrapper of " + args[0]);
+			}
+			return handle(name, method, args);
+		}
+
+		abstract Object handle(String name, Method method, Object[] args) throws Exception;
+
+		/**
+		 * Answer of methods the simulator does not implement: nothing for setters and flags, an error otherwise
+		 */
+		static Object unsupported(Method method) throws SQLException {
+			Class<?> type = method.getReturnType();
+			if (type == void.class) {
+				return null;
+			} else if (type == boolean.class) {
+				return false;
+			} else if (type == int.class) {
+				return 0;
+			} else if (type == long.class) {
+				return 0L;
+			}
+			throw new SQLFeatureNotSupportedException("Not simulated: " + method.getName());
+		}
+	}
+
+	private static final class ConnectionHandler extends Handler {
+
+		private final Session session;
+
+		ConnectionHandler(Session session) {
+			this.session = session;
+		}
+
+		@Override
+		Object handle(String name, Method method, Object[] args) throws Exception {
+			if (name.equals("prepareStatement")) {
+				checkOpen();
+				return proxy(PreparedStatement.class, new StatementHandler(session, (String) args[0]));
+			} else if (name.equals("createStatement")) {
+				checkOpen();
+				return proxy(Statement.class, new StatementHandler(session, null));
+			} else if (name.equals("getMetaData")) {
+				return proxy(DatabaseMetaData.class, new MetaDataHandler(session));
+			} else if (name.equals("close")) {
+				session.closed = true;
+				return null;
+			} else if (name.equals("isClosed")) {
+				return session.closed;
+			} else if (name.equals("isValid")) {
+				if (!session.closed) {
+					session.roundtrips(1, 0, null);
+				}
+				return !session.closed;
+			} else if (name.equals("getAutoCommit")) {
+				return true;
+			} else if (name.equals("getWarnings")) {
+				return null;
+			}
+			return unsupported(method);
+		}
+
+		private void checkOpen() throws SQLException {
+			if (session.closed) {
+				throw new SQLException("Closed Connection", "08003", 17008);
+			}
+		}
+	}
+
+	private static final class MetaDataHandler extends Handler {
+
+		private final Session session;
+
+		MetaDataHandler(Session session) {
+			this.session = session;
+		}
+
+		@Override
+		Object handle(String name, Method method, Object[] args) throws Exception {
+			if (name.equals("getURL")) {
+				return session.url;
+			} else if (name.equals("getUserName")) {
+				return session.user;
+			} else if (name.equals("getDatabaseProductName")) {
+				return "Oracle";
+			} else if (name.equals("getDatabaseProductVersion")) {
+				SimulatorConfig config = session.catalog.getConfig();
+				return String.format(Locale.ROOT, "Simulated Oracle Database, %d tablespaces, %d sessions",
+						config.getTablespaces(), config.getSessions());
+			}
+			return unsupported(method);
+		}
+	}
+
+	private static final class StatementHandler extends Handler {
+
+		private final Session session;
+		private final String sql;
+		private final List<String> parameters = new ArrayList<String>();
+		private int fetchSize = DEFAULT_FETCH_SIZE;
+		private int queryTimeout;
+		private boolean cancelled;
+		private boolean closed;
+
+		StatementHandler(Session session, String sql) {
+			this.session = session;
+			this.sql = sql;
+		}
+
+		@Override
+		Object handle(String name, Method method, Object[] args) throws Exception {
+			if (name.equals("executeQuery")) {
+				checkOpen();
+				return executeQuery(args == null ? sql : (String) args[0]);
+			} else if (name.startsWith("set") && args != null && args.length == 2 && args[0] instanceof Integer
+					&& !name.equals("setFetchSize")) {
+				// setString, setInt, ...: parameters are compared as strings
+				int index = (Integer) args[0] - 1;
+				while (parameters.size() <= index) {
+					parameters.add(null);
+				}
+				parameters.set(index, args[1] == null || name.equals("setNull") ? null : String.valueOf(args[1]));
+				return null;
+			} else if (name.equals("clearParameters")) {
+				parameters.clear();
+				return null;
+			} else if (name.equals("setFetchSize")) {
+				int size = (Integer) args[0];
+				fetchSize = size > 0 ? size : DEFAULT_FETCH_SIZE;
+				return null;
+			} else if (name.equals("getFetchSize")) {
+				return fetchSize;
+			} else if (name.equals("setQueryTimeout")) {
+				queryTimeout = (Integer) args[0];
+				return null;
+			} else if (name.equals("getQueryTimeout")) {
+				return queryTimeout;
+			} else if (name.equals("cancel")) {
+				cancel();
+				return null;
+			} else if (name.equals("close")) {
+				closed = true;
+				return null;
+			} else if (name.equals("isClosed")) {
+				return closed;
+			} else if (name.equals("getWarnings")) {
+				return null;
+			}
+			return unsupported(method);
+		}
+
+		private ResultSet executeQuery(String query) throws SQLException {
+			synchronized (this) {
+				cancelled = false;
+			}
+			SimulatedCatalog.Result result = session.catalog.query(query, parameters, session.roundtrips.get());
+			// the first fetch travels with the execute
+			session.roundtrips(1, result.isDictionary() ? result.getRows().size() : 0, this);
+			return proxy(ResultSet.class, new ResultSetHandler(this, result));
+		}
+
+		synchronized void cancel() {
+			cancelled = true;
+			notifyAll();
+		}
+
+		/**
+		 * Waits the given time, ending early with ORA-01013 on cancel or query timeout
+		 */
+		synchronized void await(long nanos) throws SQLException {
+			long now = System.nanoTime();
+			long end = now + nanos;
+			long timeout = queryTimeout > 0 ? now + queryTimeout * 1000000000L : Long.MAX_VALUE;
+			try {
+				while (!cancelled && now < end) {
+					if (now >= timeout) {
+						throw new SQLTimeoutException("ORA-01013: user requested cancel of current operation",
+								"72000", 1013);
+					}
+					long wait = Math.min(end, timeout) - now;
+					wait(wait / 1000000L, (int) (wait % 1000000L));
+					now = System.nanoTime();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted", e);
+			}
+			if (cancelled) {
+				throw new SQLException("ORA-01013: user requested cancel of current operation", "72000", 1013);
+			}
+		}
+
+		private void checkOpen() throws SQLException {
+			if (closed) {
+				throw new SQLException("Closed Statement", "99999", 17009);
+			}
+		}
+	}
+
+	private static final class ResultSetHandler extends Handler {
+
+		private final StatementHandler statement;
+		private final List<Object[]> rows;
+		private final String[] labels;
+		private int row = -1;
+		private boolean wasNull;
+		private boolean closed;
+
+		ResultSetHandler(StatementHandler statement, SimulatedCatalog.Result result) {
+			this.statement = statement;
+			this.rows = result.getRows();
+			this.labels = result.getLabels();
+		}
+
+		@Override
+		Object handle(String name, Method method, Object[] args) throws Exception {
+			if (name.equals("next")) {
+				if (closed) {
+					throw new SQLException("Closed Resultset", "99999", 17010);
+				}
+				row++;
+				if (row > 0 && row <= rows.size() && row % statement.fetchSize == 0) {
+					// the next fetch-size rows need another round-trip, and so does learning that there are none
+					statement.session.roundtrips(1, 0, statement);
+				}
+				return row < rows.size();
+			} else if (name.equals("close")) {
+				closed = true;
+				return null;
+			} else if (name.equals("isClosed")) {
+				return closed;
+			} else if (name.equals("wasNull")) {
+				return wasNull;
+			} else if (name.equals("findColumn")) {
+				return column((String) args[0]) + 1;
+			} else if (name.startsWith("get") && args != null && args.length == 1) {
+				return value(method.getReturnType(), args[0] instanceof String ? column((String) args[0])
+						: (Integer) args[0] - 1);
+			}
+			return unsupported(method);
+		}
+
+		private int column(String label) throws SQLException {
+			for (int i = 0; i < labels.length; i++) {
+				if (labels[i].equalsIgnoreCase(label)) {
+					return i;
+				}
+			}
+			throw new SQLException("Invalid column name", "99999", 17006);
+		}
+
+		private Object value(Class<?> type, int column) throws SQLException {
+			if (row < 0 || row >= rows.size()) {
+				throw new SQLException("Result set after last row", "99999", 17289);
+			}
+			Object[] values = rows.get(row);
+			if (column < 0 || column >= values.length) {
+				throw new SQLException("Invalid column index", "99999", 17003);
+			}
+			Object value = values[column];
+			wasNull = value == null;
+			if (type == String.class) {
+				return value == null ? null : String.valueOf(value);
+			} else if (type == Object.class) {
+				return value;
+			}
+			Number number = value == null ? 0 : value instanceof Number ? (Number) value : Double.valueOf(String
+					.valueOf(value));
+			if (type == int.class) {
+				return number.intValue();
+			} else if (type == long.class) {
+				return number.longValue();
+			} else if (type == double.class) {
+				return number.doubleValue();
+			} else if (type == float.class) {
+				return number.floatValue();
+			}
+			throw new SQLFeatureNotSupportedException("Not simulated: get " + type.getSimpleName());
+		}
+	}
+}
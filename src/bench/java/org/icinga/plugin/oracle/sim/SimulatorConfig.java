@@ -0,0 +1,114 @@
+package org.icinga.plugin.oracle.sim;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Scale and latency of a simulated database, parsed from the part of the JDBC URL after
+ * <code>jdbc:simulated:</code>, e.g. <code>tablespaces=10000;sessions=100000;latency=2</code>:
+ * <ul>
+ * <li><code>tablespaces</code> number of tablespaces, default 100</li>
+ * <li><code>sessions</code> number of sessions, default 1000</li>
+ * <li><code>users</code> number of distinct session users, default 50</li>
+ * <li><code>instances</code> number of RAC instances, default 1</li>
+ * <li><code>latency</code> milliseconds per round-trip, default 0</li>
+ * <li><code>row-cost</code> microseconds of server time per row returned by a dictionary query, default 0</li>
+ * <li><code>churn</code> tablespaces growing per second, one after the other, default 0</li>
+ * <li><code>seed</code> seed of the generated data, default 42</li>
+ * </ul>
+ *
+ * @author David Webb
+ */
+public final class SimulatorConfig {
+
+	public static final String URL_PREFIX = "jdbc:simulated:";
+
+	private final Map<String, String> values = new LinkedHashMap<String, String>();
+
+	private final int tablespaces;
+	private final int sessions;
+	private final int users;
+	private final int instances;
+	private final double latencyMillis;
+	private final double rowCostMicros;
+	private final double churn;
+	private final long seed;
+
+	/**
+	 * @param url JDBC URL starting with {@link #URL_PREFIX}
+	 */
+	public SimulatorConfig(String url) {
+		if (!url.startsWith(URL_PREFIX)) {
+			throw new IllegalArgumentException("Not a simulator URL: " + url);
+		}
+		for (String pair : url.substring(URL_PREFIX.length()).split(";")) {
+			if (pair.trim().isEmpty()) {
+				continue;
+			}
+			int equals = pair.indexOf('=');
+			if (equals <= 0) {
+				throw new IllegalArgumentException(String.format("Invalid simulator setting [%s]", pair));
+			}
+			values.put(pair.substring(0, equals).trim(), pair.substring(equals + 1).trim());
+		}
+		this.tablespaces = (int) number("tablespaces", 100, 1, 1000000);
+		this.sessions = (int) number("sessions", 1000, 0, 10000000);
+		this.users = (int) number("users", 50, 1, 100000);
+		this.instances = (int) number("instances", 1, 1, 64);
+		this.latencyMillis = number("latency", 0, 0, 60000);
+		this.rowCostMicros = number("row-cost", 0, 0, 1000000);
+		this.churn = number("churn", 0, 0, 1000000);
+		this.seed = (long) number("seed", 42, Long.MIN_VALUE, Long.MAX_VALUE);
+		if (!values.isEmpty()) {
+			throw new IllegalArgumentException("Unknown simulator settings " + values.keySet());
+		}
+	}
+
+	private double number(String name, double defaultValue, double min, double max) {
+		String value = values.remove(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			double number = Double.parseDouble(value);
+			if (number < min || number > max) {
+				throw new IllegalArgumentException(String.format("Simulator setting %s=%s out of range", name, value));
+			}
+			return number;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format("Invalid simulator setting %s=%s", name, value));
+		}
+	}
+
+	public int getTablespaces() {
+		return tablespaces;
+	}
+
+	public int getSessions() {
+		return sessions;
+	}
+
+	public int getUsers() {
+		return users;
+	}
+
+	public int getInstances() {
+		return instances;
+	}
+
+	public double getLatencyMillis() {
+		return latencyMillis;
+	}
+
+	public double getRowCostMicros() {
+		return rowCostMicros;
+	}
+
+	public double getChurn() {
+		return churn;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+}
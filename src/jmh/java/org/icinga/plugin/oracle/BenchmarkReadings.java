@@ -0,0 +1,42 @@
+package org.icinga.plugin.oracle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.icinga.plugin.oracle.bean.TablespaceMetric;
+import org.icinga.plugin.oracle.bean.TablespaceMetricBatch;
+
+/**
+ * Tablespace readings of the benchmarks, generated from a fixed seed like the simulator does: sizes over three orders
+ * of magnitude, most tablespaces half full and a few percent above 85% used.
+ *
+ * @author David Webb
+ */
+final class BenchmarkReadings {
+
+	static final int WARNING = 85;
+	static final int CRITICAL = 95;
+	static final Thresholds THRESHOLDS = Thresholds.parse(String.valueOf(WARNING), String.valueOf(CRITICAL));
+
+	private BenchmarkReadings() {
+	}
+
+	static List<TablespaceMetric> generate(int count) {
+		Random random = new Random(42);
+		List<TablespaceMetric> readings = new ArrayList<TablespaceMetric>(count);
+		for (int i = 0; i < count; i++) {
+			double size = Math.round(100 * Math.pow(1000, random.nextDouble()) * 100) / 100.0;
+			double used = Math.min(0.999, Math.abs(random.nextGaussian() * 0.2 + 0.5));
+			double free = Math.round(size * (1 - used) * 100) / 100.0;
+			float percentUsed = (float) ((size - free) / size * 100);
+			readings.add(new TablespaceMetric(String.format("TS_%06d", i), percentUsed, 100.00F - percentUsed, size,
+					size - free, free));
+		}
+		return readings;
+	}
+
+	static TablespaceMetricBatch batch(int count) {
+		return TablespaceMetricBatch.of(generate(count));
+	}
+}
@@ -0,0 +1,71 @@
+package org.icinga.plugin.oracle;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.icinga.plugin.oracle.bean.TablespaceMetric;
+import org.icinga.plugin.oracle.bean.TablespaceMetricBatch;
+import org.icinga.plugin.oracle.sim.SimulatedDriver;
+import org.icinga.plugin.oracle.sim.SimulatorConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of reading a full tablespace scan from the simulator without latency: one
+ * {@link TablespaceMetric} per row, and the columns of a {@link TablespaceMetricBatch} the collection fills. Run with
+ * <code>-prof gc</code> for the allocation rate.
+ *
+ * @author David Webb
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CollectBenchmark {
+
+	@Param({ "10", "1000", "100000" })
+	public int tablespaces;
+
+	private Connection connection;
+
+	@Setup
+	public void setUp() throws SQLException {
+		SimulatedDriver.register();
+		Properties properties = new Properties();
+		properties.setProperty("user", "monitor");
+		properties.setProperty("password", "");
+		connection = DriverManager.getConnection(SimulatorConfig.URL_PREFIX + "tablespaces=" + tablespaces,
+				properties);
+	}
+
+	@TearDown
+	public void tearDown() throws SQLException {
+		connection.close();
+	}
+
+	@Benchmark
+	public List<TablespaceMetric> beans() throws SQLException {
+		return Rows.query(connection, TablespaceStrategy.FREE_SPACE.getQuery(), tablespaces, CheckTablespaces.READINGS);
+	}
+
+	@Benchmark
+	public TablespaceMetricBatch batch() throws SQLException {
+		return CheckTablespaces.collect(connection, TablespaceStrategy.FREE_SPACE, null, false);
+	}
+}
@@ -0,0 +1,78 @@
+package org.icinga.plugin.oracle;
+
+import java.util.List;
+import java.util.Locale;
+
+import org.icinga.plugin.oracle.bean.TablespaceMetric;
+
+/**
+ * The rendering of perfdata and violations before {@link FixedPoint}: one <code>String.format</code> per number. The
+ * benchmarks measure it as the baseline and check that the current rendering gives the same output.
+ *
+ * @author David Webb
+ */
+final class LegacyRendering {
+
+	private LegacyRendering() {
+	}
+
+	static String render(CheckResult result) {
+		StringBuilder output = new StringBuilder();
+		output.append(result.getStatus()).append(" - ").append(result.getMessage());
+		List<PerfData> perfData = result.getPerfData();
+		if (!perfData.isEmpty()) {
+			output.append('|');
+			for (int i = 0; i < perfData.size(); i++) {
+				output.append(i == 0 ? "" : " ").append(render(perfData.get(i)));
+			}
+		}
+		return output.toString();
+	}
+
+	static String render(PerfData perfData) {
+		StringBuilder builder = new StringBuilder();
+		String label = perfData.getLabel();
+		if (label.indexOf(' ') >= 0 || label.indexOf('=') >= 0 || label.indexOf('\'') >= 0) {
+			builder.append('\'').append(label.replace("'", "''")).append('\'');
+		} else {
+			builder.append(label);
+		}
+		int decimals = perfData.getDecimals();
+		builder.append('=').append(format(perfData.getValue(), decimals)).append(perfData.getUnit());
+		if (perfData.getWarning() != null || perfData.getCritical() != null || perfData.getMin() != null
+				|| perfData.getMax() != null) {
+			builder.append(';').append(format(perfData.getWarning(), decimals));
+			builder.append(';').append(format(perfData.getCritical(), decimals));
+		}
+		if (perfData.getMin() != null || perfData.getMax() != null) {
+			builder.append(';').append(format(perfData.getMin(), decimals));
+			builder.append(';').append(format(perfData.getMax(), decimals));
+		}
+		return builder.toString();
+	}
+
+	static String violations(List<TablespaceMetric> readings, int warning, int critical) {
+		StringBuilder violations = new StringBuilder();
+		for (TablespaceMetric metric : readings) {
+			if (metric.getUsedCapacityPct() >= warning && metric.getUsedCapacityPct() < critical) {
+				violations.append(String.format(Locale.ROOT, "%s (%3.2f>%d) ", metric.getTablespaceName(),
+						metric.getUsedCapacityPct(), warning));
+			}
+			if (metric.getUsedCapacityPct() >= critical) {
+				violations.append(String.format(Locale.ROOT, "%s (%3.2f>%d) ", metric.getTablespaceName(),
+						metric.getUsedCapacityPct(), critical));
+			}
+		}
+		return violations.toString();
+	}
+
+	private static String format(Double number, int decimals) {
+		if (number == null) {
+			return "";
+		}
+		if (Math.abs(number) < 0.5 / Math.pow(10, decimals)) {
+			number = 0d;
+		}
+		return String.format(Locale.ROOT, "%." + decimals + "f", number);
+	}
+}
@@ -0,0 +1,85 @@
+package org.icinga.plugin.oracle;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.icinga.plugin.oracle.bean.TablespaceMetric;
+import org.icinga.plugin.oracle.bean.TablespaceMetricBatch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of rendering the plugin output and the violation message of all tablespaces, with one
+ * <code>String.format</code> per number as before and with {@link FixedPoint} into a reused buffer, the violations
+ * through the compiled {@link Thresholds} as the checks do. The setup fails when the two renderings differ. Run with <code>-prof gc</code> for the allocation rate.
+ *
+ * @author David Webb
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderBenchmark {
+
+	@Param({ "10", "1000", "100000" })
+	public int tablespaces;
+
+	private List<TablespaceMetric> readings;
+	private TablespaceMetricBatch batch;
+	private CheckResult result;
+	private StringBuilder buffer;
+
+	@Setup
+	public void setUp() {
+		readings = BenchmarkReadings.generate(tablespaces);
+		batch = TablespaceMetricBatch.of(readings);
+		result = CheckAdapter.checkLevel(readings, BenchmarkReadings.THRESHOLDS, null);
+		buffer = new StringBuilder();
+		if (!LegacyRendering.render(result).equals(result.appendTo(buffer).toString())) {
+			throw new IllegalStateException("Perfdata rendering differs from String.format");
+		}
+		bufferedViolations();
+		if (!LegacyRendering.violations(readings, BenchmarkReadings.WARNING, BenchmarkReadings.CRITICAL).equals(
+				buffer.toString())) {
+			throw new IllegalStateException("Violation rendering differs from String.format");
+		}
+	}
+
+	@Benchmark
+	public String formatOutput() {
+		return LegacyRendering.render(result);
+	}
+
+	@Benchmark
+	public int bufferedOutput() {
+		buffer.setLength(0);
+		return result.appendTo(buffer).length();
+	}
+
+	@Benchmark
+	public String formatViolations() {
+		return LegacyRendering.violations(readings, BenchmarkReadings.WARNING, BenchmarkReadings.CRITICAL);
+	}
+
+	@Benchmark
+	public int bufferedViolations() {
+		buffer.setLength(0);
+		for (int i = 0; i < batch.size(); i++) {
+			Thresholds.Levels levels = BenchmarkReadings.THRESHOLDS.levelsOf(batch.getTablespaceName(i));
+			CheckAdapter.appendViolation(buffer, batch, i, levels, levels.statusOf(batch.getUsedCapacityPct(i), batch
+					.getUsedCapacityMb(i)));
+		}
+		return buffer.length();
+	}
+}
@@ -0,0 +1,82 @@
+package org.icinga.plugin.oracle;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.icinga.plugin.oracle.bean.TablespaceMetric;
+import org.icinga.plugin.oracle.bean.TablespaceMetricBatch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of evaluating the compiled thresholds of all tablespaces: the comparisons alone, and the complete check
+ * with the violation message and perfdata objects, over a list of beans and over the batch the collection returns. Run
+ * with <code>-prof gc</code> for the allocation rate.
+ *
+ * @author David Webb
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThresholdBenchmark {
+
+	private static final Thresholds THRESHOLDS = BenchmarkReadings.THRESHOLDS;
+
+	@Param({ "10", "1000", "100000" })
+	public int tablespaces;
+
+	private List<TablespaceMetric> readings;
+	private TablespaceMetricBatch batch;
+
+	@Setup
+	public void setUp() {
+		readings = BenchmarkReadings.generate(tablespaces);
+		batch = BenchmarkReadings.batch(tablespaces);
+	}
+
+	@Benchmark
+	public int evaluate() {
+		int violations = 0;
+		for (TablespaceMetric metric : readings) {
+			if (THRESHOLDS.levelsOf(metric.getTablespaceName()).statusOf(metric.getUsedCapacityPct(),
+					metric.getUsedCapacityMb()) != NagiosStatus.OK) {
+				violations++;
+			}
+		}
+		return violations;
+	}
+
+	@Benchmark
+	public int evaluateBatch() {
+		int violations = 0;
+		for (int i = 0; i < batch.size(); i++) {
+			if (THRESHOLDS.levelsOf(batch.getTablespaceName(i)).statusOf(batch.getUsedCapacityPct(i),
+					batch.getUsedCapacityMb(i)) != NagiosStatus.OK) {
+				violations++;
+			}
+		}
+		return violations;
+	}
+
+	@Benchmark
+	public CheckResult checkLevel() {
+		return CheckAdapter.checkLevel(readings, THRESHOLDS, null);
+	}
+
+	@Benchmark
+	public CheckResult checkLevelBatch() {
+		return CheckAdapter.checkLevel(batch, THRESHOLDS, null);
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ * Native client of the check_oracle daemon, so a check forwarded to the daemon does not start a JVM.
+ *
+ * Speaks the wire format of CheckDaemon: big-endian 32 bit integers, strings as their length in bytes followed by
+ * their bytes. The request is the shared secret, empty without one, the argument count and each argument, the
+ * response is the exit code followed by the plugin output. Arguments are passed on as given, which is UTF-8 under
+ * the usual locales.
+ *
+ * The daemon address is read from CHECK_ORACLE_DAEMON_HOST (default 127.0.0.1) and CHECK_ORACLE_DAEMON_PORT
+ * (default 5667), the secret from the file named by CHECK_ORACLE_DAEMON_SECRET_FILE. Prints the plugin output and
+ * exits with the exit code of the check. When no daemon is listening it prints nothing and exits with
+ * NO_DAEMON, and check_oracle runs the check itself.
+ *
+ *   cc -O2 -o check_oracle_client src/main/c/check_oracle_client.c
+ *
+ * Author: David Webb
+ */
+
+#include <errno.h>
+#include <fcntl.h>
+#include <netdb.h>
+#include <poll.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/socket.h>
+#include <sys/time.h>
+#include <sys/types.h>
+#include <unistd.h>
+
+#define NO_DAEMON 100
+#define UNKNOWN 3
+
+#define DEFAULT_HOST "127.0.0.1"
+#define DEFAULT_PORT "5667"
+
+/* milliseconds, as the Java client */
+#define CONNECT_TIMEOUT 2000
+#define READ_TIMEOUT 600000
+
+/* longest plugin output accepted from the daemon */
+#define MAX_OUTPUT (16 * 1024 * 1024)
+
+/* longest secret read from the secret file */
+#define MAX_SECRET 65536
+
+static int fail(const char *message, const char *detail) {
+	printf("UNKNOWN - %s%s%s\n", message, detail == NULL ? "" : ": ", detail == NULL ? "" : detail);
+	return UNKNOWN;
+}
+
+/*
+ * Connects to the first of the addresses accepting within CONNECT_TIMEOUT. Returns the socket, -1 with errno set
+ * otherwise.
+ */
+static int connect_daemon(struct addrinfo *addresses) {
+	struct addrinfo *address;
+	int error = ECONNREFUSED;
+	int fd = -1;
+
+	for (address = addresses; address != NULL; address = address->ai_next) {
+		int flags;
+		fd = socket(address->ai_family, address->ai_socktype, address->ai_protocol);
+		if (fd < 0) {
+			error = errno;
+			continue;
+		}
+		flags = fcntl(fd, F_GETFL, 0);
+		fcntl(fd, F_SETFL, flags | O_NONBLOCK);
+		if (connect(fd, address->ai_addr, address->ai_addrlen) == 0) {
+			fcntl(fd, F_SETFL, flags);
+			break;
+		}
+		if (errno == EINPROGRESS) {
+			struct pollfd pending;
+			socklen_t length = sizeof(error);
+			pending.fd = fd;
+			pending.events = POLLOUT;
+			if (poll(&pending, 1, CONNECT_TIMEOUT) == 1
+					&& getsockopt(fd, SOL_SOCKET, SO_ERROR, &error, &length) == 0 && error == 0) {
+				fcntl(fd, F_SETFL, flags);
+				break;
+			}
+			if (error == 0) {
+				error = ETIMEDOUT;
+			}
+		} else {
+			error = errno;
+		}
+		close(fd);
+		fd = -1;
+	}
+	if (fd < 0) {
+		errno = error;
+	}
+	return fd;
+}
+
+static int write_all(int fd, const char *bytes, size_t length) {
+	while (length > 0) {
+		ssize_t written = write(fd, bytes, length);
+		if (written < 0) {
+			if (errno == EINTR) {
+				continue;
+			}
+			return -1;
+		}
+		bytes += written;
+		length -= (size_t) written;
+	}
+	return 0;
+}
+
+/*
+ * Reads exactly length bytes. Returns 0, 1 at the end of the stream, -1 with errno set on errors.
+ */
+static int read_all(int fd, char *bytes, size_t length) {
+	while (length > 0) {
+		ssize_t count = read(fd, bytes, length);
+		if (count == 0) {
+			return 1;
+		}
+		if (count < 0) {
+			if (errno == EINTR) {
+				continue;
+			}
+			return -1;
+		}
+		bytes += count;
+		length -= (size_t) count;
+	}
+	return 0;
+}
+
+static int write_int(int fd, uint32_t value) {
+	char bytes[4];
+	bytes[0] = (char) (value >> 24);
+	bytes[1] = (char) (value >> 16);
+	bytes[2] = (char) (value >> 8);
+	bytes[3] = (char) value;
+	return write_all(fd, bytes, 4);
+}
+
+static int read_int(int fd, uint32_t *value) {
+	unsigned char bytes[4];
+	int result = read_all(fd, (char *) bytes, 4);
+	if (result == 0) {
+		*value = ((uint32_t) bytes[0] << 24) | ((uint32_t) bytes[1] << 16) | ((uint32_t) bytes[2] << 8) | bytes[3];
+	}
+	return result;
+}
+
+static int write_string(int fd, const char *value, size_t length) {
+	if (write_int(fd, (uint32_t) length) != 0) {
+		return -1;
+	}
+	return write_all(fd, value, length);
+}
+
+/*
+ * Reads the secret file, ignoring leading and trailing blanks and line breaks as the daemon does. Returns the length,
+ * -1 if the file cannot be read.
+ */
+static long read_secret(const char *file, char *secret) {
+	FILE *in = fopen(file, "rb");
+	size_t length;
+	size_t start = 0;
+	if (in == NULL) {
+		return -1;
+	}
+	length = fread(secret, 1, MAX_SECRET, in);
+	fclose(in);
+	while (length > 0 && (unsigned char) secret[length - 1] <= ' ') {
+		length--;
+	}
+	while (start < length && (unsigned char) secret[start] <= ' ') {
+		start++;
+	}
+	memmove(secret, secret + start, length - start);
+	return (long) (length - start);
+}
+
+int main(int argc, char *argv[]) {
+	const char *host = getenv("CHECK_ORACLE_DAEMON_HOST");
+	const char *port = getenv("CHECK_ORACLE_DAEMON_PORT");
+	const char *secret_file = getenv("CHECK_ORACLE_DAEMON_SECRET_FILE");
+	static char secret[MAX_SECRET];
+	long secret_length = 0;
+	struct addrinfo hints;
+	struct addrinfo *addresses;
+	struct timeval timeout;
+	uint32_t code;
+	uint32_t length;
+	char *output;
+	int fd;
+	int i;
+	int result;
+
+	if (secret_file != NULL && *secret_file != '\0') {
+		secret_length = read_secret(secret_file, secret);
+		if (secret_length < 0) {
+			return fail("Cannot read the secret file", strerror(errno));
+		}
+	}
+
+	memset(&hints, 0, sizeof(hints));
+	hints.ai_family = AF_UNSPEC;
+	hints.ai_socktype = SOCK_STREAM;
+	result = getaddrinfo(host == NULL || *host == '\0' ? DEFAULT_HOST : host,
+			port == NULL || *port == '\0' ? DEFAULT_PORT : port, &hints, &addresses);
+	if (result != 0) {
+		return fail("Check daemon failed", gai_strerror(result));
+	}
+	fd = connect_daemon(addresses);
+	freeaddrinfo(addresses);
+	if (fd < 0) {
+		if (errno == ECONNREFUSED) {
+			return NO_DAEMON;
+		}
+		return fail("Check daemon failed", strerror(errno));
+	}
+	timeout.tv_sec = READ_TIMEOUT / 1000;
+	timeout.tv_usec = 0;
+	setsockopt(fd, SOL_SOCKET, SO_RCVTIMEO, &timeout, sizeof(timeout));
+
+	if (write_string(fd, secret, (size_t) secret_length) != 0 || write_int(fd, (uint32_t) (argc - 1)) != 0) {
+		close(fd);
+		return fail("Check daemon failed", strerror(errno));
+	}
+	for (i = 1; i < argc; i++) {
+		if (write_string(fd, argv[i], strlen(argv[i])) != 0) {
+			close(fd);
+			return fail("Check daemon failed", strerror(errno));
+		}
+	}
+
+	result = read_int(fd, &code);
+	if (result == 0) {
+		result = read_int(fd, &length);
+	}
+	if (result == 0 && length > MAX_OUTPUT) {
+		close(fd);
+		return fail("Check daemon failed", "output too long");
+	}
+	output = result == 0 ? malloc(length == 0 ? 1 : length) : NULL;
+	if (result == 0 && output == NULL) {
+		close(fd);
+		return fail("Check daemon failed", "out of memory");
+	}
+	if (result == 0) {
+		result = read_all(fd, output, length);
+	}
+	close(fd);
+	if (result > 0) {
+		return fail("Check daemon closed the connection, check the shared secret", NULL);
+	}
+	if (result < 0) {
+		return fail("Check daemon failed", strerror(errno));
+	}
+	fwrite(output, 1, length, stdout);
+	free(output);
+	fflush(stdout);
+	return (int) code;
+}
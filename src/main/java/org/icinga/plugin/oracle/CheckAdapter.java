@@ -4,77 +4,183 @@ import static org.icinga.plugin.oracle.NagiosStatus.CRITICAL;
 import static org.icinga.plugin.oracle.NagiosStatus.OK;
 import static org.icinga.plugin.oracle.NagiosStatus.WARNING;
 
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.icinga.plugin.oracle.bean.TablespaceMetric;
+import org.icinga.plugin.oracle.bean.TablespaceMetricBatch;
 
 /**
- * Helpers to finalize a check by evaluating the readings against the thresholds, then generating output, perfdata and
- * exit codes.
- * 
+ * Helpers to finalize a check by evaluating the readings against the thresholds, then generating the check result
+ * with its message and perfdata.
+ *
  * @author Aparna Chaudhary
  * @author David Webb
  */
 public class CheckAdapter {
 
 	/**
-	 * Checks if the input is exceeding the warning threshold or critical threshold.
-	 * 
-	 * @param percent_used data to verify
+	 * Compiles the thresholds of a check that counts, which take Nagios ranges but no units
+	 *
 	 * @param warning warning threshold
 	 * @param crtical critical threshold
+	 * @return warning and critical threshold
+	 * @throws IllegalArgumentException thrown when a threshold is invalid or has a unit
+	 */
+	protected static Thresholds.Levels countLevels(String warning, String crtical) {
+		Thresholds.Levels levels = Thresholds.parse(warning, crtical).getDefaults();
+		levels.getWarning().withoutUnit();
+		levels.getCritical().withoutUnit();
+		return levels;
+	}
+
+	/**
+	 * Checks if a count is raising the warning or critical alert.
+	 *
+	 * @param value data to verify
+	 * @param levels warning and critical threshold
 	 * @param message nagios message
+	 * @param perfData performance data of the check
+	 * @return check result
 	 */
-	protected static void checkLevel(float percent_used, int warning, int crtical, String message) {
-		if (percent_used < warning) {
-			System.out.println("OK - " + message);
-			System.exit(OK.getCode());
-		}
-		if (percent_used >= warning && percent_used < crtical) {
-			System.out.println("WARNING - " + message);
-			System.exit(WARNING.getCode());
-		}
-		if (percent_used >= crtical) {
-			System.out.println("CRITICAL - " + message);
-			System.exit(CRITICAL.getCode());
-		}
+	protected static CheckResult checkLevel(double value, Thresholds.Levels levels, String message,
+			PerfData... perfData) {
+		return new CheckResult(levels.statusOf(value), message, perfData);
 	}
 
-	protected static void checkLevel(List<TablespaceMetric> readings, int warning, int critical) {
+	/**
+	 * Checks every tablespace reading against its own thresholds in one pass, naming only the most severe
+	 * tablespaces when the output is limited.
+	 *
+	 * @param readings tablespace readings
+	 * @param thresholds compiled thresholds
+	 * @param limit bound of the output, or null to name every violation and give perfdata of every tablespace
+	 * @param extraPerfData additional perfdata appended after the tablespace perfdata
+	 * @return check result
+	 */
+	protected static CheckResult checkLevel(List<TablespaceMetric> readings, Thresholds thresholds,
+			OutputLimit limit, PerfData... extraPerfData) {
 
+		TablespaceMetricBatch batch = TablespaceMetricBatch.of(readings);
+		Thresholds.Levels[] levels = new Thresholds.Levels[batch.size()];
+		NagiosStatus[] statuses = new NagiosStatus[batch.size()];
 		StringBuilder violations = new StringBuilder();
 		NagiosStatus disposition = OK;
+		int warnings = 0;
+		int criticals = 0;
 
-		for (TablespaceMetric metric : readings) {
-			if (metric.getUsedCapacityPct() >= warning && metric.getUsedCapacityPct() < critical) {
-				violations
-						.append(String.format("%s (%3.2f>%d) ", metric.getTablespaceName(), metric.getUsedCapacityPct(), warning));
-				disposition = WARNING.getCode() > disposition.getCode() ? WARNING : disposition;
+		for (int i = 0; i < batch.size(); i++) {
+			levels[i] = thresholds.levelsOf(batch.getTablespaceName(i));
+			NagiosStatus status = levels[i].statusOf(batch.getUsedCapacityPct(i), batch.getUsedCapacityMb(i));
+			statuses[i] = status;
+			if (status == WARNING) {
+				warnings++;
+			} else if (status == CRITICAL) {
+				criticals++;
 			}
-			if (metric.getUsedCapacityPct() >= critical) {
-				violations
-						.append(String.format("%s (%3.2f>%d) ", metric.getTablespaceName(), metric.getUsedCapacityPct(), warning));
-				disposition = CRITICAL.getCode() > disposition.getCode() ? CRITICAL : disposition;
+			disposition = status.getCode() > disposition.getCode() ? status : disposition;
+			if (limit == null) {
+				appendViolation(violations, batch, i, levels[i], status);
 			}
 		}
 
-		System.out.println(String.format("%s - %s| %s", disposition,
-				violations.toString().length() == 0 ? "All Tablespaces are Healthy" : violations.toString(),
-				generatePerfData(readings, warning, critical)));
-		System.exit(disposition.getCode());
+		if (limit == null) {
+			return new CheckResult(disposition, violations.length() == 0 ? "All Tablespaces are Healthy" : violations
+					.toString().trim(), new TablespacePerfData(batch, null, batch.size(), levels), Arrays
+					.asList(extraPerfData));
+		}
 
-	}
+		int[] fullest = limit.fullest(batch, statuses);
+		int named = 0;
+		for (int index : fullest) {
+			if (statuses[index] != OK) {
+				appendViolation(violations, batch, index, levels[index], statuses[index]);
+				named++;
+			}
+		}
+		String message = "All Tablespaces are Healthy";
+		if (named > 0) {
+			message = violations.toString().trim();
+			if (warnings + criticals > named) {
+				message += String.format(" and %d more", warnings + criticals - named);
+			}
+			message += String.format(" - %d critical, %d warning of %d tablespaces", criticals, warnings, batch
+					.size());
+		}
+
+		TablespacePerfData usage;
+		if (limit.getPerfDataMode() == OutputLimit.PerfDataMode.TOP) {
+			usage = new TablespacePerfData(batch, fullest, fullest.length, levels);
+		} else if (limit.getPerfDataMode() == OutputLimit.PerfDataMode.CHANGED) {
+			boolean[] changed = limit.changed(batch);
+			int[] indexes = new int[batch.size()];
+			int count = 0;
+			for (int i = 0; i < batch.size(); i++) {
+				if (changed[i] || statuses[i] != OK) {
+					indexes[count++] = i;
+				}
+			}
+			usage = new TablespacePerfData(batch, indexes, count, levels);
+		} else {
+			usage = new TablespacePerfData(batch, null, batch.size(), levels);
+		}
+		List<PerfData> perfData = new ArrayList<PerfData>(extraPerfData.length + 3);
+		perfData.add(new PerfData("tablespaces", batch.size(), "", 0));
+		perfData.add(new PerfData("tablespaces_warning", warnings, "", 0));
+		perfData.add(new PerfData("tablespaces_critical", criticals, "", 0));
+		Collections.addAll(perfData, extraPerfData);
 
-	private static Object generatePerfData(List<TablespaceMetric> readings, int warning, int critical) {
+		return new CheckResult(disposition, message, usage, perfData);
+	}
 
-		StringBuilder perfdata = new StringBuilder();
+	/**
+	 * Appends <code>name (used&gt;threshold) </code> for a violation, the used space in the unit of the threshold
+	 */
+	static void appendViolation(StringBuilder violations, TablespaceMetricBatch batch, int index,
+			Thresholds.Levels levels, NagiosStatus status) {
+		if (status != OK) {
+			Threshold threshold = levels.thresholdOf(status);
+			violations.append(batch.getTablespaceName(index)).append(" (");
+			threshold.appendViolation(violations, Thresholds.Levels.valueOf(threshold, batch.getUsedCapacityPct(index),
+					batch.getUsedCapacityMb(index))).append(") ");
+		}
+	}
 
-		for (TablespaceMetric metric : readings) {
-			perfdata.append(String.format("%s=%3.2fMB;%.2f;%.2f;0;%.2f ", metric.getTablespaceName(),
-					metric.getUsedCapacityMb(), metric.getTotalCapacityMb() * ((double) warning / 100),
-					metric.getTotalCapacityMb() * ((double) critical / 100), metric.getTotalCapacityMb()));
+	/**
+	 * Appends <code>name (count&gt;threshold) </code> for a violation of a count
+	 */
+	static void appendViolation(StringBuilder violations, String name, double value, Thresholds.Levels levels,
+			NagiosStatus status) {
+		if (status != OK) {
+			violations.append(name).append(" (");
+			levels.thresholdOf(status).appendViolation(violations, value, 0).append(") ");
 		}
+	}
+
+	/**
+	 * Identifies the database and user of a connection, so identical collections can be coalesced
+	 *
+	 * @param connection SQL connection
+	 * @return user and JDBC URL
+	 * @throws SQLException thrown when the metadata cannot be read
+	 */
+	static String targetOf(Connection connection) throws SQLException {
+		DatabaseMetaData metaData = connection.getMetaData();
+		return metaData.getUserName() + "@" + metaData.getURL();
+	}
 
-		return perfdata.toString();
+	/**
+	 * Returns how many queries were saved because an identical collection was already in flight
+	 *
+	 * @return saved queries since the start of the process
+	 */
+	public static long getCoalescedQueries() {
+		return CheckTablespaces.COLLECTIONS.getSaved() + CheckDatabaseSessions.COUNTS.getSaved()
+				+ CheckUserSessions.COUNTS.getSaved() + CheckClusterSessions.COUNTS.getSaved();
 	}
 }
@@ -0,0 +1,234 @@
+package org.icinga.plugin.oracle;
+
+import static org.icinga.plugin.oracle.NagiosStatus.CRITICAL;
+import static org.icinga.plugin.oracle.NagiosStatus.OK;
+import static org.icinga.plugin.oracle.NagiosStatus.UNKNOWN;
+import static org.icinga.plugin.oracle.NagiosStatus.WARNING;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.OptionGroup;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Runs several checks over one connection and reports them in the check_multi format: a summary line with the
+ * overall state, one line per check and the perfdata of every check prefixed with <code>name::check_oracle::</code>.
+ * <p>
+ * A check spec is an optional name followed by the regular check options, e.g.
+ * <code>tbs=-t ALL -W 85 -C 95</code>. Specs are separated by ';' on the command line or given one per line in a
+ * batch file, where blank lines and lines starting with '#' are ignored.
+ *
+ * @author David Webb
+ */
+public class CheckBatch {
+
+	private static final String PLUGIN = "check_oracle";
+
+	private final List<Entry> entries;
+
+	private CheckBatch(List<Entry> entries) {
+		if (entries.isEmpty()) {
+			throw new IllegalArgumentException("No checks given for batch");
+		}
+		this.entries = entries;
+	}
+
+	/**
+	 * Parses ';' separated check specs.
+	 *
+	 * @param specs check specs
+	 * @return batch
+	 */
+	public static CheckBatch parse(String specs) {
+		List<Entry> entries = new ArrayList<Entry>();
+		for (String spec : specs.split(";")) {
+			if (spec.trim().length() > 0) {
+				entries.add(parseEntry(spec.trim(), entries.size() + 1));
+			}
+		}
+		return new CheckBatch(entries);
+	}
+
+	/**
+	 * Reads check specs from a file, one per line.
+	 *
+	 * @param file batch file
+	 * @return batch
+	 */
+	public static CheckBatch load(String file) {
+		List<Entry> entries = new ArrayList<Entry>();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0 && !line.startsWith("#")) {
+					entries.add(parseEntry(line, entries.size() + 1));
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException(String.format("Unable to read batch file [%s]: %s", file, e.getMessage()));
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException muted) {
+				}
+			}
+		}
+		return new CheckBatch(entries);
+	}
+
+	/**
+	 * Runs every check of the batch over the given connection and reports the worst state.
+	 *
+	 * @param checkOracle check dispatcher
+	 * @param connection SQL connection
+	 * @param warning default warning threshold
+	 * @param critical default critical threshold
+	 * @param timer timer of the check, its timings are reported after the check_multi perfdata
+	 * @return combined check result
+	 */
+	CheckResult execute(CheckOracle checkOracle, Connection connection, String warning, String critical,
+			PhaseTimer timer) {
+		long start = System.nanoTime();
+		List<CheckResult> results = new ArrayList<CheckResult>();
+
+		for (Entry entry : entries) {
+			CheckResult result;
+			try {
+				result = checkOracle.dispatch(entry.commandLine, connection,
+						entry.commandLine.getOptionValue('W', warning), entry.commandLine.getOptionValue('C', critical));
+			} catch (IllegalArgumentException e) {
+				result = CheckResult.unknown(e.getMessage());
+			} catch (RuntimeException e) {
+				result = CheckResult.unknown("Failed to execute check " + e);
+			}
+			results.add(result);
+		}
+
+		timer.stop();
+		return report(results, System.nanoTime() - start, timer);
+	}
+
+	private CheckResult report(List<CheckResult> results, long elapsedNanos, PhaseTimer timer) {
+		int[] counts = new int[NagiosStatus.values().length];
+		NagiosStatus overall = OK;
+		for (CheckResult result : results) {
+			counts[result.getStatus().ordinal()]++;
+			if (severity(result.getStatus()) > severity(overall)) {
+				overall = result.getStatus();
+			}
+		}
+
+		StringBuilder message = new StringBuilder();
+		message.append(String.format("%d plugins checked", results.size()));
+		for (NagiosStatus status : new NagiosStatus[] { CRITICAL, WARNING, UNKNOWN, OK }) {
+			if (counts[status.ordinal()] > 0) {
+				message.append(String.format(", %d %s", counts[status.ordinal()], status.name().toLowerCase()));
+			}
+		}
+
+		List<PerfData> perfData = new ArrayList<PerfData>();
+		perfData.add(new PerfData("check_multi::check_multi::plugins", results.size(), "", 0));
+		perfData.add(new PerfData("time", elapsedNanos / 1e9, "", 3));
+		perfData.addAll(timer.toPerfData());
+
+		for (int i = 0; i < results.size(); i++) {
+			CheckResult result = results.get(i);
+			String name = entries.get(i).name;
+			message.append(String.format("%n[%2d] %s %s - %s", i + 1, name, result.getStatus(), result.getMessage()
+					.replace('\n', ' ')));
+			// check_multi only prefixes the first label of every child
+			List<PerfData> childPerfData = result.getPerfData();
+			for (int j = 0; j < childPerfData.size(); j++) {
+				PerfData item = childPerfData.get(j);
+				perfData.add(j == 0 ? item.withLabel(name + "::" + PLUGIN + "::" + item.getLabel()) : item);
+			}
+		}
+
+		return new CheckResult(overall, message.toString(), perfData);
+	}
+
+	/**
+	 * check_multi state precedence: CRITICAL over WARNING over UNKNOWN over OK.
+	 */
+	private static int severity(NagiosStatus status) {
+		switch (status) {
+		case CRITICAL:
+			return 3;
+		case WARNING:
+			return 2;
+		case UNKNOWN:
+			return 1;
+		default:
+			return 0;
+		}
+	}
+
+	private static Entry parseEntry(String spec, int position) {
+		String name = "check_" + position;
+		String arguments = spec;
+		int equals = spec.indexOf('=');
+		if (equals > 0 && !spec.substring(0, equals).trim().startsWith("-")) {
+			name = spec.substring(0, equals).trim();
+			arguments = spec.substring(equals + 1).trim();
+		}
+		if (!name.matches("[A-Za-z0-9_.-]+")) {
+			throw new IllegalArgumentException(String.format("Invalid batch check name [%s]", name));
+		}
+
+		try {
+			CommandLine commandLine = new BasicParser().parse(entryOptions(), arguments.split("\\s+"));
+			if (!commandLine.hasOption('t') && !commandLine.hasOption('s')) {
+				throw new IllegalArgumentException(String.format("Batch check [%s] needs -t or -s", name));
+			}
+			return new Entry(name, commandLine);
+		} catch (ParseException e) {
+			throw new IllegalArgumentException(String.format("Invalid batch check [%s]: %s", spec, e.getMessage()));
+		}
+	}
+
+	@SuppressWarnings("static-access")
+	private static Options entryOptions() {
+		Options options = new Options();
+		options.addOption(OptionBuilder.hasArg().create("W"));
+		options.addOption(OptionBuilder.hasArg().create("C"));
+		options.addOption(OptionBuilder.withLongOpt("tablespace-strategy").hasArg().create());
+		options.addOption(OptionBuilder.withLongOpt("tablespace-thresholds").hasArg().create());
+		options.addOption(OptionBuilder.withLongOpt("rac").create());
+		options.addOption(OptionBuilder.withLongOpt("breakdown").hasArg().create());
+		options.addOption(OptionBuilder.withLongOpt("group-thresholds").hasArg().create());
+		options.addOption(OptionBuilder.withLongOpt("cluster-warning").hasArg().create());
+		options.addOption(OptionBuilder.withLongOpt("cluster-critical").hasArg().create());
+		options.addOption(OptionBuilder.withLongOpt("top").hasArg().create());
+		options.addOption(OptionBuilder.withLongOpt("perfdata").hasArg().create());
+		OptionGroup checkOptionGroup = new OptionGroup();
+		checkOptionGroup.addOption(OptionBuilder.withLongOpt("tablespace").hasArg().create("t"));
+		checkOptionGroup.addOption(OptionBuilder.withLongOpt("sessions").hasArg().create("s"));
+		options.addOptionGroup(checkOptionGroup);
+		return options;
+	}
+
+	private static final class Entry {
+
+		private final String name;
+		private final CommandLine commandLine;
+
+		Entry(String name, CommandLine commandLine) {
+			this.name = name;
+			this.commandLine = commandLine;
+		}
+	}
+}
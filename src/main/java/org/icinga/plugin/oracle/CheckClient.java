@@ -0,0 +1,126 @@
+package org.icinga.plugin.oracle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Thin client forwarding a check to a running {@link CheckDaemon}. It prints the same output and exits with the same
+ * code as a direct invocation of {@link CheckOracle}. When no daemon is listening the check is run in-process instead.
+ * <p>
+ * The daemon address is read from the system properties <code>check_oracle.daemon.host</code> and
+ * <code>check_oracle.daemon.port</code>, the shared secret of a daemon started with <code>--secret-file</code> from the
+ * file named by <code>check_oracle.daemon.secret_file</code>. This class deliberately avoids touching the driver,
+ * logging and CLI classes.
+ * <p>
+ * <code>check_oracle</code> forwards checks through the native <code>check_oracle_client</code> of
+ * <code>src/main/c</code>, which speaks the same protocol without starting a JVM. This client serves Java callers and
+ * hosts without a C compiler.
+ *
+ * @author David Webb
+ */
+public class CheckClient {
+
+	private static final int CONNECT_TIMEOUT = 2000;
+	private static final int READ_TIMEOUT = 600000;
+
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * Longest plugin output accepted from the daemon
+	 */
+	static final int MAX_OUTPUT = 16 * 1024 * 1024;
+
+	public static void main(String args[]) {
+		String host = System.getProperty("check_oracle.daemon.host", CheckDaemon.DEFAULT_BIND);
+		int port = Integer.getInteger("check_oracle.daemon.port", CheckDaemon.DEFAULT_PORT);
+
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			socket.setSoTimeout(READ_TIMEOUT);
+
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			writeString(out, readSecret(System.getProperty("check_oracle.daemon.secret_file")));
+			out.writeInt(args.length);
+			for (String arg : args) {
+				writeString(out, arg);
+			}
+			out.flush();
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			int code = in.readInt();
+			System.out.print(readString(in, MAX_OUTPUT));
+			System.out.flush();
+			System.exit(code);
+		} catch (ConnectException e) {
+			close(socket);
+			CheckOracle.main(args);
+		} catch (EOFException e) {
+			System.out.println("UNKNOWN - Check daemon closed the connection, check the shared secret");
+			System.exit(NagiosStatus.UNKNOWN.getCode());
+		} catch (IOException e) {
+			System.out.println("UNKNOWN - Check daemon failed: " + e);
+			System.exit(NagiosStatus.UNKNOWN.getCode());
+		} finally {
+			close(socket);
+		}
+	}
+
+	/**
+	 * Reads a shared secret, ignoring trailing line breaks and blanks
+	 *
+	 * @param file secret file, may be null
+	 * @return secret, or an empty string without a file
+	 * @throws IOException thrown when the file cannot be read
+	 */
+	static String readSecret(String file) throws IOException {
+		if (file == null) {
+			return "";
+		}
+		return new String(Files.readAllBytes(Paths.get(file)), UTF_8).trim();
+	}
+
+	/**
+	 * Writes a string as its length in bytes followed by its UTF-8 encoding
+	 */
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutputStream, String)}
+	 *
+	 * @param in input
+	 * @param maxBytes longest encoding accepted
+	 * @return string
+	 * @throws IOException thrown when the input ends early or the string is too long
+	 */
+	static String readString(DataInputStream in, int maxBytes) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > maxBytes) {
+			throw new IOException("Invalid string length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException muted) {
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package org.icinga.plugin.oracle;
+
+import static org.icinga.plugin.oracle.NagiosStatus.OK;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Check of the session count of every instance of a RAC cluster, from <code>gv$session</code> in a single query over
+ * one connection. The instance thresholds apply to every instance, the optional cluster thresholds to the sum.
+ * Instances without sessions are reported with 0, instances that are down are missing from <code>gv$instance</code>
+ * and show in the <code>instances</code> perfdata.
+ *
+ * @author David Webb
+ */
+public class CheckClusterSessions extends CheckAdapter {
+
+	private static final Logger logger = LoggerFactory.getLogger(CheckClusterSessions.class);
+
+	static final SingleFlight<String, List<InstanceCount>> COUNTS = new SingleFlight<String, List<InstanceCount>>();
+
+	/**
+	 * Instances expected in a cluster, used to size the fetch
+	 */
+	private static final int EXPECTED_INSTANCES = 8;
+
+	private static final String SESSIONS = "SELECT i.inst_id, COUNT(s.inst_id) FROM gv$instance i "
+			+ "LEFT OUTER JOIN gv$session s ON s.inst_id = i.inst_id GROUP BY i.inst_id ORDER BY i.inst_id";
+
+	private static final String USER_SESSIONS = "SELECT i.inst_id, COUNT(s.inst_id) FROM gv$instance i "
+			+ "LEFT OUTER JOIN gv$session s ON s.inst_id = i.inst_id AND s.username = ? "
+			+ "GROUP BY i.inst_id ORDER BY i.inst_id";
+
+	private static final RowMapper<InstanceCount> COUNT = new RowMapper<InstanceCount>() {
+
+		@Override
+		public InstanceCount map(ResultSet rs) throws SQLException {
+			return new InstanceCount(rs.getInt(1), rs.getInt(2));
+		}
+	};
+
+	/**
+	 * Checks the session count per instance and of the cluster
+	 *
+	 * @param connection SQL connection to any instance of the cluster
+	 * @param username user whose sessions are counted, or null for all sessions
+	 * @param warningThreshold warning threshold per instance
+	 * @param crticalThreshold critical threshold per instance
+	 * @param clusterWarning warning threshold of the cluster total, may be null
+	 * @param clusterCritical critical threshold of the cluster total, may be null
+	 * @param debug flag to enable debug logging
+	 * @return check result
+	 */
+	public static CheckResult performCheck(Connection connection, String username, String warningThreshold,
+			String crticalThreshold, String clusterWarning, String clusterCritical, boolean debug) {
+
+		try {
+
+			Thresholds.Levels levels = countLevels(warningThreshold, crticalThreshold);
+			if ((clusterWarning == null) != (clusterCritical == null)) {
+				return CheckResult.unknown("--cluster-warning and --cluster-critical must be given together");
+			}
+			Thresholds.Levels clusterLevels = clusterWarning == null ? null : countLevels(clusterWarning,
+					clusterCritical);
+
+			List<InstanceCount> counts = count(connection, username, debug);
+			if (counts.isEmpty()) {
+				return CheckResult.unknown("No instances found in gv$instance");
+			}
+
+			String label = username == null ? "sessions" : username + "_sessions";
+			NagiosStatus disposition = OK;
+			StringBuilder violations = new StringBuilder();
+			StringBuilder instances = new StringBuilder();
+			List<PerfData> perfData = new ArrayList<PerfData>(counts.size() + 2);
+			int total = 0;
+
+			for (InstanceCount count : counts) {
+				total += count.sessions;
+				instances.append(instances.length() == 0 ? "" : ", ").append(count.instance).append(": ")
+						.append(count.sessions);
+				NagiosStatus status = levels.statusOf(count.sessions);
+				appendViolation(violations, "instance " + count.instance, count.sessions, levels, status);
+				disposition = worse(disposition, status);
+				perfData.add(new PerfData(label + "_inst" + count.instance, count.sessions, "", levels.getWarning()
+						.getUpperBound(), levels.getCritical().getUpperBound(), 0d, null, 0));
+			}
+
+			if (clusterLevels != null) {
+				NagiosStatus status = clusterLevels.statusOf(total);
+				appendViolation(violations, "cluster", total, clusterLevels, status);
+				disposition = worse(disposition, status);
+				perfData.add(new PerfData(label, total, "", clusterLevels.getWarning().getUpperBound(), clusterLevels
+						.getCritical().getUpperBound(), 0d, null, 0));
+			} else {
+				perfData.add(new PerfData(label, total, "", null, null, 0d, null, 0));
+			}
+			perfData.add(new PerfData("instances", counts.size(), "", 0));
+
+			String output = (username == null ? "Active sessions " : username + ": active sessions ") + total + " ("
+					+ instances + ")";
+			if (violations.length() > 0) {
+				output = violations.toString().trim() + " - " + output;
+			}
+			return new CheckResult(disposition, output, perfData);
+
+		} catch (SQLException e) {
+			return CheckResult.unknown(e.toString());
+		}
+
+	}
+
+	/**
+	 * Counts the sessions per instance. Concurrent counts for the same cluster, user and username share one query.
+	 *
+	 * @param connection SQL connection to any instance of the cluster
+	 * @param username user whose sessions are counted, or null for all sessions
+	 * @param debug flag to enable debug logging
+	 * @return session count of every running instance, ordered by instance number
+	 * @throws SQLException thrown when the query fails
+	 */
+	public static List<InstanceCount> count(final Connection connection, final String username, final boolean debug)
+			throws SQLException {
+		return COUNTS.execute(targetOf(connection) + "/" + (username == null ? "" : username), Deadline
+				.of(connection), new Callable<List<InstanceCount>>() {
+
+					@Override
+					public List<InstanceCount> call() throws SQLException {
+						List<InstanceCount> counts = username == null ? Rows.query(connection, SESSIONS,
+								EXPECTED_INSTANCES, COUNT) : Rows.query(connection, USER_SESSIONS,
+								EXPECTED_INSTANCES, COUNT, username);
+						if (debug) {
+							for (InstanceCount count : counts) {
+								logger.debug(String.format("Instance %d sessions: %d", count.instance,
+										count.sessions));
+							}
+						}
+						return counts;
+					}
+				});
+	}
+
+	private static NagiosStatus worse(NagiosStatus a, NagiosStatus b) {
+		return b.getCode() > a.getCode() ? b : a;
+	}
+
+	/**
+	 * Session count of one instance
+	 */
+	public static final class InstanceCount {
+
+		private final int instance;
+		private final int sessions;
+
+		InstanceCount(int instance, int sessions) {
+			this.instance = instance;
+			this.sessions = sessions;
+		}
+
+		public int getInstance() {
+			return instance;
+		}
+
+		public int getSessions() {
+			return sessions;
+		}
+	}
+}
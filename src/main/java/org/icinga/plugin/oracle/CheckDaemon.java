@@ -0,0 +1,217 @@
+package org.icinga.plugin.oracle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Long running check server. Accepts the regular check_oracle command line from a {@link CheckClient} over a loopback
+ * socket, runs the check in-process and returns the plugin output and exit code, so a check no longer pays for JVM
+ * startup and driver loading. Requests carry database credentials, so the daemon only listens on other interfaces
+ * with a shared secret that every request has to present.
+ * <p>
+ * Wire format (big-endian, {@link DataOutputStream} encoding, strings as their length in bytes followed by UTF-8): the
+ * request is the shared secret, empty without one, the argument count and each argument, the response is the exit
+ * code followed by the plugin output.
+ *
+ * @author David Webb
+ */
+public class CheckDaemon {
+
+	private static final Logger LOG = LoggerFactory.getLogger(CheckDaemon.class);
+
+	public static final int DEFAULT_PORT = 5667;
+	public static final String DEFAULT_BIND = "127.0.0.1";
+
+	private static final int DEFAULT_THREADS = 16;
+	private static final int DEFAULT_POOL_SIZE = 4;
+	private static final int DEFAULT_IDLE_TIMEOUT = 300;
+	private static final int DEFAULT_STATEMENT_CACHE = 20;
+	private static final int READ_TIMEOUT = 30000;
+	private static final int MAX_ARGS = 256;
+	private static final int MAX_ARG_BYTES = 65536;
+
+	private final ServerSocket serverSocket;
+	private final ExecutorService workers;
+	private final ConnectionPool pool;
+	private final byte[] secret;
+
+	/**
+	 * @param bind loopback address to listen on
+	 * @param port port to listen on
+	 * @param threads maximum number of checks executed concurrently
+	 * @param pool pool the checks borrow their connections from
+	 * @throws IOException thrown when the server socket cannot be bound
+	 */
+	public CheckDaemon(String bind, int port, int threads, ConnectionPool pool) throws IOException {
+		this(bind, port, threads, pool, null);
+	}
+
+	/**
+	 * @param bind address to listen on
+	 * @param port port to listen on
+	 * @param threads maximum number of checks executed concurrently
+	 * @param pool pool the checks borrow their connections from
+	 * @param secret shared secret every request has to present, may be null on a loopback address only
+	 * @throws IOException thrown when the server socket cannot be bound
+	 * @throws IllegalArgumentException thrown when a non-loopback address is given without a secret
+	 */
+	public CheckDaemon(String bind, int port, int threads, ConnectionPool pool, String secret) throws IOException {
+		InetAddress address = InetAddress.getByName(bind);
+		if ((secret == null || secret.isEmpty()) && !address.isLoopbackAddress()) {
+			throw new IllegalArgumentException(String.format("Listening on %s needs --secret-file", bind));
+		}
+		this.secret = secret == null || secret.isEmpty() ? null : secret.getBytes(CheckClient.UTF_8);
+		this.serverSocket = new ServerSocket(port, 128, address);
+		this.workers = Executors.newFixedThreadPool(threads);
+		this.pool = pool;
+	}
+
+	@SuppressWarnings("static-access")
+	public static void main(String args[]) {
+		Options options = new Options();
+		options.addOption("h", "help", false, "Print help for this application");
+		options.addOption(OptionBuilder.withDescription("The address to listen on, defaults to " + DEFAULT_BIND)
+				.withLongOpt("bind").withArgName("address").withType(String.class).hasArg().create('b'));
+		options.addOption(OptionBuilder.withDescription("File with the secret clients have to present, required "
+				+ "with a --bind address other than loopback").withLongOpt("secret-file").withArgName("file")
+				.withType(String.class).hasArg().create());
+		options.addOption(OptionBuilder.withDescription("The port to listen on, defaults to " + DEFAULT_PORT)
+				.withLongOpt("port").withType(Number.class).hasArg().create('P'));
+		options.addOption(OptionBuilder.withDescription("Number of checks to run concurrently, defaults to "
+				+ DEFAULT_THREADS).withLongOpt("threads").withType(Number.class).hasArg().create('T'));
+		options.addOption(OptionBuilder.withDescription("Maximum connections per database and user, defaults to "
+				+ DEFAULT_POOL_SIZE).withLongOpt("pool-size").withType(Number.class).hasArg().create());
+		options.addOption(OptionBuilder.withDescription("Seconds before an idle connection is closed, defaults to "
+				+ DEFAULT_IDLE_TIMEOUT).withLongOpt("idle-timeout").withType(Number.class).hasArg().create());
+		options.addOption(OptionBuilder.withDescription("Prepared statements cached per connection, defaults to "
+				+ DEFAULT_STATEMENT_CACHE).withLongOpt("statement-cache").withType(Number.class).hasArg().create());
+
+		try {
+			CommandLine commandLine = new BasicParser().parse(options, args);
+			if (commandLine.hasOption('h')) {
+				new HelpFormatter().printHelp("check_oracle_daemon", options, true);
+				return;
+			}
+
+			String bind = commandLine.hasOption('b') ? commandLine.getOptionValue('b') : DEFAULT_BIND;
+			int port = intOption(commandLine, "P", DEFAULT_PORT);
+			int threads = intOption(commandLine, "T", DEFAULT_THREADS);
+			final ConnectionPool pool = new ConnectionPool(intOption(commandLine, "pool-size", DEFAULT_POOL_SIZE),
+					intOption(commandLine, "idle-timeout", DEFAULT_IDLE_TIMEOUT),
+					intOption(commandLine, "statement-cache", DEFAULT_STATEMENT_CACHE));
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+
+				@Override
+				public void run() {
+					pool.close();
+					LOG.info("{} queries saved by coalescing identical collections", CheckAdapter.getCoalescedQueries());
+				}
+			});
+
+			new CheckDaemon(bind, port, threads, pool, CheckClient.readSecret(commandLine
+					.getOptionValue("secret-file"))).serve();
+		} catch (IllegalArgumentException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.exit(1);
+		} catch (ParseException e) {
+			System.err.println(e.getMessage());
+			new HelpFormatter().printHelp("check_oracle_daemon", options, true);
+			System.exit(1);
+		} catch (IOException e) {
+			LOG.error("Check daemon failed", e);
+			System.err.println("Error: Check daemon failed - " + e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Accepts requests until the server socket is closed.
+	 *
+	 * @throws IOException thrown when accepting a connection fails
+	 */
+	public void serve() throws IOException {
+		LOG.info("Listening on {}", serverSocket.getLocalSocketAddress());
+		try {
+			while (!serverSocket.isClosed()) {
+				final Socket socket = serverSocket.accept();
+				workers.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						handle(socket);
+					}
+				});
+			}
+		} finally {
+			workers.shutdown();
+		}
+	}
+
+	/**
+	 * Stops accepting requests.
+	 */
+	public void close() throws IOException {
+		serverSocket.close();
+	}
+
+	private void handle(Socket socket) {
+		try {
+			socket.setSoTimeout(READ_TIMEOUT);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+			byte[] presented = CheckClient.readString(in, MAX_ARG_BYTES).getBytes(CheckClient.UTF_8);
+			if (secret != null && !MessageDigest.isEqual(secret, presented)) {
+				LOG.warn("Rejected check request from {} with a wrong secret", socket.getRemoteSocketAddress());
+				return;
+			}
+			int count = in.readInt();
+			if (count < 0 || count > MAX_ARGS) {
+				throw new IOException("Invalid argument count " + count);
+			}
+			String[] args = new String[count];
+			for (int i = 0; i < count; i++) {
+				args[i] = CheckClient.readString(in, MAX_ARG_BYTES);
+			}
+
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			int code = CheckOracle.run(args, new PrintStream(buffer, true, "UTF-8"), pool);
+
+			out.writeInt(code);
+			CheckClient.writeString(out, buffer.toString("UTF-8"));
+			out.flush();
+		} catch (IOException e) {
+			LOG.warn("Failed to serve check request", e);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException muted) {
+			}
+		}
+	}
+
+	private static int intOption(CommandLine commandLine, String option, int defaultValue) throws ParseException {
+		return commandLine.hasOption(option) ? ((Number) commandLine.getParsedOptionValue(option)).intValue()
+				: defaultValue;
+	}
+}
@@ -1,69 +1,75 @@
-package org.icinga.plugin.oracle;
-
-import static org.icinga.plugin.oracle.NagiosStatus.UNKNOWN;
-
-import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-/**
- * Check to provide count of active sessions for the entire database
- * 
- * @author David Webb
- */
-public class CheckDatabaseSessions extends CheckAdapter {
-
-	private static final Logger logger = LoggerFactory.getLogger(CheckTablespace.class);
-
-	/**
-	 * Checks active session count for the given username.
-	 * 
-	 * @param connection SQL connection
-	 * @param warningThreshold warning threshold
-	 * @param crticalThreshold critical threshold
-	 * @param debug
-	 */
-	public static void performCheck(Connection connection, String warningThreshold, String crticalThreshold,
-			boolean debug) {
-
-		try {
-
-			String query = "SELECT COUNT(1) FROM v$session";
-
-			if (debug) {
-				logger.debug("Executing query " + query);
-			}
-
-			// execute query
-			Statement statement = connection.createStatement();
-			ResultSet rs = statement.executeQuery(query);
-
-			int activeSessions = 0;
-			int warning = Integer.valueOf(warningThreshold);
-			int crtical = Integer.valueOf(crticalThreshold);
-			if (rs != null && rs.next()) {
-				activeSessions = rs.getInt(1);
-				if (debug) {
-					logger.debug(String.format("Active Sessions: ", activeSessions));
-				}
-			}
-
-			rs.close();
-			statement.close();
-
-			String perfdata = "sessions=" + activeSessions + ";" + warning + ";" + crtical;
-			String output = "Active sessions " + activeSessions + "|" + perfdata;
-
-			checkLevel(activeSessions, warning, crtical, output);
-
-		} catch (SQLException e) {
-			System.err.println(e);
-			System.exit(UNKNOWN.getCode());
-		}
-
-	}
-}
+package org.icinga.plugin.oracle;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Check to provide count of active sessions for the entire database
+ * 
+ * @author David Webb
+ */
+public class CheckDatabaseSessions extends CheckAdapter {
+
+	private static final Logger logger = LoggerFactory.getLogger(CheckTablespace.class);
+
+	static final SingleFlight<String, Integer> COUNTS = new SingleFlight<String, Integer>();
+
+	/**
+	 * Checks active session count for the given username.
+	 * 
+	 * @param connection SQL connection
+	 * @param warningThreshold warning threshold
+	 * @param crticalThreshold critical threshold
+	 * @param debug
+	 * @return check result
+	 */
+	public static CheckResult performCheck(Connection connection, String warningThreshold, String crticalThreshold,
+			boolean debug) {
+
+		try {
+
+			Thresholds.Levels levels = countLevels(warningThreshold, crticalThreshold);
+			int activeSessions = count(connection, debug);
+
+			PerfData perfdata = new PerfData("sessions", activeSessions, "", levels.getWarning().getUpperBound(),
+					levels.getCritical().getUpperBound(), null, null, 0);
+			String output = "Active sessions " + activeSessions;
+
+			return checkLevel(activeSessions, levels, output, perfdata);
+
+		} catch (SQLException e) {
+			return CheckResult.unknown(e.toString());
+		}
+
+	}
+
+	/**
+	 * Counts the sessions of the database. Concurrent counts for the same database and user share one query.
+	 * 
+	 * @param connection SQL connection
+	 * @param debug flag to enable debug logging
+	 * @return session count
+	 * @throws SQLException thrown when the query fails
+	 */
+	public static int count(final Connection connection, final boolean debug) throws SQLException {
+		return COUNTS.execute(targetOf(connection), Deadline.of(connection), new Callable<Integer>() {
+
+			@Override
+			public Integer call() throws SQLException {
+				return query(connection, debug);
+			}
+		});
+	}
+
+	private static int query(Connection connection, boolean debug) throws SQLException {
+		int activeSessions = Rows.queryInt(connection, "SELECT COUNT(1) FROM v$session");
+		if (debug) {
+			logger.debug(String.format("Active Sessions: %d", activeSessions));
+		}
+		return activeSessions;
+	}
+}
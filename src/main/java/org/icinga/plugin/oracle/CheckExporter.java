@@ -0,0 +1,511 @@
+package org.icinga.plugin.oracle;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.icinga.plugin.oracle.CheckFanout.Target;
+import org.icinga.plugin.oracle.bean.TablespaceMetricBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP exporter serving the tablespace usage and session counts of the databases of an inventory in the OpenMetrics
+ * text format, for Prometheus to scrape.
+ * <p>
+ * Every database is collected at most once per cache TTL: scrapes within the TTL, and scrapes arriving while a
+ * collection is running, are answered from the last collection. With a latency budget the TTL of a database is
+ * stretched by its {@link LatencyBackoff} while its collections take longer. The exposition is written to the response
+ * as it is rendered.
+ *
+ * @author David Webb
+ */
+public class CheckExporter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(CheckExporter.class);
+
+	public static final int DEFAULT_PORT = 9161;
+	public static final String DEFAULT_BIND = "127.0.0.1";
+
+	private static final int DEFAULT_CACHE_TTL = 60;
+	private static final int DEFAULT_THREADS = 8;
+	private static final int DEFAULT_POOL_SIZE = 2;
+	private static final int DEFAULT_IDLE_TIMEOUT = 300;
+	private static final int DEFAULT_STATEMENT_CACHE = 10;
+	private static final double BYTES_PER_MB = 1024 * 1024;
+	private static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+	private final HttpServer server;
+	private final Map<String, Collector> collectors = new LinkedHashMap<String, Collector>();
+	private final ExecutorService workers;
+	private final ConnectionPool pool;
+	private final TablespaceStrategy strategy;
+	private final long ttlMillis;
+	private final long latencyBudgetMillis;
+	private final long maxTtlMillis;
+	private final int timeout;
+
+	/**
+	 * @param bind address to listen on
+	 * @param port port to listen on
+	 * @param targets databases to export
+	 * @param threads maximum number of databases collected concurrently
+	 * @param pool pool the collections borrow their connections from
+	 * @param strategy tablespace collection strategy
+	 * @param ttlSeconds seconds a collection is reused by later scrapes
+	 * @param latencyBudgetMillis collection latency above which the TTL is stretched, 0 to keep the TTL fixed
+	 * @param maxTtlSeconds longest stretched TTL
+	 * @param timeout seconds a collection may take
+	 * @throws IOException thrown when the server socket cannot be bound
+	 */
+	public CheckExporter(String bind, int port, List<Target> targets, int threads, ConnectionPool pool,
+			TablespaceStrategy strategy, int ttlSeconds, int latencyBudgetMillis, int maxTtlSeconds, int timeout)
+			throws IOException {
+		for (Target target : targets) {
+			collectors.put(target.getName(), new Collector(target));
+		}
+		this.workers = Executors.newFixedThreadPool(threads);
+		this.pool = pool;
+		this.strategy = strategy;
+		this.ttlMillis = ttlSeconds * 1000L;
+		this.latencyBudgetMillis = latencyBudgetMillis;
+		this.maxTtlMillis = maxTtlSeconds * 1000L;
+		this.timeout = timeout;
+		this.server = HttpServer.create(new InetSocketAddress(bind, port), 128);
+		this.server.createContext("/metrics", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					serveMetrics(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		this.server.setExecutor(Executors.newFixedThreadPool(threads));
+	}
+
+	@SuppressWarnings("static-access")
+	public static void main(String args[]) {
+		Options options = new Options();
+		options.addOption("h", "help", false, "Print help for this application");
+		options.addOption(OptionBuilder.isRequired(true)
+				.withDescription("Inventory file, one database per line: name host port instance user password")
+				.withLongOpt("inventory").withArgName("file").hasArg().create('i'));
+		options.addOption(OptionBuilder.withDescription("The address to listen on, defaults to " + DEFAULT_BIND)
+				.withLongOpt("bind").withType(String.class).hasArg().create('b'));
+		options.addOption(OptionBuilder.withDescription("The port to listen on, defaults to " + DEFAULT_PORT)
+				.withLongOpt("port").withType(Number.class).hasArg().create('P'));
+		options.addOption(OptionBuilder.withDescription("Number of databases collected concurrently, defaults to "
+				+ DEFAULT_THREADS).withLongOpt("threads").withType(Number.class).hasArg().create('T'));
+		options.addOption(OptionBuilder.withDescription("Seconds a collection is reused by later scrapes, defaults to "
+				+ DEFAULT_CACHE_TTL).withLongOpt("cache-ttl").withType(Number.class).hasArg().create());
+		options.addOption(OptionBuilder
+				.withDescription("Collection milliseconds above which the cache TTL is stretched in proportion")
+				.withLongOpt("latency-budget").withType(Number.class).hasArg().create());
+		options.addOption(OptionBuilder.withDescription("Longest stretched cache TTL in seconds, defaults to "
+				+ LatencyBackoff.DEFAULT_MAX_FACTOR + " times the TTL").withLongOpt("max-cache-ttl")
+				.withType(Number.class).hasArg().create());
+		options.addOption(OptionBuilder.withDescription("How tablespace usage is collected ["
+				+ TablespaceStrategy.names() + "], defaults to " + TablespaceStrategy.FREE_SPACE.getName())
+				.withLongOpt("tablespace-strategy").withType(String.class).hasArg().create());
+		options.addOption(OptionBuilder.withDescription("Seconds a collection may take, defaults to "
+				+ CheckOracle.DEFAULT_TIMEOUT).withLongOpt("timeout").withType(Number.class).hasArg().create());
+		options.addOption(OptionBuilder.withDescription("Maximum connections per database, defaults to "
+				+ DEFAULT_POOL_SIZE).withLongOpt("pool-size").withType(Number.class).hasArg().create());
+
+		try {
+			CommandLine commandLine = new BasicParser().parse(options, args);
+			if (commandLine.hasOption('h')) {
+				new HelpFormatter().printHelp("check_oracle_exporter", options, true);
+				return;
+			}
+
+			Class.forName("oracle.jdbc.driver.OracleDriver");
+
+			List<Target> targets = CheckFanout.loadInventory(commandLine.getOptionValue('i'));
+			String bind = commandLine.hasOption('b') ? commandLine.getOptionValue('b') : DEFAULT_BIND;
+			TablespaceStrategy strategy = commandLine.hasOption("tablespace-strategy") ? TablespaceStrategy
+					.fromName(commandLine.getOptionValue("tablespace-strategy")) : TablespaceStrategy.FREE_SPACE;
+			final ConnectionPool pool = new ConnectionPool(intOption(commandLine, "pool-size", DEFAULT_POOL_SIZE),
+					DEFAULT_IDLE_TIMEOUT, DEFAULT_STATEMENT_CACHE);
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+
+				@Override
+				public void run() {
+					pool.close();
+				}
+			});
+
+			int ttl = intOption(commandLine, "cache-ttl", DEFAULT_CACHE_TTL);
+			CheckExporter exporter = new CheckExporter(bind, intOption(commandLine, "P", DEFAULT_PORT), targets,
+					intOption(commandLine, "T", DEFAULT_THREADS), pool, strategy, ttl, intOption(commandLine,
+							"latency-budget", 0), intOption(commandLine, "max-cache-ttl", ttl
+							* LatencyBackoff.DEFAULT_MAX_FACTOR), intOption(commandLine, "timeout",
+							CheckOracle.DEFAULT_TIMEOUT));
+			exporter.start();
+		} catch (ParseException e) {
+			System.err.println(e.getMessage());
+			new HelpFormatter().printHelp("check_oracle_exporter", options, true);
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.exit(1);
+		} catch (ClassNotFoundException e) {
+			System.err.println("Error: Failed to load JDBC driver - " + e);
+			System.exit(1);
+		} catch (IOException e) {
+			LOG.error("Exporter failed", e);
+			System.err.println("Error: Exporter failed - " + e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Starts serving <code>/metrics</code>, optionally restricted to one database with <code>?target=name</code>.
+	 */
+	public void start() {
+		server.start();
+		LOG.info("Serving {} targets on {}", collectors.size(), server.getAddress());
+	}
+
+	/**
+	 * Stops the server and the collections
+	 */
+	public void stop() {
+		server.stop(0);
+		workers.shutdownNow();
+	}
+
+	private void serveMetrics(HttpExchange exchange) throws IOException {
+		if (!"GET".equals(exchange.getRequestMethod())) {
+			exchange.sendResponseHeaders(405, -1);
+			return;
+		}
+
+		List<Collector> selected = new ArrayList<Collector>(collectors.values());
+		String target = queryParameter(exchange.getRequestURI().getRawQuery(), "target");
+		if (target != null) {
+			Collector collector = collectors.get(target);
+			if (collector == null) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+			selected = Collections.singletonList(collector);
+		}
+
+		List<Future<Scrape>> futures = new ArrayList<Future<Scrape>>(selected.size());
+		for (final Collector collector : selected) {
+			futures.add(workers.submit(new Callable<Scrape>() {
+
+				@Override
+				public Scrape call() throws InterruptedException {
+					return collector.get();
+				}
+			}));
+		}
+		List<Scrape> scrapes = new ArrayList<Scrape>(futures.size());
+		try {
+			for (Future<Scrape> future : futures) {
+				scrapes.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			exchange.sendResponseHeaders(503, -1);
+			return;
+		} catch (ExecutionException e) {
+			LOG.error("Collection failed unexpectedly", e.getCause());
+			exchange.sendResponseHeaders(500, -1);
+			return;
+		}
+
+		exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+		// length 0 selects chunked encoding, the exposition is streamed
+		exchange.sendResponseHeaders(200, 0);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), "UTF-8"), 8192);
+		try {
+			write(writer, scrapes);
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static String queryParameter(String query, String name) throws IOException {
+		if (query == null) {
+			return null;
+		}
+		for (String parameter : query.split("&")) {
+			int equals = parameter.indexOf('=');
+			if (equals > 0 && parameter.substring(0, equals).equals(name)) {
+				return URLDecoder.decode(parameter.substring(equals + 1), "UTF-8");
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Writes the OpenMetrics exposition of the given collections. Samples of one metric family are kept together.
+	 *
+	 * @param writer response writer
+	 * @param scrapes collections to expose
+	 * @throws IOException thrown when the response cannot be written
+	 */
+	static void write(Writer writer, List<Scrape> scrapes) throws IOException {
+		family(writer, "oracle_up", null, "Whether the last collection of the database succeeded");
+		for (Scrape scrape : scrapes) {
+			sample(writer, "oracle_up", scrape.name, null, scrape.error == null ? 1 : 0);
+		}
+		family(writer, "oracle_collect_duration_seconds", "seconds", "Duration of the last collection");
+		for (Scrape scrape : scrapes) {
+			sample(writer, "oracle_collect_duration_seconds", scrape.name, null, scrape.durationMillis / 1000.0);
+		}
+		family(writer, "oracle_collect_age_seconds", "seconds", "Age of the collection served");
+		for (Scrape scrape : scrapes) {
+			sample(writer, "oracle_collect_age_seconds", scrape.name, null,
+					(System.currentTimeMillis() - scrape.collectedAt) / 1000.0);
+		}
+		family(writer, "oracle_collect_interval_seconds", "seconds", "Cache TTL after the last collection");
+		for (Scrape scrape : scrapes) {
+			sample(writer, "oracle_collect_interval_seconds", scrape.name, null, scrape.intervalMillis / 1000.0);
+		}
+		family(writer, "oracle_sessions", null, "Number of sessions of the database");
+		for (Scrape scrape : scrapes) {
+			if (scrape.error == null) {
+				sample(writer, "oracle_sessions", scrape.name, null, scrape.sessions);
+			}
+		}
+
+		family(writer, "oracle_tablespace_size_bytes", "bytes", "Size of the tablespace");
+		for (Scrape scrape : scrapes) {
+			for (int i = 0; i < scrape.readings.size(); i++) {
+				sample(writer, "oracle_tablespace_size_bytes", scrape.name, scrape.readings.getTablespaceName(i),
+						scrape.readings.getTotalCapacityMb(i) * BYTES_PER_MB);
+			}
+		}
+		family(writer, "oracle_tablespace_used_bytes", "bytes", "Used space of the tablespace");
+		for (Scrape scrape : scrapes) {
+			for (int i = 0; i < scrape.readings.size(); i++) {
+				sample(writer, "oracle_tablespace_used_bytes", scrape.name, scrape.readings.getTablespaceName(i),
+						scrape.readings.getUsedCapacityMb(i) * BYTES_PER_MB);
+			}
+		}
+		family(writer, "oracle_tablespace_free_bytes", "bytes", "Free space of the tablespace");
+		for (Scrape scrape : scrapes) {
+			for (int i = 0; i < scrape.readings.size(); i++) {
+				sample(writer, "oracle_tablespace_free_bytes", scrape.name, scrape.readings.getTablespaceName(i),
+						scrape.readings.getFreeCapacityMb(i) * BYTES_PER_MB);
+			}
+		}
+		family(writer, "oracle_tablespace_used_ratio", "ratio", "Used fraction of the tablespace");
+		for (Scrape scrape : scrapes) {
+			for (int i = 0; i < scrape.readings.size(); i++) {
+				sample(writer, "oracle_tablespace_used_ratio", scrape.name, scrape.readings.getTablespaceName(i),
+						scrape.readings.getUsedCapacityPct(i) / 100.0);
+			}
+		}
+		writer.write("# TYPE oracle_coalesced_queries counter\n");
+		writer.write("# HELP oracle_coalesced_queries Queries saved by joining an identical collection in flight\n");
+		writer.write("oracle_coalesced_queries_total " + CheckAdapter.getCoalescedQueries() + "\n");
+		writer.write("# EOF\n");
+	}
+
+	private static void family(Writer writer, String name, String unit, String help) throws IOException {
+		writer.write("# TYPE ");
+		writer.write(name);
+		writer.write(" gauge\n");
+		if (unit != null) {
+			writer.write("# UNIT ");
+			writer.write(name);
+			writer.write(' ');
+			writer.write(unit);
+			writer.write('\n');
+		}
+		writer.write("# HELP ");
+		writer.write(name);
+		writer.write(' ');
+		writer.write(help);
+		writer.write('\n');
+	}
+
+	private static void sample(Writer writer, String name, String target, String tablespace, double value)
+			throws IOException {
+		writer.write(name);
+		writer.write("{target=\"");
+		writeLabelValue(writer, target);
+		if (tablespace != null) {
+			writer.write("\",tablespace=\"");
+			writeLabelValue(writer, tablespace);
+		}
+		writer.write("\"} ");
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			writer.write(Long.toString((long) value));
+		} else {
+			writer.write(Double.toString(value));
+		}
+		writer.write('\n');
+	}
+
+	private static void writeLabelValue(Writer writer, String value) throws IOException {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"') {
+				writer.write('\\');
+				writer.write(c);
+			} else if (c == '\n') {
+				writer.write("\\n");
+			} else {
+				writer.write(c);
+			}
+		}
+	}
+
+	private static int intOption(CommandLine commandLine, String option, int defaultValue) throws ParseException {
+		return commandLine.hasOption(option) ? ((Number) commandLine.getParsedOptionValue(option)).intValue()
+				: defaultValue;
+	}
+
+	/**
+	 * Collects one database, reusing the last collection within the TTL.
+	 */
+	private final class Collector {
+
+		private final Target target;
+		private final LatencyBackoff backoff = new LatencyBackoff();
+		private Scrape last;
+		private boolean collecting;
+
+		Collector(Target target) {
+			this.target = target;
+		}
+
+		/**
+		 * Returns the last collection if it is fresh, otherwise collects. Scrapes arriving during a collection are
+		 * answered from the last collection, only the first collection is waited for.
+		 */
+		Scrape get() throws InterruptedException {
+			synchronized (this) {
+				while (true) {
+					long now = System.currentTimeMillis();
+					if (last != null && now - last.collectedAt < last.intervalMillis && now >= last.collectedAt) {
+						return last;
+					}
+					if (!collecting) {
+						collecting = true;
+						break;
+					}
+					if (last != null) {
+						return last;
+					}
+					wait();
+				}
+			}
+			Scrape scrape = null;
+			try {
+				scrape = collect();
+				return scrape;
+			} finally {
+				synchronized (this) {
+					if (scrape != null) {
+						last = scrape;
+					}
+					collecting = false;
+					notifyAll();
+				}
+			}
+		}
+
+		private Scrape collect() {
+			long start = System.nanoTime();
+			Deadline deadline = new Deadline(timeout);
+			Connection connection = null;
+			boolean reusable = false;
+			try {
+				deadline.enter(Deadline.CONNECT);
+				connection = pool.borrow(target.getHost(), Integer.valueOf(target.getPort()), target.getInstance(),
+						target.getUser(), target.getPassword(), deadline.remainingMillis());
+				Connection guarded = deadline.guard(connection);
+				TablespaceMetricBatch readings = CheckTablespaces.collect(guarded, strategy, null, false);
+				int sessions = CheckDatabaseSessions.count(guarded, false);
+				reusable = true;
+				return scrape(start, readings, sessions, null);
+			} catch (SQLException e) {
+				String error = deadline.isExpired() ? deadline.timeoutResult().getMessage() : e.toString();
+				LOG.warn("Failed to collect {}: {}", target.getName(), error);
+				return scrape(start, TablespaceMetricBatch.empty(), 0, error);
+			} catch (RuntimeException e) {
+				// recorded for this database only, the other targets of the scrape are still served
+				LOG.warn("Failed to collect " + target.getName(), e);
+				return scrape(start, TablespaceMetricBatch.empty(), 0, e.toString());
+			} finally {
+				deadline.stop();
+				if (connection != null) {
+					pool.release(connection, reusable && !deadline.isExpired());
+				}
+			}
+		}
+
+		private Scrape scrape(long start, TablespaceMetricBatch readings, int sessions, String error) {
+			long durationMillis = (System.nanoTime() - start) / 1000000L;
+			// failed collections count as well, a timeout is the clearest sign of load
+			backoff.record(durationMillis);
+			long intervalMillis = backoff.stretch(ttlMillis, latencyBudgetMillis, maxTtlMillis);
+			if (intervalMillis > ttlMillis) {
+				LOG.info("Collecting {} every {}s, latency {}ms", new Object[] { target.getName(),
+						intervalMillis / 1000, (long) backoff.getLatencyMillis() });
+			}
+			return new Scrape(target.getName(), System.currentTimeMillis(), durationMillis, intervalMillis, readings,
+					sessions, error);
+		}
+	}
+
+	/**
+	 * Result of collecting one database.
+	 */
+	static final class Scrape {
+
+		private final String name;
+		private final long collectedAt;
+		private final long durationMillis;
+		private final long intervalMillis;
+		private final TablespaceMetricBatch readings;
+		private final int sessions;
+		private final String error;
+
+		Scrape(String name, long collectedAt, long durationMillis, long intervalMillis,
+				TablespaceMetricBatch readings, int sessions, String error) {
+			this.name = name;
+			this.collectedAt = collectedAt;
+			this.durationMillis = durationMillis;
+			this.intervalMillis = intervalMillis;
+			this.readings = readings;
+			this.sessions = sessions;
+			this.error = error;
+		}
+	}
+}
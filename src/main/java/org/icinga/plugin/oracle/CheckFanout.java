@@ -0,0 +1,307 @@
+package org.icinga.plugin.oracle;
+
+import static org.icinga.plugin.oracle.NagiosStatus.UNKNOWN;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Runs the same checks against every database of an inventory file in parallel. Concurrency is bounded globally and
+ * per host, and the result of each target is written as soon as it finishes, so a slow listener only delays its own
+ * result.
+ * <p>
+ * The inventory holds one target per line: <code>name host port instance user password</code>. Blank lines and lines
+ * starting with '#' are ignored.
+ *
+ * @author David Webb
+ */
+public class CheckFanout {
+
+	private static final int DEFAULT_PARALLEL = 32;
+	private static final int DEFAULT_PER_HOST = 4;
+
+	private final List<Target> targets;
+	private final String[] checkArgs;
+	private final int parallel;
+	private final int perHost;
+	private final String passiveService;
+
+	/**
+	 * @param targets databases to check
+	 * @param checkArgs check options passed to every target, e.g. <code>-t ALL -W 85 -C 95</code>
+	 * @param parallel maximum number of checks running at once
+	 * @param perHost maximum number of checks running at once against one host
+	 * @param passiveService service name for external command output, or null for plain output
+	 */
+	public CheckFanout(List<Target> targets, String[] checkArgs, int parallel, int perHost, String passiveService) {
+		this.targets = targets;
+		this.checkArgs = checkArgs;
+		this.parallel = parallel;
+		this.perHost = perHost;
+		this.passiveService = passiveService;
+	}
+
+	@SuppressWarnings("static-access")
+	public static void main(String args[]) {
+		Options options = new Options();
+		options.addOption("h", "help", false, "Print help for this application");
+		options.addOption(OptionBuilder.isRequired(true).withDescription("The inventory file listing the targets")
+				.withLongOpt("inventory").withArgName("file").withType(String.class).hasArg().create('i'));
+		options.addOption(OptionBuilder.isRequired(true)
+				.withDescription("The check options run against every target, e.g. \"-t ALL -W 85 -C 95\" or "
+						+ "\"-b tbs=-t ALL;sessions=-s ALL -W 400 -C 500\"")
+				.withLongOpt("check").withType(String.class).hasArg().create('c'));
+		options.addOption(OptionBuilder.withDescription("Maximum number of checks running at once, defaults to "
+				+ DEFAULT_PARALLEL).withLongOpt("parallel").withType(Number.class).hasArg().create('T'));
+		options.addOption(OptionBuilder.withDescription("Maximum number of checks running at once per host, defaults to "
+				+ DEFAULT_PER_HOST).withLongOpt("per-host").withType(Number.class).hasArg().create());
+		options.addOption(OptionBuilder
+				.withDescription("Write PROCESS_SERVICE_CHECK_RESULT external commands for the given service name")
+				.withLongOpt("passive").withType(String.class).hasArg().create());
+
+		try {
+			CommandLine commandLine = new BasicParser().parse(options, args);
+			if (commandLine.hasOption('h')) {
+				new HelpFormatter().printHelp("check_oracle_fanout", options, true);
+				return;
+			}
+
+			List<Target> targets = loadInventory(commandLine.getOptionValue('i'));
+			String[] checkArgs = splitCheckArgs(commandLine.getOptionValue('c'));
+			int parallel = commandLine.hasOption('T') ? ((Number) commandLine.getParsedOptionValue("T")).intValue()
+					: DEFAULT_PARALLEL;
+			int perHost = commandLine.hasOption("per-host") ? ((Number) commandLine.getParsedOptionValue("per-host"))
+					.intValue() : DEFAULT_PER_HOST;
+
+			NagiosStatus worst = new CheckFanout(targets, checkArgs, parallel, perHost,
+					commandLine.getOptionValue("passive")).execute(System.out);
+			System.exit(worst.getCode());
+		} catch (ParseException e) {
+			System.out.println(e.getMessage());
+			new HelpFormatter().printHelp("check_oracle_fanout", options, true);
+			System.exit(UNKNOWN.getCode());
+		} catch (IllegalArgumentException e) {
+			System.out.println(String.format("UNKNOWN - %s", e.getMessage()));
+			System.exit(UNKNOWN.getCode());
+		}
+	}
+
+	/**
+	 * Runs the checks against all targets and writes one line per target as it finishes.
+	 *
+	 * @param out stream receiving the results
+	 * @return worst state of all targets
+	 */
+	public NagiosStatus execute(PrintStream out) {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallel, Math.max(1, targets.size())));
+		CompletionService<Result> completion = new ExecutorCompletionService<Result>(executor);
+
+		LinkedList<Target> pending = new LinkedList<Target>(targets);
+		Map<String, Integer> runningPerHost = new HashMap<String, Integer>();
+		Map<Future<Result>, Target> submitted = new HashMap<Future<Result>, Target>();
+		int running = 0;
+		NagiosStatus worst = NagiosStatus.OK;
+
+		try {
+			while (!pending.isEmpty() || running > 0) {
+				// start every pending target that fits into the global and the per-host limit
+				Iterator<Target> iterator = pending.iterator();
+				while (running < parallel && iterator.hasNext()) {
+					final Target target = iterator.next();
+					Integer onHost = runningPerHost.get(target.host);
+					if (onHost != null && onHost >= perHost) {
+						continue;
+					}
+					iterator.remove();
+					runningPerHost.put(target.host, onHost == null ? 1 : onHost + 1);
+					running++;
+					submitted.put(completion.submit(new Callable<Result>() {
+
+						@Override
+						public Result call() {
+							return check(target);
+						}
+					}), target);
+				}
+
+				Future<Result> done = completion.take();
+				Target target = submitted.remove(done);
+				Result result;
+				try {
+					result = done.get();
+				} catch (ExecutionException e) {
+					// one broken target must not cost the results of the others
+					result = new Result(target, UNKNOWN.getCode(), CheckResult.unknown(
+							"Failed to execute check " + e.getCause()).toString());
+				}
+				running--;
+				runningPerHost.put(result.target.host, runningPerHost.get(result.target.host) - 1);
+				if (result.code > worst.getCode()) {
+					worst = result.code > UNKNOWN.getCode() ? UNKNOWN : NagiosStatus.values()[result.code];
+				}
+				write(out, result);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			worst = UNKNOWN;
+		} finally {
+			executor.shutdownNow();
+		}
+		return worst;
+	}
+
+	private Result check(Target target) {
+		List<String> args = new ArrayList<String>(Arrays.asList("-H", target.host, "-P", target.port, "-I",
+				target.instance, "-u", target.user, "-p", target.password));
+		args.addAll(Arrays.asList(checkArgs));
+
+		CheckResult result = CheckOracle.check(args.toArray(new String[args.size()]), null);
+		return new Result(target, result.getStatus().getCode(), result.toString());
+	}
+
+	private void write(PrintStream out, Result result) {
+		String output = result.output.trim().replace("\n", "\\n");
+		if (passiveService != null) {
+			out.println(String.format("[%d] PROCESS_SERVICE_CHECK_RESULT;%s;%s;%d;%s", System.currentTimeMillis() / 1000,
+					result.target.name, passiveService, result.code, output));
+		} else {
+			out.println(String.format("%s\t%d\t%s", result.target.name, result.code, output));
+		}
+		out.flush();
+	}
+
+	/**
+	 * Reads the targets of an inventory file.
+	 *
+	 * @param file inventory file
+	 * @return targets
+	 */
+	public static List<Target> loadInventory(String file) {
+		List<Target> targets = new ArrayList<Target>();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				if (fields.length != 6) {
+					throw new IllegalArgumentException(String.format(
+							"Inventory line %d must read: name host port instance user password", lineNumber));
+				}
+				targets.add(new Target(fields[0], fields[1], fields[2], fields[3], fields[4], fields[5]));
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException(String.format("Unable to read inventory [%s]: %s", file, e.getMessage()));
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException muted) {
+				}
+			}
+		}
+		return targets;
+	}
+
+	/**
+	 * Splits the check options on whitespace, keeping the value of -b in one piece.
+	 */
+	private static String[] splitCheckArgs(String check) {
+		String trimmed = check.trim();
+		for (String batchOption : new String[] { "-b ", "--batch " }) {
+			if (trimmed.startsWith(batchOption)) {
+				return new String[] { batchOption.trim(), trimmed.substring(batchOption.length()).trim() };
+			}
+		}
+		return trimmed.split("\\s+");
+	}
+
+	/**
+	 * A database of the inventory.
+	 */
+	public static final class Target {
+
+		private final String name;
+		private final String host;
+		private final String port;
+		private final String instance;
+		private final String user;
+		private final String password;
+
+		public Target(String name, String host, String port, String instance, String user, String password) {
+			this.name = name;
+			this.host = host;
+			this.port = port;
+			this.instance = instance;
+			this.user = user;
+			this.password = password;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public String getPort() {
+			return port;
+		}
+
+		public String getInstance() {
+			return instance;
+		}
+
+		public String getUser() {
+			return user;
+		}
+
+		public String getPassword() {
+			return password;
+		}
+	}
+
+	private static final class Result {
+
+		private final Target target;
+		private final int code;
+		private final String output;
+
+		Result(Target target, int code, String output) {
+			this.target = target;
+			this.code = code;
+			this.output = output;
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package org.icinga.plugin.oracle;
+
+import static org.icinga.plugin.oracle.NagiosStatus.CRITICAL;
+import static org.icinga.plugin.oracle.NagiosStatus.OK;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Liveness check of the TNS listener that does not log on: sends the listener a TNS connect packet with the
+ * <code>(COMMAND=ping)</code> connect data, as <code>tnsping</code> does, and reads its answer. The listener answers by
+ * itself, so no server process and no session are created, and the JDBC driver is not even loaded.
+ * <p>
+ * The listener answers a ping with a refuse packet carrying <code>(DESCRIPTION=(TMP=)(VSNNUM=..)(ERR=0)..)</code>;
+ * <code>ERR=0</code> means the listener is up. The round-trip time of the ping is reported as <code>time</code>
+ * perfdata and checked against the thresholds in milliseconds.
+ *
+ * @author David Webb
+ */
+public class CheckListener extends CheckAdapter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(CheckListener.class);
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private static final byte[] PING = connectPacket("(CONNECT_DATA=(COMMAND=ping))");
+
+	private static final int HEADER_LENGTH = 8;
+	private static final int TYPE_CONNECT = 1;
+	private static final int TYPE_ACCEPT = 2;
+	private static final int TYPE_REFUSE = 4;
+	private static final int TYPE_REDIRECT = 5;
+	private static final int TYPE_RESEND = 11;
+
+	/**
+	 * Offset of the connect data in the connect packet, the fixed connect fields are padded up to it
+	 */
+	private static final int CONNECT_DATA_OFFSET = 58;
+
+	private static final Pattern ERR = Pattern.compile("\\(ERR=(\\d+)\\)");
+	private static final Pattern VSNNUM = Pattern.compile("\\(VSNNUM=(\\d+)\\)");
+	private static final Pattern ALIAS = Pattern.compile("\\(ALIAS=([^)]*)\\)");
+
+	/**
+	 * Pings the listener
+	 *
+	 * @param hostname listener host
+	 * @param port listener port
+	 * @param deadline time budget of the check, bounds connecting and reading
+	 * @param warningThreshold warning threshold of the round-trip time in milliseconds, may be null
+	 * @param criticalThreshold critical threshold of the round-trip time in milliseconds, may be null
+	 * @return check result
+	 */
+	public static CheckResult performCheck(String hostname, int port, Deadline deadline, String warningThreshold,
+			String criticalThreshold) {
+
+		Socket socket = new Socket();
+		try {
+
+			long start = System.nanoTime();
+			socket.connect(new InetSocketAddress(hostname, port), timeout(deadline));
+			socket.setSoTimeout(timeout(deadline));
+			socket.setTcpNoDelay(true);
+
+			String answer = ping(socket);
+			long millis = (System.nanoTime() - start) / 1000000L;
+
+			Matcher err = ERR.matcher(answer);
+			if (!err.find()) {
+				return new CheckResult(CRITICAL, "Unexpected listener answer " + answer);
+			}
+			if (!err.group(1).equals("0")) {
+				return new CheckResult(CRITICAL, String.format("Listener refused the ping with TNS-%05d", Integer
+						.valueOf(err.group(1))));
+			}
+
+			StringBuilder output = new StringBuilder("Listener");
+			Matcher alias = ALIAS.matcher(answer);
+			if (alias.find()) {
+				output.append(' ').append(alias.group(1));
+			}
+			output.append(" answered in ").append(millis).append(" ms");
+			Matcher version = VSNNUM.matcher(answer);
+			if (version.find()) {
+				output.append(" (").append(version(Long.parseLong(version.group(1)))).append(')');
+			}
+
+			if (warningThreshold == null || criticalThreshold == null) {
+				return new CheckResult(OK, output.toString(), new PerfData("time", millis, "ms", null, null, 0d,
+						null, 0));
+			}
+			Thresholds.Levels levels = countLevels(warningThreshold, criticalThreshold);
+			return checkLevel(millis, levels, output.toString(), new PerfData("time", millis, "ms", levels
+					.getWarning().getUpperBound(), levels.getCritical().getUpperBound(), 0d, null, 0));
+
+		} catch (SocketTimeoutException e) {
+			return deadline.timeoutResult();
+		} catch (IOException e) {
+			LOG.error("Listener ping failed", e);
+			if (deadline.isExpired()) {
+				return deadline.timeoutResult();
+			}
+			return new CheckResult(CRITICAL, "Unable to reach listener - " + e.getMessage());
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException muted) {
+			}
+		}
+	}
+
+	/**
+	 * Sends the ping and returns the text of the answer
+	 */
+	private static String ping(Socket socket) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		out.write(PING);
+		out.flush();
+
+		byte[] packet = readPacket(in);
+		if ((packet[4] & 0xff) == TYPE_RESEND) {
+			// some listeners ask for the connect packet again
+			out.write(PING);
+			out.flush();
+			packet = readPacket(in);
+		}
+
+		switch (packet[4] & 0xff) {
+		case TYPE_REFUSE:
+			// user reason, system reason, data length, data
+			return text(packet, HEADER_LENGTH + 4, unsignedShort(packet, HEADER_LENGTH + 2));
+		case TYPE_REDIRECT:
+			// data length, data
+			return text(packet, HEADER_LENGTH + 2, unsignedShort(packet, HEADER_LENGTH));
+		case TYPE_ACCEPT:
+			// data length and offset follow the version, options, SDU, TDU and byte order fields
+			return text(packet, unsignedShort(packet, HEADER_LENGTH + 12), unsignedShort(packet, HEADER_LENGTH + 10));
+		default:
+			throw new IOException("Unexpected TNS packet type " + (packet[4] & 0xff));
+		}
+	}
+
+	private static byte[] readPacket(DataInputStream in) throws IOException {
+		byte[] header = new byte[HEADER_LENGTH];
+		in.readFully(header);
+		int length = unsignedShort(header, 0);
+		if (length < HEADER_LENGTH) {
+			throw new EOFException("Invalid TNS packet length " + length);
+		}
+		byte[] packet = new byte[length];
+		System.arraycopy(header, 0, packet, 0, HEADER_LENGTH);
+		in.readFully(packet, HEADER_LENGTH, length - HEADER_LENGTH);
+		return packet;
+	}
+
+	/**
+	 * Builds a TNS connect packet: the 8 byte header followed by the connect fields and the connect data
+	 */
+	static byte[] connectPacket(String connectData) {
+		byte[] data = connectData.getBytes(ASCII);
+		byte[] packet = new byte[CONNECT_DATA_OFFSET + data.length];
+		putShort(packet, 0, packet.length);
+		packet[4] = TYPE_CONNECT;
+		putShort(packet, 8, 0x0136); // version 310
+		putShort(packet, 10, 0x012c); // lowest compatible version 300
+		putShort(packet, 14, 0x0800); // session data unit
+		putShort(packet, 16, 0x7fff); // transport data unit
+		putShort(packet, 18, 0x7f08); // protocol characteristics
+		putShort(packet, 22, 0x0001); // byte order
+		putShort(packet, 24, data.length);
+		putShort(packet, 26, CONNECT_DATA_OFFSET);
+		System.arraycopy(data, 0, packet, CONNECT_DATA_OFFSET, data.length);
+		return packet;
+	}
+
+	/**
+	 * Decodes the VSNNUM of the listener, e.g. 318767104 to 19.0.0.0.0
+	 */
+	static String version(long vsnnum) {
+		return String.format("%d.%d.%d.%d.%d", (vsnnum >> 24) & 0xff, (vsnnum >> 20) & 0xf, (vsnnum >> 12) & 0xff,
+				(vsnnum >> 8) & 0xf, vsnnum & 0xff);
+	}
+
+	private static int timeout(Deadline deadline) {
+		// 0 would mean no timeout at all
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, deadline.remainingMillis()));
+	}
+
+	private static String text(byte[] packet, int offset, int length) throws IOException {
+		if (offset < HEADER_LENGTH || offset + length > packet.length) {
+			throw new EOFException("Truncated TNS packet");
+		}
+		return new String(packet, offset, length, ASCII);
+	}
+
+	private static int unsignedShort(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff);
+	}
+
+	private static void putShort(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >> 8);
+		bytes[offset + 1] = (byte) value;
+	}
+}
@@ -4,9 +4,20 @@ import static org.icinga.plugin.oracle.NagiosStatus.CRITICAL;
 import static org.icinga.plugin.oracle.NagiosStatus.OK;
 import static org.icinga.plugin.oracle.NagiosStatus.UNKNOWN;
 
+import java.io.File;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.Driver;
 import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import oracle.jdbc.OracleConnection;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -27,70 +38,294 @@ import org.slf4j.LoggerFactory;
 public class CheckOracle {
 
 	private static final Logger LOG = LoggerFactory.getLogger(CheckOracle.class);
+	private static final Logger TIMING = LoggerFactory.getLogger("org.icinga.plugin.oracle.timing");
+	private static volatile Driver oracleDriver;
+	private final ConnectionPool pool;
 	private boolean debug = false;
+	private TablespaceStrategy tablespaceStrategy = TablespaceStrategy.FREE_SPACE;
+	private TablespaceCache tablespaceCache = null;
+	private TablespaceHistory tablespaceHistory = null;
+	private String target = null;
+	private long jvmStartupNanos = -1;
+
+	/**
+	 * Seconds a check may take from logon to the last fetched row when no --timeout is given
+	 */
+	public static final int DEFAULT_TIMEOUT = 60;
+
+	/**
+	 * Days of tablespace history kept when no --history-retention is given
+	 */
+	public static final int DEFAULT_HISTORY_RETENTION = 35;
+
+	/**
+	 * @param pool pool to borrow connections from, or null to open and close a connection per check
+	 */
+	public CheckOracle(ConnectionPool pool) {
+		this.pool = pool;
+	}
 
 	public static void main(String args[]) {
-		CheckOracle checkOracle = new CheckOracle();
-		checkOracle.parseOptions(args);
+		CheckOracle checkOracle = new CheckOracle(null);
+		checkOracle.jvmStartupNanos = TimeUnit.MILLISECONDS.toNanos(ManagementFactory.getRuntimeMXBean().getUptime());
+		System.exit(run(checkOracle, args, System.out));
+	}
+
+	/**
+	 * Runs a single check in-process, writing the plugin output to the given stream.
+	 * 
+	 * @param args command line arguments
+	 * @param out stream receiving the plugin output
+	 * @return nagios exit code
+	 */
+	public static int run(String[] args, PrintStream out) {
+		return run(args, out, null);
 	}
 
+	/**
+	 * Runs a single check in-process, writing the plugin output to the given stream.
+	 * 
+	 * @param args command line arguments
+	 * @param out stream receiving the plugin output
+	 * @param pool pool to borrow the connection from, may be null
+	 * @return nagios exit code
+	 */
+	public static int run(String[] args, PrintStream out, ConnectionPool pool) {
+		return run(new CheckOracle(pool), args, out);
+	}
+
+	private static int run(CheckOracle checkOracle, String[] args, PrintStream out) {
+		Options options = checkOracle.createOptions();
+		CommandLine commandLine;
+		try {
+			commandLine = new BasicParser().parse(options, args);
+		} catch (ParseException e) {
+			printHelp(options, out);
+			return UNKNOWN.getCode();
+		}
+
+		if (commandLine.hasOption('h')) {
+			printHelp(options, out);
+		}
+
+		CheckResult result = checkOracle.check(commandLine);
+		out.println(result);
+		return result.getStatus().getCode();
+	}
+
+	/**
+	 * Runs a single check in-process.
+	 * 
+	 * @param args command line arguments
+	 * @param pool pool to borrow the connection from, may be null
+	 * @return check result
+	 */
+	public static CheckResult check(String[] args, ConnectionPool pool) {
+		CheckOracle checkOracle = new CheckOracle(pool);
+		try {
+			return checkOracle.check(new BasicParser().parse(checkOracle.createOptions(), args));
+		} catch (ParseException e) {
+			return CheckResult.unknown("Invalid arguments: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Creates the command line options
+	 * 
+	 * @return command line options
+	 */
 	@SuppressWarnings("static-access")
-	private void parseOptions(String[] args) {
-		Options options = null;
+	Options createOptions() {
+		Options options = new Options();
+		options.addOption("h", "help", false, "Print help for this application");
+		options.addOption(OptionBuilder.withDescription("Option to enable debugging [true|false]").withLongOpt("debug")
+				.withType(Boolean.class).hasArg().create('d'));
+		options.addOption("D", false, "Enable output of Nagios performance data");
+		options.addOption(OptionBuilder.isRequired(true).withDescription("The database hostname to connect to")
+				.withLongOpt("host").withType(String.class).hasArg().create('H'));
+		options.addOption(OptionBuilder.isRequired(true).withDescription("The database listener port").withLongOpt("port")
+				.withType(Number.class).hasArg().create("P"));
+		options.addOption(OptionBuilder.isRequired(true).withDescription("The database instance name")
+				.withLongOpt("instance").withType(String.class).hasArg().create("I"));
+		options.addOption(OptionBuilder.isRequired(true).withDescription("The username you want to login as")
+				.withLongOpt("user").withType(String.class).hasArg().create("u"));
+		options.addOption(OptionBuilder.isRequired(true).withDescription("The password for the user")
+				.withLongOpt("password").withType(String.class).hasArg().create("p"));
+		options.addOption(OptionBuilder.isRequired(false).withDescription("The warning threshold you want to set")
+				.withType(String.class).hasArg().create("W"));
+		options.addOption(OptionBuilder.isRequired(false).withDescription("The critical threshold you want to set")
+				.withType(String.class).hasArg().create("C"));
+		options.addOption(OptionBuilder.isRequired(false)
+				.withDescription("How tablespace usage is collected [" + TablespaceStrategy.names()
+						+ "], defaults to " + TablespaceStrategy.FREE_SPACE.getName())
+				.withLongOpt("tablespace-strategy").withType(String.class).hasArg().create());
+		options.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Thresholds of single tablespaces, with * and ? as wildcards, e.g. "
+						+ "UNDO*=98/99,ARCH=~:9000MB/~:9500MB").withLongOpt("tablespace-thresholds")
+				.withType(String.class).hasArg().create());
+		options.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Seconds a full tablespace scan is reused by the tablespace checks of the database")
+				.withLongOpt("cache-ttl").withType(Number.class).hasArg().create());
+		options.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Directory sharing cached tablespace scans between check processes")
+				.withLongOpt("cache-dir").withType(String.class).hasArg().create());
+		options.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Name only the N most severe tablespaces of -t ALL and count the other violations")
+				.withLongOpt("top").withType(Number.class).hasArg().create());
+		options.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Tablespaces of -t ALL with perfdata [all,top,changed], defaults to top with --top")
+				.withLongOpt("perfdata").withType(String.class).hasArg().create());
+		options.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Group the sessions of -s by the given columns ["
+						+ CheckSessionBreakdown.COLUMNS.toString().replaceAll("[\\[\\] ]", "")
+						+ "], e.g. username,status").withLongOpt("breakdown").withType(String.class).hasArg().create());
+		options.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Thresholds of single session groups, e.g. APP=50/80,BATCH/ACTIVE=20/30")
+				.withLongOpt("group-thresholds").withType(String.class).hasArg().create());
+		options.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Count the sessions of every RAC instance from gv$session with -s")
+				.withLongOpt("rac").create());
+		options.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Warning threshold of the RAC cluster session total")
+				.withLongOpt("cluster-warning").withType(String.class).hasArg().create());
+		options.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Critical threshold of the RAC cluster session total")
+				.withLongOpt("cluster-critical").withType(String.class).hasArg().create());
+		options.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Scan milliseconds above which the cache TTL is stretched in proportion")
+				.withLongOpt("latency-budget").withType(Number.class).hasArg().create());
+		options.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Longest stretched cache TTL in seconds, defaults to " + LatencyBackoff.DEFAULT_MAX_FACTOR
+						+ " times the TTL").withLongOpt("max-cache-ttl").withType(Number.class).hasArg().create());
+		options.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Seconds between full tablespace scans, expired scans are updated with the "
+						+ "tablespaces whose datafiles changed in between")
+				.withLongOpt("full-scan-interval").withType(Number.class).hasArg().create());
+		options.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Directory keeping the tablespace history used to forecast when tablespaces fill up")
+				.withLongOpt("history-dir").withType(String.class).hasArg().create());
+		options.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Days of tablespace history kept, defaults to " + DEFAULT_HISTORY_RETENTION)
+				.withLongOpt("history-retention").withType(Number.class).hasArg().create());
+		options.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Warn when a tablespace is forecast to fill up within the given hours")
+				.withLongOpt("fill-warning").withType(Number.class).hasArg().create());
+		options.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Critical when a tablespace is forecast to fill up within the given hours")
+				.withLongOpt("fill-critical").withType(Number.class).hasArg().create());
+		options.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Seconds the check may take to connect, execute and fetch, defaults to "
+						+ DEFAULT_TIMEOUT).withLongOpt("timeout").withType(Number.class).hasArg().create());
+
+		OptionGroup checkOptionGroup = new OptionGroup();
+		checkOptionGroup.addOption(
+				OptionBuilder.isRequired(false).withDescription("The tablespace to check, pass ALL for all tablespaces")
+						.withLongOpt("tablespace").withType(String.class).hasArg().create("t"));
+		checkOptionGroup.addOption(OptionBuilder.isRequired(false)
+				.withDescription("The username for which session count to check, pass ALL to count all sessions")
+				.withLongOpt("sessions").withType(String.class).hasArg().create("s"));
+		checkOptionGroup.addOption(
+				OptionBuilder.isRequired(false).withDescription("Check that a connection can be made to the database.")
+						.withLongOpt("tns-listener-check").create("tns"));
+		checkOptionGroup.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Ping the TNS listener without logging on. -W and -C are milliseconds")
+				.withLongOpt("tns-ping").create("ping"));
+		checkOptionGroup.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Run several checks over one connection, separated by ';', e.g. "
+						+ "\"tbs=-t ALL -W 85 -C 95;sessions=-s ALL\". -W and -C default to the global thresholds")
+				.withLongOpt("batch").withType(String.class).hasArg().create("b"));
+		checkOptionGroup.addOption(OptionBuilder.isRequired(false)
+				.withDescription("Run the checks listed in the given file over one connection, one per line")
+				.withLongOpt("batch-file").withType(String.class).hasArg().create("B"));
+		options.addOptionGroup(checkOptionGroup);
+
+		return options;
+	}
+
+	/**
+	 * Runs the check selected by the parsed command line
+	 * 
+	 * @param commandLine parsed command line
+	 * @return check result
+	 */
+	CheckResult check(CommandLine commandLine) {
 		try {
-			options = new Options();
-			options.addOption("h", "help", false, "Print help for this application");
-			options.addOption(OptionBuilder.withDescription("Option to enable debugging [true|false]").withLongOpt("debug")
-					.withType(Boolean.class).hasArg().create('d'));
-			options.addOption("D", false, "Enable output of Nagios performance data");
-			options.addOption(OptionBuilder.isRequired(true).withDescription("The database hostname to connect to")
-					.withLongOpt("host").withType(String.class).hasArg().create('H'));
-			options.addOption(OptionBuilder.isRequired(true).withDescription("The database listener port").withLongOpt("port")
-					.withType(Number.class).hasArg().create("P"));
-			options.addOption(OptionBuilder.isRequired(true).withDescription("The database instance name")
-					.withLongOpt("instance").withType(String.class).hasArg().create("I"));
-			options.addOption(OptionBuilder.isRequired(true).withDescription("The username you want to login as")
-					.withLongOpt("user").withType(String.class).hasArg().create("u"));
-			options.addOption(OptionBuilder.isRequired(true).withDescription("The password for the user")
-					.withLongOpt("password").withType(String.class).hasArg().create("p"));
-			options.addOption(OptionBuilder.isRequired(false).withDescription("The warning threshold you want to set")
-					.withType(String.class).hasArg().create("W"));
-			options.addOption(OptionBuilder.isRequired(false).withDescription("The critical threshold you want to set")
-					.withType(String.class).hasArg().create("C"));
-
-			OptionGroup checkOptionGroup = new OptionGroup();
-			checkOptionGroup.addOption(
-					OptionBuilder.isRequired(false).withDescription("The tablespace to check, pass ALL for all tablespaces")
-							.withLongOpt("tablespace").withType(String.class).hasArg().create("t"));
-			checkOptionGroup.addOption(OptionBuilder.isRequired(false)
-					.withDescription("The username for which session count to check, pass ALL to count all sessions")
-					.withLongOpt("sessions").withType(String.class).hasArg().create("s"));
-			checkOptionGroup.addOption(
-					OptionBuilder.isRequired(false).withDescription("Check that a connection can be made to the database.")
-							.withLongOpt("tns-listener-check").create("tns"));
-			options.addOptionGroup(checkOptionGroup);
-
-			BasicParser parser = new BasicParser();
-			CommandLine commandLine = parser.parse(options, args);
-
-			if (commandLine.hasOption('h')) {
-				printHelp(options);
-			}
 			if (commandLine.hasOption('d')) {
 				debug = true;
 			}
+			if (commandLine.hasOption("tablespace-strategy")) {
+				tablespaceStrategy = TablespaceStrategy.fromName(commandLine.getOptionValue("tablespace-strategy"));
+			}
 
 			String hostname = commandLine.getOptionValue('H');
 			Integer port = ((Number) commandLine.getParsedOptionValue("P")).intValue();
 			String instanceName = commandLine.getOptionValue('I');
 			String username = commandLine.getOptionValue('u');
 			String password = commandLine.getOptionValue('p');
+			target = String.format("%s@%s:%s:%s", username, hostname, port, instanceName);
 
-			executeCheck(commandLine, hostname, port, instanceName, username, password);
+			if (commandLine.hasOption("cache-ttl")) {
+				int ttl = ((Number) commandLine.getParsedOptionValue("cache-ttl")).intValue();
+				File cacheDir = commandLine.hasOption("cache-dir") ? new File(commandLine.getOptionValue("cache-dir"))
+						: null;
+				int budget = commandLine.hasOption("latency-budget") ? ((Number) commandLine
+						.getParsedOptionValue("latency-budget")).intValue() : 0;
+				int maxTtl = commandLine.hasOption("max-cache-ttl") ? ((Number) commandLine
+						.getParsedOptionValue("max-cache-ttl")).intValue() : ttl * LatencyBackoff.DEFAULT_MAX_FACTOR;
+				int fullScanInterval = commandLine.hasOption("full-scan-interval") ? ((Number) commandLine
+						.getParsedOptionValue("full-scan-interval")).intValue() : 0;
+				tablespaceCache = new TablespaceCache(hostname, port, instanceName, username, ttl, budget, maxTtl,
+						fullScanInterval, cacheDir);
+			} else if (commandLine.hasOption("latency-budget") || commandLine.hasOption("max-cache-ttl")
+					|| commandLine.hasOption("full-scan-interval")) {
+				throw new IllegalArgumentException(
+						"--latency-budget, --max-cache-ttl and --full-scan-interval need --cache-ttl");
+			}
+
+			if (commandLine.hasOption("history-dir")) {
+				int retention = commandLine.hasOption("history-retention") ? ((Number) commandLine
+						.getParsedOptionValue("history-retention")).intValue() : DEFAULT_HISTORY_RETENTION;
+				tablespaceHistory = new TablespaceHistory(new File(commandLine.getOptionValue("history-dir")),
+						hostname, port, instanceName, username, retention, hours(commandLine, "fill-warning"), hours(
+								commandLine, "fill-critical"));
+			} else if (commandLine.hasOption("fill-warning") || commandLine.hasOption("fill-critical")) {
+				throw new IllegalArgumentException("--fill-warning and --fill-critical need --history-dir");
+			}
+
+			int timeout = commandLine.hasOption("timeout") ? ((Number) commandLine.getParsedOptionValue("timeout"))
+					.intValue() : DEFAULT_TIMEOUT;
+			PhaseTimer timer = new PhaseTimer();
+			if (jvmStartupNanos >= 0) {
+				timer.record(PhaseTimer.JVM, jvmStartupNanos);
+			}
+			Deadline deadline = new Deadline(timeout, timer);
+			CheckResult result;
+			try {
+				result = executeCheck(commandLine, deadline, hostname, port, instanceName, username, password);
+			} finally {
+				deadline.stop();
+			}
+
+			if (TIMING.isInfoEnabled()) {
+				Map<String, String> fields = new LinkedHashMap<String, String>();
+				fields.put("host", hostname);
+				fields.put("port", String.valueOf(port));
+				fields.put("instance", instanceName);
+				fields.put("check", describe(commandLine));
+				fields.put("status", result.getStatus().name());
+				TIMING.info(timer.toJson(fields));
+			}
+
+			// batch results carry the timings next to the check_multi perfdata
+			if (commandLine.hasOption('b') || commandLine.hasOption('B')) {
+				return result;
+			}
+			return result.withPerfData(timer.toPerfData().toArray(new PerfData[0]));
 
 		} catch (ParseException e) {
-			printHelp(options);
-			System.exit(UNKNOWN.getCode());
+			return CheckResult.unknown("Invalid arguments: " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			return CheckResult.unknown(e.getMessage());
 		}
 	}
 
@@ -98,89 +333,220 @@ public class CheckOracle {
 	 * Executes the check based on provided options
 	 * 
 	 * @param commandLine
-	 * @param debug flag to enable debug logging
+	 * @param deadline time budget of the check
 	 * @param hostname oracle server host
 	 * @param port listener port
 	 * @param instanceName instance name
 	 * @param username DBA user name
 	 * @param password password
 	 */
-	private void executeCheck(CommandLine commandLine, String hostname, Integer port, String instanceName,
-			String username, String password) {
+	private CheckResult executeCheck(CommandLine commandLine, Deadline deadline, String hostname, Integer port,
+			String instanceName, String username, String password) {
 		Connection conn = null;
+		boolean reusable = false;
 		try {
 
 			String warning = commandLine.getOptionValue('W');
 			String crtical = commandLine.getOptionValue('C');
 
+			CheckBatch batch = null;
+			if (commandLine.hasOption('b')) {
+				batch = CheckBatch.parse(commandLine.getOptionValue('b'));
+			} else if (commandLine.hasOption('B')) {
+				batch = CheckBatch.load(commandLine.getOptionValue('B'));
+			}
+
+			if (batch == null && tablespaceCache != null && commandLine.hasOption('t')) {
+				// answer from a cached scan without logging on
+				TablespaceCache.Snapshot snapshot = tablespaceCache.get(getTablespaceStrategy(commandLine));
+				if (snapshot != null) {
+					String tablespace = commandLine.getOptionValue('t');
+					TablespaceCheckOptions options = tablespaceCheckOptions(commandLine, warning, crtical);
+					if (tablespace.equalsIgnoreCase("ALL")) {
+						return CheckTablespaces.checkSnapshot(snapshot, options);
+					}
+					return CheckTablespace.checkSnapshot(snapshot, tablespace, options);
+				}
+			}
+
+			if (commandLine.hasOption("ping")) {
+				deadline.enter(Deadline.CONNECT);
+				return CheckListener.performCheck(hostname, port, deadline, warning, crtical);
+			}
+
 			if (commandLine.hasOption("tns")) {
 				try {
-					conn = getConnection(hostname, port, instanceName, username, password);
+					conn = getConnection(deadline, hostname, port, instanceName, username, password);
+					reusable = true;
 
-					System.out.println(String.format("OK - Connected to %s (%s)", conn.getMetaData().getDatabaseProductName(),
-							conn.getMetaData().getDatabaseProductVersion()));
-					System.exit(OK.getCode());
+					return new CheckResult(OK, String.format("Connected to %s (%s)", conn.getMetaData()
+							.getDatabaseProductName(), conn.getMetaData().getDatabaseProductVersion()));
 				} catch (SQLException e) {
 					LOG.error("TNS Check SQLException", e);
-					System.out.println("Error: Unable to connect to database - " + e.getMessage());
-					System.exit(CRITICAL.getCode());
+					reusable = false;
+					if (deadline.isExpired()) {
+						return deadline.timeoutResult();
+					}
+					return new CheckResult(CRITICAL, "Unable to connect to database - " + e.getMessage());
 				}
-			} else {
-				conn = getConnection(hostname, port, instanceName, username, password);
 			}
 
-			if (commandLine.hasOption('t')) {
-				String tablespace = commandLine.getOptionValue('t');
-				if (tablespace.equalsIgnoreCase("ALL")) {
-					CheckTablespaces.performCheck(conn, warning, crtical, debug);
-				} else {
-					CheckTablespace.performCheck(conn, tablespace, warning, crtical, debug);
-				}
-			} else if (commandLine.hasOption('s')) {
-				String userToCheck = commandLine.getOptionValue('s');
-				if (userToCheck.equalsIgnoreCase("ALL")) {
-					CheckDatabaseSessions.performCheck(conn, warning, crtical, debug);
-				} else {
-					CheckUserSessions.performCheck(conn, userToCheck, warning, crtical, debug);
-				}
-			} else {
-				LOG.error("Error: Invalid option");
-				System.out.println("Error: Invalid option");
-				System.exit(UNKNOWN.getCode());
+			conn = getConnection(deadline, hostname, port, instanceName, username, password);
+			Connection guarded = deadline.guard(conn);
+
+			CheckResult result = batch != null ? batch.execute(this, guarded, warning, crtical,
+					deadline.getTimer()) : dispatch(
+					commandLine, guarded, warning, crtical);
+			if (deadline.isExpired()) {
+				// the statement was cancelled, the session may still be busy
+				return deadline.timeoutResult();
 			}
+			reusable = result.getStatus() != UNKNOWN;
+			return result;
 		} catch (IllegalArgumentException e) {
 			LOG.error(String.format("UNKNOWN - %s", e.getMessage()));
-			System.out.println(String.format("UNKNOWN - %s", e.getMessage()));
-			System.exit(UNKNOWN.getCode());
+			return CheckResult.unknown(e.getMessage());
 		} catch (Exception e) {
 			LOG.error("Failed to execute check", e);
-			System.out.println("Error: Failed to execute check" + e);
-			System.exit(UNKNOWN.getCode());
+			if (deadline.isExpired()) {
+				return deadline.timeoutResult();
+			}
+			return CheckResult.unknown("Failed to execute check " + e);
 		} finally {
-			try {
-				if (conn != null) {
+			if (conn != null && pool != null) {
+				pool.release(conn, reusable);
+			} else if (conn != null) {
+				try {
 					conn.close();
+				} catch (SQLException e) {
+					LOG.error("SQLException closing connection", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs the tablespace or session check selected on the command line
+	 * 
+	 * @param commandLine check options
+	 * @param conn SQL connection
+	 * @param warning warning threshold
+	 * @param crtical critical threshold
+	 * @return check result
+	 */
+	CheckResult dispatch(CommandLine commandLine, Connection conn, String warning, String crtical) {
+		if (commandLine.hasOption('t')) {
+			String tablespace = commandLine.getOptionValue('t');
+			TablespaceCheckOptions options = tablespaceCheckOptions(commandLine, warning, crtical);
+			if (tablespace.equalsIgnoreCase("ALL")) {
+				return CheckTablespaces.performCheck(conn, options, debug);
+			}
+			return CheckTablespace.performCheck(conn, tablespace, options, debug);
+		} else if (commandLine.hasOption('s')) {
+			String userToCheck = commandLine.getOptionValue('s');
+			if (commandLine.hasOption("breakdown")) {
+				if (commandLine.hasOption("rac")) {
+					return CheckResult.unknown("--breakdown cannot be combined with --rac");
 				}
-			} catch (SQLException e) {
-				LOG.error("SQLException closing connection", e);
-				System.out.println("Error: Failed to close JDBC connection");
-				System.exit(UNKNOWN.getCode());
+				return CheckSessionBreakdown.performCheck(conn, userToCheck.equalsIgnoreCase("ALL") ? null
+						: userToCheck, commandLine.getOptionValue("breakdown"), warning, crtical, commandLine
+						.getOptionValue("group-thresholds"), debug);
+			}
+			if (commandLine.hasOption("rac")) {
+				return CheckClusterSessions.performCheck(conn, userToCheck.equalsIgnoreCase("ALL") ? null
+						: userToCheck, warning, crtical, commandLine.getOptionValue("cluster-warning"), commandLine
+						.getOptionValue("cluster-critical"), debug);
+			}
+			if (userToCheck.equalsIgnoreCase("ALL")) {
+				return CheckDatabaseSessions.performCheck(conn, warning, crtical, debug);
+			}
+			return CheckUserSessions.performCheck(conn, userToCheck, warning, crtical, debug);
+		}
+		LOG.error("Error: Invalid option");
+		return CheckResult.unknown("Invalid option");
+	}
+
+	/**
+	 * Returns the options of the tablespace check selected by -t
+	 *
+	 * @param commandLine check options
+	 * @param warning warning threshold
+	 * @param crtical critical threshold
+	 * @return strategy, cache, history, output bound of -t ALL and thresholds
+	 */
+	private TablespaceCheckOptions tablespaceCheckOptions(CommandLine commandLine, String warning, String crtical) {
+		TablespaceStrategy strategy = getTablespaceStrategy(commandLine);
+		Thresholds thresholds = Thresholds.parse(warning, crtical, commandLine.getOptionValue("tablespace-thresholds"));
+		OutputLimit limit = commandLine.getOptionValue('t').equalsIgnoreCase("ALL") ? outputLimit(commandLine,
+				strategy) : null;
+		return new TablespaceCheckOptions(strategy, tablespaceCache, tablespaceHistory, limit, thresholds);
+	}
+
+	/**
+	 * Returns the bound of the output of -t ALL given by --top and --perfdata
+	 *
+	 * @param commandLine check options
+	 * @param strategy collection strategy, changes are tracked per database and strategy
+	 * @return output bound, or null for the full output
+	 */
+	private OutputLimit outputLimit(CommandLine commandLine, TablespaceStrategy strategy) {
+		if (!commandLine.hasOption("top") && !commandLine.hasOption("perfdata")) {
+			return null;
+		}
+		int top = Integer.MAX_VALUE;
+		if (commandLine.hasOption("top")) {
+			try {
+				top = Integer.parseInt(commandLine.getOptionValue("top").trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(String.format("Invalid --top [%s]", commandLine
+						.getOptionValue("top")));
+			}
+		}
+		OutputLimit.PerfDataMode mode = commandLine.hasOption("perfdata") ? OutputLimit.PerfDataMode
+				.fromName(commandLine.getOptionValue("perfdata")) : OutputLimit.PerfDataMode.TOP;
+		if (mode == OutputLimit.PerfDataMode.TOP && !commandLine.hasOption("top")) {
+			throw new IllegalArgumentException("--perfdata top needs --top");
+		}
+		return new OutputLimit(top, mode, target + "/" + strategy.getName());
+	}
+
+	private static Double hours(CommandLine commandLine, String option) throws ParseException {
+		return commandLine.hasOption(option) ? ((Number) commandLine.getParsedOptionValue(option)).doubleValue() : null;
+	}
+
+	private static String describe(CommandLine commandLine) {
+		for (String option : new String[] { "t", "s", "b", "B" }) {
+			if (commandLine.hasOption(option)) {
+				return "-" + option + " " + commandLine.getOptionValue(option);
 			}
 		}
+		if (commandLine.hasOption("ping")) {
+			return "-ping";
+		}
+		return commandLine.hasOption("tns") ? "-tns" : "";
+	}
+
+	private TablespaceStrategy getTablespaceStrategy(CommandLine commandLine) {
+		return commandLine.hasOption("tablespace-strategy") ? TablespaceStrategy.fromName(commandLine
+				.getOptionValue("tablespace-strategy")) : tablespaceStrategy;
 	}
 
 	/**
 	 * Print help text
 	 */
-	public void printHelp(final Options options) {
+	public static void printHelp(final Options options, final PrintStream out) {
 		final String commandLineSyntax = "check_oracle";
 		final HelpFormatter helpFormatter = new HelpFormatter();
-		helpFormatter.printHelp(commandLineSyntax, options, true);
+		PrintWriter writer = new PrintWriter(out);
+		helpFormatter.printHelp(writer, helpFormatter.getWidth(), commandLineSyntax, null, options,
+				helpFormatter.getLeftPadding(), helpFormatter.getDescPadding(), null, true);
+		writer.flush();
 	}
 
 	/**
-	 * Gets a SQL connection based on input parameters
+	 * Gets a SQL connection based on input parameters, giving up when the deadline expires
 	 * 
+	 * @param deadline time budget of the check
 	 * @param hostname oracle server host
 	 * @param port listener port
 	 * @param instance instance name
@@ -189,26 +555,75 @@ public class CheckOracle {
 	 * @return SQL connection
 	 * @throws SQLException thrown when SQL connection cannot be established
 	 */
-	protected Connection getConnection(String hostname, Integer port, String instance, String username, String password)
-			throws SQLException {
+	protected Connection getConnection(Deadline deadline, String hostname, Integer port, String instance,
+			String username, String password) throws SQLException {
 
-		try {
-			Class.forName("oracle.jdbc.driver.OracleDriver");
-		} catch (ClassNotFoundException e) {
-			System.out.println("Error: Failed to load JDBC driver.");
-			System.out.println(e);
-			System.exit(UNKNOWN.getCode());
-		}
+		deadline.enter(Deadline.DRIVER);
+		Driver driver = getDriver();
+
+		String connUrl = getConnectionUrl(hostname, port, instance);
 
 		if (debug) {
-			LOG.debug("Connection URL: " + String.format("jdbc:oracle:thin:@%s:%s:%s", hostname, port, instance));
+			LOG.debug("Connection URL: " + connUrl);
+		}
+
+		deadline.enter(Deadline.CONNECT);
+		if (pool != null) {
+			return pool.borrow(hostname, port, instance, username, password, deadline.remainingMillis());
 		}
 
-		String connUrl = String.format("jdbc:oracle:thin:@%s:%s:%s", hostname, port, instance);
-		DriverManager.setLoginTimeout(300);
-		Connection connection = DriverManager.getConnection(connUrl, username, password);
+		// the connection is closed after the check, so the read timeout may bound the logon as well
+		Properties properties = new Properties();
+		properties.setProperty("user", username);
+		properties.setProperty("password", password);
+		properties.setProperty(OracleConnection.CONNECTION_PROPERTY_THIN_NET_CONNECT_TIMEOUT,
+				String.valueOf(deadline.remainingMillis()));
+		properties.setProperty(OracleConnection.CONNECTION_PROPERTY_THIN_READ_TIMEOUT,
+				String.valueOf(deadline.remainingMillis()));
+		Connection connection = driver.connect(connUrl, properties);
 
 		return connection;
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Returns the thin driver, which is called directly: DriverManager would first load and initialize every driver on
+	 * the class path
+	 * 
+	 * @return JDBC driver
+	 * @throws SQLException thrown when the driver cannot be loaded
+	 */
+	static Driver getDriver() throws SQLException {
+		Driver driver = oracleDriver;
+		if (driver == null) {
+			try {
+				driver = (Driver) Class.forName("oracle.jdbc.driver.OracleDriver").getDeclaredConstructor()
+						.newInstance();
+			} catch (ClassNotFoundException e) {
+				throw new SQLException("Failed to load JDBC driver", e);
+			} catch (NoSuchMethodException e) {
+				throw new SQLException("Failed to load JDBC driver", e);
+			} catch (InvocationTargetException e) {
+				throw new SQLException("Failed to load JDBC driver", e.getCause());
+			} catch (InstantiationException e) {
+				throw new SQLException("Failed to load JDBC driver", e);
+			} catch (IllegalAccessException e) {
+				throw new SQLException("Failed to load JDBC driver", e);
+			}
+			oracleDriver = driver;
+		}
+		return driver;
+	}
+
+	/**
+	 * Builds the thin driver URL for the given instance
+	 * 
+	 * @param hostname oracle server host
+	 * @param port listener port
+	 * @param instance instance name
+	 * @return JDBC URL
+	 */
+	public static String getConnectionUrl(String hostname, Integer port, String instance) {
+		return String.format("jdbc:oracle:thin:@%s:%s:%s", hostname, port, instance);
+	}
+
+}
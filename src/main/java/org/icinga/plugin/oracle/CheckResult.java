@@ -0,0 +1,150 @@
+package org.icinga.plugin.oracle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable outcome of a check: the Nagios status, the human readable message and the performance data. Checks return
+ * it instead of printing and exiting, so they can be run in-process; only the command line entry points render it with
+ * {@link #toString()} and exit with the status code.
+ *
+ * @author David Webb
+ */
+public final class CheckResult {
+
+	private final NagiosStatus status;
+	private final String message;
+	private final TablespacePerfData tablespaces;
+	private final List<PerfData> perfData;
+
+	/**
+	 * @param status check status
+	 * @param message human readable message, may span several lines
+	 * @param perfData performance data
+	 */
+	public CheckResult(NagiosStatus status, String message, List<PerfData> perfData) {
+		this(status, message, null, perfData);
+	}
+
+	/**
+	 * @param status check status
+	 * @param message human readable message, may span several lines
+	 * @param tablespaces usage perfdata of the tablespaces, rendered before the other performance data, may be null
+	 * @param perfData other performance data
+	 */
+	CheckResult(NagiosStatus status, String message, TablespacePerfData tablespaces, List<PerfData> perfData) {
+		this.status = status;
+		this.message = message;
+		this.tablespaces = tablespaces;
+		this.perfData = Collections.unmodifiableList(new ArrayList<PerfData>(perfData));
+	}
+
+	/**
+	 * @param status check status
+	 * @param message human readable message, may span several lines
+	 * @param perfData performance data
+	 */
+	public CheckResult(NagiosStatus status, String message, PerfData... perfData) {
+		this(status, message, Arrays.asList(perfData));
+	}
+
+	/**
+	 * Returns an UNKNOWN result for a check that could not be performed
+	 *
+	 * @param message reason
+	 * @return check result
+	 */
+	public static CheckResult unknown(String message) {
+		return new CheckResult(NagiosStatus.UNKNOWN, message);
+	}
+
+	public NagiosStatus getStatus() {
+		return status;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * Returns the performance data, creating the items of the tablespace usage perfdata
+	 *
+	 * @return performance data
+	 */
+	public List<PerfData> getPerfData() {
+		if (tablespaces == null) {
+			return perfData;
+		}
+		List<PerfData> all = tablespaces.toPerfData();
+		all.addAll(perfData);
+		return Collections.unmodifiableList(all);
+	}
+
+	TablespacePerfData getTablespacePerfData() {
+		return tablespaces;
+	}
+
+	/**
+	 * Returns the performance data besides the tablespace usage perfdata
+	 *
+	 * @return performance data
+	 */
+	List<PerfData> getOtherPerfData() {
+		return perfData;
+	}
+
+	/**
+	 * Returns a copy with additional performance data
+	 *
+	 * @param additional performance data to append
+	 * @return check result
+	 */
+	public CheckResult withPerfData(PerfData... additional) {
+		return with(status, message, Arrays.asList(additional));
+	}
+
+	/**
+	 * Returns a copy with another status and message and additional performance data
+	 *
+	 * @param newStatus check status
+	 * @param newMessage human readable message
+	 * @param additional performance data to append
+	 * @return check result
+	 */
+	CheckResult with(NagiosStatus newStatus, String newMessage, List<PerfData> additional) {
+		List<PerfData> combined = new ArrayList<PerfData>(perfData.size() + additional.size());
+		combined.addAll(perfData);
+		combined.addAll(additional);
+		return new CheckResult(newStatus, newMessage, tablespaces, combined);
+	}
+
+	/**
+	 * Renders the plugin output: <code>STATUS - message|perfdata</code>.
+	 */
+	@Override
+	public String toString() {
+		return appendTo(new StringBuilder()).toString();
+	}
+
+	/**
+	 * Renders the plugin output into the given buffer, e.g. one reused for every check
+	 *
+	 * @param output buffer
+	 * @return the buffer
+	 */
+	public StringBuilder appendTo(StringBuilder output) {
+		output.append(status).append(" - ").append(message);
+		boolean first = true;
+		if (tablespaces != null && tablespaces.size() > 0) {
+			tablespaces.appendTo(output.append('|'));
+			first = false;
+		}
+		for (int i = 0; i < perfData.size(); i++) {
+			perfData.get(i).appendTo(output.append(first ? '|' : ' '));
+			first = false;
+		}
+		return output;
+	}
+}
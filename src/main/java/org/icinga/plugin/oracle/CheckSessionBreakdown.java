@@ -0,0 +1,224 @@
+package org.icinga.plugin.oracle;
+
+import static org.icinga.plugin.oracle.NagiosStatus.OK;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Check of the session counts per group of <code>v$session</code>, grouped by any of username, status, machine and
+ * program in a single aggregate query. The -W and -C thresholds apply to every group unless a group threshold matches
+ * it, so one invocation replaces a check per user.
+ * <p>
+ * The query only varies with the grouping columns and binds the session type and username, so the server parses it
+ * once per grouping instead of once per user name.
+ *
+ * @author David Webb
+ */
+public class CheckSessionBreakdown extends CheckAdapter {
+
+	private static final Logger logger = LoggerFactory.getLogger(CheckSessionBreakdown.class);
+
+	/**
+	 * Columns sessions can be grouped by, in the order they appear in group names
+	 */
+	public static final List<String> COLUMNS = Arrays.asList("username", "status", "machine", "program");
+
+	/**
+	 * Groups expected, used to size the fetch
+	 */
+	private static final int EXPECTED_GROUPS = 50;
+
+	private static final String NONE = "(none)";
+
+	private static final Pattern LEGACY_THRESHOLD = Pattern.compile("\\s*\\d+\\s*:\\s*\\d+\\s*");
+
+	/**
+	 * Checks the session count of every group
+	 *
+	 * @param connection SQL connection
+	 * @param username user whose sessions are grouped, or null for the sessions of all users
+	 * @param breakdown comma separated grouping columns, e.g. <code>username,status</code>
+	 * @param warningThreshold warning threshold per group
+	 * @param crticalThreshold critical threshold per group
+	 * @param groupThresholds thresholds of single groups, e.g. <code>APP=50:80,BATCH/ACTIVE=20:30</code>, may be null
+	 * @param debug flag to enable debug logging
+	 * @return check result
+	 */
+	public static CheckResult performCheck(Connection connection, String username, String breakdown,
+			String warningThreshold, String crticalThreshold, String groupThresholds, boolean debug) {
+
+		try {
+
+			List<String> columns = parseColumns(breakdown);
+			Thresholds.Levels defaults = countLevels(warningThreshold, crticalThreshold);
+			Map<String, Thresholds.Levels> thresholds = parseThresholds(groupThresholds);
+
+			Map<String, Integer> counts = count(connection, username, columns);
+
+			NagiosStatus disposition = OK;
+			StringBuilder violations = new StringBuilder();
+			List<PerfData> perfData = new ArrayList<PerfData>(counts.size() + 1);
+			int total = 0;
+
+			for (Map.Entry<String, Integer> group : counts.entrySet()) {
+				int sessions = group.getValue();
+				total += sessions;
+				Thresholds.Levels levels = levelsOf(group.getKey(), thresholds, defaults);
+				if (debug) {
+					logger.debug(String.format("Group %s sessions: %d", group.getKey(), sessions));
+				}
+				NagiosStatus status = levels.statusOf(sessions);
+				appendViolation(violations, group.getKey(), sessions, levels, status);
+				disposition = status.getCode() > disposition.getCode() ? status : disposition;
+				perfData.add(new PerfData(group.getKey() + "_sessions", sessions, "", levels.getWarning()
+						.getUpperBound(), levels.getCritical().getUpperBound(), 0d, null, 0));
+			}
+			perfData.add(new PerfData("sessions", total, "", 0));
+
+			String output = String.format("%d sessions in %d groups by %s", total, counts.size(),
+					join(columns, ","));
+			if (violations.length() > 0) {
+				output = violations.toString().trim() + " - " + output;
+			}
+			return new CheckResult(disposition, output, perfData);
+
+		} catch (IllegalArgumentException e) {
+			return CheckResult.unknown(e.getMessage());
+		} catch (SQLException e) {
+			return CheckResult.unknown(e.toString());
+		}
+
+	}
+
+	/**
+	 * Counts the user sessions per group
+	 *
+	 * @param connection SQL connection
+	 * @param username user whose sessions are grouped, or null for the sessions of all users
+	 * @param columns grouping columns, see {@link #COLUMNS}
+	 * @return session count by group name, the column values joined with '/'
+	 * @throws SQLException thrown when the query fails
+	 */
+	public static Map<String, Integer> count(Connection connection, String username, List<String> columns)
+			throws SQLException {
+		String grouping = join(columns, ", ");
+		StringBuilder sql = new StringBuilder("SELECT ").append(grouping).append(", COUNT(1) FROM v$session ");
+		sql.append("WHERE type = ?");
+		if (username != null) {
+			sql.append(" AND username = ?");
+		}
+		sql.append(" GROUP BY ").append(grouping).append(" ORDER BY ").append(grouping);
+
+		final int width = columns.size();
+		RowMapper<String[]> mapper = new RowMapper<String[]>() {
+
+			@Override
+			public String[] map(ResultSet rs) throws SQLException {
+				StringBuilder group = new StringBuilder();
+				for (int i = 1; i <= width; i++) {
+					String value = rs.getString(i);
+					group.append(i == 1 ? "" : "/").append(value == null ? NONE : value.trim());
+				}
+				return new String[] { group.toString(), rs.getString(width + 1) };
+			}
+		};
+		String[] parameters = username == null ? new String[] { "USER" } : new String[] { "USER", username };
+
+		Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+		for (String[] row : Rows.query(connection, sql.toString(), EXPECTED_GROUPS, mapper, parameters)) {
+			counts.put(row[0], Integer.valueOf(row[1]));
+		}
+		return counts;
+	}
+
+	/**
+	 * Returns the grouping columns in the order of {@link #COLUMNS}
+	 *
+	 * @param breakdown comma separated column names
+	 * @return grouping columns
+	 */
+	static List<String> parseColumns(String breakdown) {
+		List<String> requested = new ArrayList<String>();
+		for (String column : breakdown.split(",")) {
+			String name = column.trim().toLowerCase(Locale.ROOT);
+			if (!COLUMNS.contains(name)) {
+				throw new IllegalArgumentException(String.format("Invalid breakdown column [%s], valid are %s",
+						column.trim(), join(COLUMNS, ",")));
+			}
+			requested.add(name);
+		}
+		List<String> columns = new ArrayList<String>(COLUMNS);
+		columns.retainAll(requested);
+		return columns;
+	}
+
+	/**
+	 * Parses group thresholds: <code>group=warning/critical</code> separated by ',', where warning and critical are
+	 * Nagios ranges. The former <code>group=warning:critical</code> of two whole numbers is still read.
+	 *
+	 * @param groupThresholds group thresholds, may be null
+	 * @return warning and critical threshold by group name
+	 * @throws IllegalArgumentException thrown when a group threshold is invalid
+	 */
+	static Map<String, Thresholds.Levels> parseThresholds(String groupThresholds) {
+		Map<String, Thresholds.Levels> thresholds = new LinkedHashMap<String, Thresholds.Levels>();
+		if (groupThresholds == null) {
+			return thresholds;
+		}
+		for (String spec : groupThresholds.split(",")) {
+			int equals = spec.lastIndexOf('=');
+			String[] levels = new String[0];
+			if (equals > 0) {
+				String text = spec.substring(equals + 1);
+				levels = text.indexOf('/') >= 0 || !LEGACY_THRESHOLD.matcher(text).matches() ? text.split("/") : text
+						.split(":");
+			}
+			if (levels.length != 2) {
+				throw new IllegalArgumentException(String.format(
+						"Invalid group threshold [%s], expected group=warning/critical", spec));
+			}
+			thresholds.put(spec.substring(0, equals).trim(), countLevels(levels[0], levels[1]));
+		}
+		return thresholds;
+	}
+
+	/**
+	 * Returns the thresholds of the most specific matching group: the group itself, or the group of its leading
+	 * columns, e.g. <code>APP</code> for <code>APP/ACTIVE</code>
+	 */
+	static Thresholds.Levels levelsOf(String group, Map<String, Thresholds.Levels> thresholds,
+			Thresholds.Levels defaults) {
+		String key = group;
+		while (true) {
+			Thresholds.Levels levels = thresholds.get(key);
+			if (levels != null) {
+				return levels;
+			}
+			int slash = key.lastIndexOf('/');
+			if (slash < 0) {
+				return defaults;
+			}
+			key = key.substring(0, slash);
+		}
+	}
+
+	private static String join(List<String> values, String separator) {
+		StringBuilder joined = new StringBuilder();
+		for (String value : values) {
+			joined.append(joined.length() == 0 ? "" : separator).append(value);
+		}
+		return joined.toString();
+	}
+}
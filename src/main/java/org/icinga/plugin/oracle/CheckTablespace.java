@@ -1,17 +1,11 @@
 package org.icinga.plugin.oracle;
 
-import static org.icinga.plugin.oracle.NagiosStatus.UNKNOWN;
-
 import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.icinga.plugin.oracle.bean.TablespaceMetric;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
  * Check to provide percent tablespace size usage.
@@ -21,104 +15,71 @@ import org.slf4j.LoggerFactory;
  */
 public class CheckTablespace extends CheckAdapter {
 
-	private static final Logger LOG = LoggerFactory.getLogger(CheckTablespace.class);
-
 	/**
-	 * Checks all tablespace usage
+	 * Checks the usage of a single tablespace against its thresholds. With a cache, the tablespace is looked up in a
+	 * full scan that is reused by all tablespace checks of the database within the TTL; with a history, the reading is
+	 * recorded.
 	 *
 	 * @param connection SQL connection
-	 * @param warningThreshold warning threshold
-	 * @param criticalThreshold critical threshold
+	 * @param tablespaceName tablespace to check
+	 * @param options strategy, cache, history and thresholds of the check
+	 * @return check result
 	 */
-	public static void performCheck(Connection connection, String tablespaceName, String warningThreshold,
-			String criticalThreshold, boolean debug) {
-
-		PreparedStatement pstmt = null;
-		ResultSet rs = null;
+	public static CheckResult performCheck(Connection connection, String tablespaceName,
+			TablespaceCheckOptions options, boolean debug) {
 
 		try {
 
-			StringBuilder query = new StringBuilder();
-			query.append("SELECT b.tablespace_name, \n");
-			query.append("  tbs_size, \n");
-			query.append("  a.free_space, \n");
-			query.append("  ((tbs_size - a.free_space) / tbs_size) * 100 AS pct_used \n");
-			query.append("FROM \n");
-			query.append("  (SELECT tablespace_name, \n");
-			query.append("    ROUND(SUM(bytes)/1024/1024 ,2) AS free_space \n");
-			query.append("  FROM dba_free_space \n");
-			query.append("  GROUP BY tablespace_name \n");
-			query.append("  ) a, \n");
-			query.append("  (SELECT tablespace_name, \n");
-			query.append("    SUM(bytes)/1024/1024 AS tbs_size \n");
-			query.append("  FROM dba_data_files \n");
-			query.append("  GROUP BY tablespace_name \n");
-			query.append("  ) b \n");
-			query.append("WHERE a.tablespace_name(+)=b.tablespace_name \n");
-			query.append("AND upper(b.tablespace_name) = upper(?) \n");
-
-			if (debug) {
-				LOG.debug("Executing query " + query.toString());
+			TablespaceCache cache = options.getCache();
+			if (cache != null) {
+				TablespaceCache.Snapshot snapshot = cache.get(options.getStrategy());
+				if (snapshot == null) {
+					snapshot = cache.refresh(connection, options.getStrategy(), debug);
+				}
+				return checkSnapshot(snapshot, tablespaceName, options);
 			}
 
-			// execute query
-			pstmt = connection.prepareStatement(query.toString());
-			pstmt.setString(1, tablespaceName);
-			rs = pstmt.executeQuery();
+			long start = System.nanoTime();
+			List<TablespaceMetric> readings = CheckTablespaces.collect(connection, options.getStrategy(),
+					tablespaceName, debug);
+			long collectMillis = (System.nanoTime() - start) / 1000000L;
 
-			String tbspname = "";
-			int warning = Integer.valueOf(warningThreshold);
-			int crtical = Integer.valueOf(criticalThreshold);
-			float actualSpace = 0.0F;
-			float usedSpace = 0.0F;
-			float freeSpace = 0.0F;
-			float percent_used = 0.0F;
-
-			List<TablespaceMetric> readings = new ArrayList<TablespaceMetric>();
-
-			if (rs != null && rs.next()) {
-				tbspname = rs.getString("tablespace_name");
-				actualSpace = rs.getFloat("tbs_size");
-				freeSpace = rs.getFloat("free_space");
-				usedSpace = actualSpace - freeSpace;
-				percent_used = rs.getFloat("pct_used");
-
-				readings.add(
-						new TablespaceMetric(tbspname, percent_used, 100.00F - percent_used, new Float(actualSpace).doubleValue(),
-								new Float(usedSpace).doubleValue(), new Float(freeSpace).doubleValue()));
-
-				if (debug) {
-					LOG.debug(String.format("Name:          %s ", tbspname));
-					LOG.debug(String.format("Space used:    %,10.2f MB", usedSpace));
-					LOG.debug(String.format("Space total:   %,10.2f MB", actualSpace));
-					LOG.debug(String.format("Space %% used: %3.2f %%\n", percent_used));
-				}
-			} else {
-				throw new IllegalArgumentException(String.format("Tablespace [%s] does not exist", tablespaceName));
+			if (readings.isEmpty()) {
+				return CheckResult.unknown(String.format("Tablespace [%s] does not exist", tablespaceName));
 			}
 
 			// verify level
-			checkLevel(readings, warning, crtical);
+			List<TablespaceMetric> reading = readings.subList(0, 1);
+			CheckResult result = checkLevel(reading, options.getThresholds(), null, new PerfData("collect_ms",
+					collectMillis, "ms", 0));
+			TablespaceHistory history = options.getHistory();
+			return history == null ? result : history.apply(result, System.currentTimeMillis(), reading);
 
 		} catch (SQLException e) {
-			System.err.println(e);
-			System.exit(UNKNOWN.getCode());
-		} finally {
-			if (rs != null) {
-				try {
-					rs.close();
-				} catch (SQLException muted) {
-				}
-			}
-			if (pstmt != null) {
-				try {
-					pstmt.close();
-				} catch (SQLException muted) {
-				}
+			return CheckResult.unknown(e.toString());
+		}
 
-			}
+	}
 
+	/**
+	 * Checks the usage of a single tablespace of a cached scan against its thresholds, recording the reading in the
+	 * history unless it is already recorded
+	 *
+	 * @param snapshot cached scan
+	 * @param tablespaceName tablespace to check
+	 * @param options history and thresholds of the check
+	 * @return check result
+	 */
+	static CheckResult checkSnapshot(TablespaceCache.Snapshot snapshot, String tablespaceName,
+			TablespaceCheckOptions options) {
+		TablespaceMetric metric = snapshot.find(tablespaceName);
+		if (metric == null) {
+			return CheckResult.unknown(String.format("Tablespace [%s] does not exist", tablespaceName));
 		}
-
+		List<TablespaceMetric> reading = Collections.singletonList(metric);
+		CheckResult result = checkLevel(reading, options.getThresholds(), null, CheckTablespaces
+				.cacheAgePerfData(snapshot));
+		TablespaceHistory history = options.getHistory();
+		return history == null ? result : history.apply(result, snapshot.getCollectedAt(), reading);
 	}
 }
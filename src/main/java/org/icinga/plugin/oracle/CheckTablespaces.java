@@ -1,15 +1,16 @@
 package org.icinga.plugin.oracle;
 
-import static org.icinga.plugin.oracle.NagiosStatus.UNKNOWN;
-
 import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.icinga.plugin.oracle.bean.TablespaceMetric;
+import org.icinga.plugin.oracle.bean.TablespaceMetricBatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,99 +23,220 @@ public class CheckTablespaces extends CheckAdapter {
 
 	private static final Logger LOG = LoggerFactory.getLogger(CheckTablespaces.class);
 
+	static final SingleFlight<String, TablespaceMetricBatch> COLLECTIONS = new SingleFlight<String, TablespaceMetricBatch>();
+
+	/**
+	 * Tablespaces expected from a full scan of a database that was not scanned before
+	 */
+	static final int DEFAULT_TABLESPACE_COUNT = 100;
+
+	private static final ConcurrentMap<String, Integer> TABLESPACE_COUNTS = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * Longest list of tablespaces collected by one query. Shorter lists are padded to the next power of two, so the
+	 * database sees a handful of distinct statements rather than one per list length.
+	 */
+	static final int MAX_TABLESPACE_LIST = 64;
+
+	/**
+	 * Maps a row of the {@link TablespaceStrategy} queries: tablespace_name, tbs_size, free_space, pct_used. The
+	 * collection reads the rows into a {@link TablespaceMetricBatch} instead.
+	 */
+	public static final RowMapper<TablespaceMetric> READINGS = new RowMapper<TablespaceMetric>() {
+
+		@Override
+		public TablespaceMetric map(ResultSet rs) throws SQLException {
+			double actualSpace = rs.getDouble(2);
+			double freeSpace = rs.getDouble(3);
+			float percentUsed = rs.getFloat(4);
+			return new TablespaceMetric(rs.getString(1), percentUsed, 100.00F - percentUsed, actualSpace, actualSpace
+					- freeSpace, freeSpace);
+		}
+	};
+
+	/**
+	 * Reads a row of the {@link TablespaceStrategy} queries into a batch
+	 */
+	private static final class BatchReader implements RowReader {
+
+		private final TablespaceMetricBatch batch;
+
+		BatchReader(TablespaceMetricBatch batch) {
+			this.batch = batch;
+		}
+
+		@Override
+		public void read(ResultSet rs) throws SQLException {
+			double actualSpace = rs.getDouble(2);
+			double freeSpace = rs.getDouble(3);
+			batch.add(rs.getString(1), rs.getFloat(4), actualSpace, actualSpace - freeSpace, freeSpace);
+		}
+	}
+
 	/**
-	 * Checks all tablespace usage
+	 * Checks all tablespace usage against thresholds that may differ by tablespace. With a cache, a scan is reused
+	 * by all tablespace checks of the database within the TTL; with a history, the readings are recorded; with a
+	 * limit, only the most severe tablespaces are named.
 	 *
 	 * @param connection SQL connection
-	 * @param warningThreshold warning threshold
-	 * @param criticalThreshold critical threshold
+	 * @param options strategy, cache, history, output limit and thresholds of the check
+	 * @return check result
 	 */
-	public static void performCheck(Connection connection, String warningThreshold, String criticalThreshold,
-			boolean debug) {
-
-		PreparedStatement pstmt = null;
-		ResultSet rs = null;
+	public static CheckResult performCheck(Connection connection, TablespaceCheckOptions options, boolean debug) {
 
 		try {
 
-			StringBuilder query = new StringBuilder();
-			query.append("SELECT b.tablespace_name, \n");
-			query.append("  tbs_size, \n");
-			query.append("  a.free_space, \n");
-			query.append("  ((tbs_size - a.free_space) / tbs_size) * 100 AS pct_used \n");
-			query.append("FROM \n");
-			query.append("  (SELECT tablespace_name, \n");
-			query.append("    ROUND(SUM(bytes)/1024/1024 ,2) AS free_space \n");
-			query.append("  FROM dba_free_space \n");
-			query.append("  GROUP BY tablespace_name \n");
-			query.append("  ) a, \n");
-			query.append("  (SELECT tablespace_name, \n");
-			query.append("    SUM(bytes)/1024/1024 AS tbs_size \n");
-			query.append("  FROM dba_data_files \n");
-			query.append("  GROUP BY tablespace_name \n");
-			query.append("  ) b \n");
-			query.append("WHERE a.tablespace_name(+)=b.tablespace_name \n");
-
-			if (debug) {
-				LOG.debug("Executing query " + query.toString());
+			TablespaceStrategy strategy = options.getStrategy();
+			TablespaceCache cache = options.getCache();
+			TablespaceCache.Snapshot snapshot = cache == null ? null : cache.get(strategy);
+			if (snapshot != null) {
+				return checkSnapshot(snapshot, options);
 			}
 
-			// execute query
-			pstmt = connection.prepareStatement(query.toString());
-			rs = pstmt.executeQuery();
-
-			String tbspname = "";
-			int warning = Integer.valueOf(warningThreshold);
-			int crtical = Integer.valueOf(criticalThreshold);
-			float actualSpace = 0.0F;
-			float usedSpace = 0.0F;
-			float freeSpace = 0.0F;
-			float percent_used = 0.0F;
-
-			List<TablespaceMetric> readings = new ArrayList<TablespaceMetric>();
-
-			while (rs != null && rs.next()) {
-				tbspname = rs.getString("tablespace_name");
-				actualSpace = rs.getFloat("tbs_size");
-				freeSpace = rs.getFloat("free_space");
-				usedSpace = actualSpace - freeSpace;
-				percent_used = rs.getFloat("pct_used");
-
-				readings.add(
-						new TablespaceMetric(tbspname, percent_used, 100.00F - percent_used, new Float(actualSpace).doubleValue(),
-								new Float(usedSpace).doubleValue(), new Float(freeSpace).doubleValue()));
-
-				if (debug) {
-					LOG.debug(String.format("Name:          %s ", tbspname));
-					LOG.debug(String.format("Space used:    %,10.2f MB", usedSpace));
-					LOG.debug(String.format("Space total:   %,10.2f MB", actualSpace));
-					LOG.debug(String.format("Space %% used: %3.2f %%\n", percent_used));
-				}
+			long start = System.nanoTime();
+			TablespaceMetricBatch readings;
+			long collectedAt;
+			if (cache != null) {
+				TablespaceCache.Snapshot scan = cache.refresh(connection, strategy, debug);
+				readings = scan.getReadings();
+				collectedAt = scan.getCollectedAt();
+			} else {
+				readings = collect(connection, strategy, null, debug);
+				collectedAt = System.currentTimeMillis();
 			}
+			long collectMillis = (System.nanoTime() - start) / 1000000L;
 
 			// verify level
-			checkLevel(readings, warning, crtical);
+			CheckResult result = checkLevel(readings, options.getThresholds(), options.getLimit(), new PerfData(
+					"collect_ms", collectMillis, "ms", 0));
+			return applyHistory(result, options, collectedAt, readings);
 
 		} catch (SQLException e) {
-			System.err.println(e);
-			System.exit(UNKNOWN.getCode());
-		} finally {
-			if (rs != null) {
-				try {
-					rs.close();
-				} catch (SQLException muted) {
+			return CheckResult.unknown(e.toString());
+		}
+
+	}
+
+	/**
+	 * Checks all tablespace usage of a cached scan, recording the scan in the history unless it is already recorded
+	 *
+	 * @param snapshot cached scan
+	 * @param options history, output limit and thresholds of the check
+	 * @return check result
+	 */
+	static CheckResult checkSnapshot(TablespaceCache.Snapshot snapshot, TablespaceCheckOptions options) {
+		CheckResult result = checkLevel(snapshot.getReadings(), options.getThresholds(), options.getLimit(),
+				cacheAgePerfData(snapshot));
+		return applyHistory(result, options, snapshot.getCollectedAt(), snapshot.getReadings());
+	}
+
+	private static CheckResult applyHistory(CheckResult result, TablespaceCheckOptions options, long collectedAt,
+			TablespaceMetricBatch readings) {
+		TablespaceHistory history = options.getHistory();
+		if (history == null) {
+			return result;
+		}
+		CheckResult combined = history.apply(result, collectedAt, readings);
+		// growth perfdata only for the tablespaces that kept their usage perfdata
+		OutputLimit limit = options.getLimit();
+		return limit == null || limit.getPerfDataMode() == OutputLimit.PerfDataMode.ALL ? combined : limit
+				.retainGrowth(combined);
+	}
+
+	static PerfData cacheAgePerfData(TablespaceCache.Snapshot snapshot) {
+		return new PerfData("cache_age", snapshot.getAgeMillis() / 1000, "s", 0);
+	}
+
+	/**
+	 * Collects the usage of all tablespaces, or of a single one. Concurrent identical collections for the same database
+	 * and user share one query, so the returned batch is sealed.
+	 *
+	 * @param connection SQL connection
+	 * @param strategy collection strategy
+	 * @param tablespaceName tablespace to collect, or null for all tablespaces
+	 * @param debug flag to enable debug logging
+	 * @return tablespace readings
+	 * @throws SQLException thrown when the query fails
+	 */
+	public static TablespaceMetricBatch collect(final Connection connection, final TablespaceStrategy strategy,
+			final String tablespaceName, final boolean debug) throws SQLException {
+		final String target = targetOf(connection);
+		String key = target + "/" + strategy.getName() + "/"
+				+ (tablespaceName == null ? "" : TablespaceStrategy.normalizeTablespaceName(tablespaceName));
+		return COLLECTIONS.execute(key, Deadline.of(connection), new Callable<TablespaceMetricBatch>() {
+
+			@Override
+			public TablespaceMetricBatch call() throws SQLException {
+				if (tablespaceName != null) {
+					return query(connection, strategy, tablespaceName, 1, debug);
 				}
+				Integer expected = TABLESPACE_COUNTS.get(target);
+				TablespaceMetricBatch readings = query(connection, strategy, null,
+						expected == null ? DEFAULT_TABLESPACE_COUNT : expected, debug);
+				TABLESPACE_COUNTS.put(target, readings.size());
+				return readings;
 			}
-			if (pstmt != null) {
-				try {
-					pstmt.close();
-				} catch (SQLException muted) {
-				}
+		});
+	}
 
+	/**
+	 * Collects the usage of the given tablespaces, e.g. those that changed since the last scan. Tablespaces that do not
+	 * exist are left out.
+	 *
+	 * @param connection SQL connection
+	 * @param strategy collection strategy
+	 * @param tablespaceNames names of the tablespaces as stored in the dictionary
+	 * @param debug flag to enable debug logging
+	 * @return tablespace readings
+	 * @throws SQLException thrown when a query fails
+	 */
+	public static TablespaceMetricBatch collectTablespaces(Connection connection, TablespaceStrategy strategy,
+			List<String> tablespaceNames, boolean debug) throws SQLException {
+		TablespaceMetricBatch readings = new TablespaceMetricBatch(tablespaceNames.size());
+		for (int from = 0; from < tablespaceNames.size(); from += MAX_TABLESPACE_LIST) {
+			List<String> names = tablespaceNames.subList(from, Math.min(from + MAX_TABLESPACE_LIST, tablespaceNames
+					.size()));
+			int count = Integer.highestOneBit(names.size());
+			count = count == names.size() ? count : count * 2;
+			String[] parameters = new String[strategy.getTablespaceBindCount() * count];
+			for (int filter = 0; filter < strategy.getTablespaceBindCount(); filter++) {
+				for (int i = 0; i < count; i++) {
+					// padding repeats the last name, which does not change the result
+					parameters[filter * count + i] = names.get(Math.min(i, names.size() - 1));
+				}
 			}
+			Rows.read(connection, strategy.getTablespacesQuery(count), names.size(), new BatchReader(readings),
+					parameters);
+		}
+		if (debug) {
+			LOG.debug("Collected {} of {} tablespaces", readings.size(), tablespaceNames.size());
+		}
+		return readings.seal();
+	}
 
+	private static TablespaceMetricBatch query(Connection connection, TablespaceStrategy strategy,
+			String tablespaceName, int expectedRows, boolean debug) throws SQLException {
+
+		TablespaceMetricBatch readings = new TablespaceMetricBatch(expectedRows);
+		if (tablespaceName == null) {
+			Rows.read(connection, strategy.getQuery(), expectedRows, new BatchReader(readings));
+		} else {
+			String normalized = TablespaceStrategy.normalizeTablespaceName(tablespaceName);
+			String[] parameters = new String[strategy.getTablespaceBindCount()];
+			Arrays.fill(parameters, normalized);
+			Rows.read(connection, strategy.getTablespaceQuery(), expectedRows, new BatchReader(readings), parameters);
+		}
+
+		if (debug) {
+			for (int i = 0; i < readings.size(); i++) {
+				LOG.debug(String.format("Name:          %s ", readings.getTablespaceName(i)));
+				LOG.debug(String.format("Space used:    %,10.2f MB", readings.getUsedCapacityMb(i)));
+				LOG.debug(String.format("Space total:   %,10.2f MB", readings.getTotalCapacityMb(i)));
+				LOG.debug(String.format("Space %% used: %3.2f %%\n", readings.getUsedCapacityPct(i)));
+			}
 		}
 
+		return readings.seal();
 	}
 
 }
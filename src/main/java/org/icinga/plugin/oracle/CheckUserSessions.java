@@ -1,70 +1,78 @@
-package org.icinga.plugin.oracle;
-
-import static org.icinga.plugin.oracle.NagiosStatus.UNKNOWN;
-
-import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-/**
- * Check to provide count of active session for the given username.
- * 
- * @author Aparna Chaudhary
- * @author David Webb
- */
-public class CheckUserSessions extends CheckAdapter {
-
-	private static final Logger logger = LoggerFactory.getLogger(CheckTablespace.class);
-
-	/**
-	 * Checks active session count for the given username.
-	 * 
-	 * @param connection SQL connection
-	 * @param username user for which active session count is checked
-	 * @param warningThreshold warning threshold
-	 * @param crticalThreshold critical threshold
-	 * @param debug
-	 */
-	public static void performCheck(Connection connection, String username, String warningThreshold,
-			String crticalThreshold, boolean debug) {
-		try {
-			String query = "SELECT COUNT(1) FROM v$session WHERE username ='" + username + "'";
-
-			if (debug) {
-				logger.debug("Executing query " + query);
-			}
-
-			// execute query
-			Statement statement = connection.createStatement();
-			ResultSet rs = statement.executeQuery(query);
-
-			int usedSessions = 0;
-			int warning = Integer.valueOf(warningThreshold);
-			int crtical = Integer.valueOf(crticalThreshold);
-			while (rs.next()) {
-				usedSessions = rs.getInt(1);
-				if (debug) {
-					logger.debug(String.format("Name: %20s ", username));
-					logger.debug(String.format("Session used: ", usedSessions));
-				}
-			}
-
-			rs.close();
-			statement.close();
-
-			String perfdata = username + "_sessions=" + usedSessions + ";" + warning + ";" + crtical;
-			String output = username + ": active sessions " + usedSessions + "|" + perfdata;
-
-			checkLevel(usedSessions, warning, crtical, output);
-
-		} catch (SQLException e) {
-			System.err.println(e);
-			System.exit(UNKNOWN.getCode());
-		}
-
-	}
-}
+package org.icinga.plugin.oracle;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Check to provide count of active session for the given username.
+ * 
+ * @author Aparna Chaudhary
+ * @author David Webb
+ */
+public class CheckUserSessions extends CheckAdapter {
+
+	private static final Logger logger = LoggerFactory.getLogger(CheckTablespace.class);
+
+	static final SingleFlight<String, Integer> COUNTS = new SingleFlight<String, Integer>();
+
+	/**
+	 * Checks active session count for the given username.
+	 * 
+	 * @param connection SQL connection
+	 * @param username user for which active session count is checked
+	 * @param warningThreshold warning threshold
+	 * @param crticalThreshold critical threshold
+	 * @param debug
+	 * @return check result
+	 */
+	public static CheckResult performCheck(Connection connection, String username, String warningThreshold,
+			String crticalThreshold, boolean debug) {
+
+		try {
+
+			Thresholds.Levels levels = countLevels(warningThreshold, crticalThreshold);
+			int usedSessions = count(connection, username, debug);
+
+			PerfData perfdata = new PerfData(username + "_sessions", usedSessions, "", levels.getWarning()
+					.getUpperBound(), levels.getCritical().getUpperBound(), null, null, 0);
+			String output = username + ": active sessions " + usedSessions;
+
+			return checkLevel(usedSessions, levels, output, perfdata);
+
+		} catch (SQLException e) {
+			return CheckResult.unknown(e.toString());
+		}
+
+	}
+
+	/**
+	 * Counts the sessions of the given username. Concurrent counts for the same database, user and username share one
+	 * query.
+	 * 
+	 * @param connection SQL connection
+	 * @param username user whose sessions are counted
+	 * @param debug flag to enable debug logging
+	 * @return session count
+	 * @throws SQLException thrown when the query fails
+	 */
+	public static int count(final Connection connection, final String username, final boolean debug)
+			throws SQLException {
+		return COUNTS.execute(targetOf(connection) + "/" + username, Deadline.of(connection), new Callable<Integer>() {
+
+			@Override
+			public Integer call() throws SQLException {
+				int usedSessions = Rows.queryInt(connection, "SELECT COUNT(1) FROM v$session WHERE username = ?",
+						username);
+				if (debug) {
+					logger.debug(String.format("Name: %20s ", username));
+					logger.debug(String.format("Session used: %d", usedSessions));
+				}
+				return usedSessions;
+			}
+		});
+	}
+}
@@ -0,0 +1,516 @@
+package org.icinga.plugin.oracle;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import oracle.jdbc.OracleConnection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of warm Oracle connections for long running execution, partitioned by host, port, instance and user.
+ * <p>
+ * Idle connections are validated with a driver ping before reuse once they have been idle longer than the validation
+ * interval, and closed by a background evictor once they have been idle longer than the idle timeout. The number of
+ * connections per database is capped, and every connection gets an implicit statement cache.
+ * <p>
+ * Idle connections are only handed to callers presenting the password they were logged on with, compared by a salted
+ * digest, so a wrong password never gets a connection of the right one. A successful logon with a new password closes
+ * the idle connections of the old one.
+ *
+ * @author David Webb
+ */
+public class ConnectionPool {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ConnectionPool.class);
+
+	private static final int VALIDATION_TIMEOUT = 5;
+	private static final long VALIDATION_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+	private static final long BORROW_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+
+	private final int maxPerDatabase;
+	private final long idleTimeout;
+	private final int statementCacheSize;
+
+	private final ConcurrentMap<Key, Partition> partitions = new ConcurrentHashMap<Key, Partition>();
+	private final Map<Connection, Lease> leased = new IdentityHashMap<Connection, Lease>();
+	private final byte[] salt = new byte[16];
+	private final ScheduledExecutorService evictor;
+	private final ExecutorService logons;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * @param maxPerDatabase maximum number of open connections per database and user
+	 * @param idleTimeoutSeconds seconds after which an unused connection is closed
+	 * @param statementCacheSize number of prepared statements cached per connection
+	 */
+	public ConnectionPool(int maxPerDatabase, int idleTimeoutSeconds, int statementCacheSize) {
+		this.maxPerDatabase = maxPerDatabase;
+		this.idleTimeout = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+		this.statementCacheSize = statementCacheSize;
+		new SecureRandom().nextBytes(salt);
+
+		this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "connection-pool-evictor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.logons = Executors.newCachedThreadPool(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "connection-pool-logon");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long period = Math.max(1, idleTimeoutSeconds / 2);
+		this.evictor.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				evictIdle();
+			}
+		}, period, period, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Borrows a connection, reusing a validated idle one where possible. The connection must be handed back through
+	 * {@link #release(Connection, boolean)}.
+	 *
+	 * @param hostname oracle server host
+	 * @param port listener port
+	 * @param instance instance name
+	 * @param username DBA user name
+	 * @param password password
+	 * @return SQL connection
+	 * @throws SQLException thrown when no connection could be obtained
+	 */
+	public Connection borrow(String hostname, Integer port, String instance, String username, String password)
+			throws SQLException {
+		return borrow(hostname, port, instance, username, password, BORROW_TIMEOUT);
+	}
+
+	/**
+	 * Borrows a connection, waiting at most the given time for a free connection, for the validation of an idle one and
+	 * for a new connection to be established. The connection must be handed back through
+	 * {@link #release(Connection, boolean)}.
+	 *
+	 * @param hostname oracle server host
+	 * @param port listener port
+	 * @param instance instance name
+	 * @param username DBA user name
+	 * @param password password
+	 * @param timeoutMillis milliseconds to wait for a connection
+	 * @return SQL connection
+	 * @throws SQLException thrown when no connection could be obtained
+	 */
+	public Connection borrow(String hostname, Integer port, String instance, String username, String password,
+			long timeoutMillis) throws SQLException {
+		long start = System.nanoTime();
+		if (closed) {
+			throw new SQLException("Connection pool is closed");
+		}
+
+		Key key = new Key(hostname, port, instance, username);
+		Partition partition = partitions.get(key);
+		if (partition == null) {
+			Partition created = new Partition(key);
+			partition = partitions.putIfAbsent(key, created);
+			if (partition == null) {
+				partition = created;
+			}
+		}
+
+		try {
+			if (!partition.permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				throw new SQLException(String.format("Timed out waiting for one of %d connections to %s", maxPerDatabase,
+						key));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a connection to " + key);
+		}
+
+		try {
+			byte[] credential = credentialOf(password);
+			Connection connection = partition.take(credential, remaining(start, timeoutMillis));
+			if (connection == null) {
+				connection = open(key, password, remaining(start, timeoutMillis));
+				LOG.debug("Opened new connection to {}", key);
+				partition.loggedOn(credential);
+			}
+			synchronized (leased) {
+				leased.put(connection, new Lease(partition, credential));
+			}
+			return connection;
+		} catch (SQLException e) {
+			partition.permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			partition.permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Hands a borrowed connection back to the pool.
+	 *
+	 * @param connection borrowed connection
+	 * @param reusable false if the connection may be broken and must be closed
+	 */
+	public void release(Connection connection, boolean reusable) {
+		Lease lease;
+		synchronized (leased) {
+			lease = leased.remove(connection);
+		}
+		if (lease == null) {
+			close(connection);
+			return;
+		}
+		try {
+			if (reusable && !closed) {
+				lease.partition.give(connection, lease.credential);
+			} else {
+				close(connection);
+			}
+		} finally {
+			lease.partition.permits.release();
+		}
+	}
+
+	/**
+	 * Closes all idle connections and stops the evictor. Leased connections are closed on release.
+	 */
+	public void close() {
+		closed = true;
+		evictor.shutdownNow();
+		logons.shutdown();
+		for (Partition partition : partitions.values()) {
+			partition.evict(true);
+		}
+	}
+
+	private void evictIdle() {
+		for (Partition partition : partitions.values()) {
+			partition.evict(false);
+		}
+	}
+
+	private static long remaining(long start, long timeoutMillis) {
+		return Math.max(1, timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	/**
+	 * Logs on within the given time. Pooled connections get no read timeout, as the driver would keep it for every
+	 * later read, whatever the --timeout of the check using the connection; the deadlines of the checks bound their
+	 * statements instead. The logon runs on a separate thread the caller stops waiting for when the time is up.
+	 */
+	private Connection open(Key key, String password, long timeoutMillis) throws SQLException {
+		Properties properties = new Properties();
+		properties.setProperty(OracleConnection.CONNECTION_PROPERTY_THIN_NET_CONNECT_TIMEOUT,
+				String.valueOf(timeoutMillis));
+		properties.setProperty("user", key.username);
+		properties.setProperty("password", password);
+		properties.setProperty(OracleConnection.CONNECTION_PROPERTY_IMPLICIT_STATEMENT_CACHE_SIZE,
+				String.valueOf(statementCacheSize));
+		String url = CheckOracle.getConnectionUrl(key.hostname, key.port, key.instance);
+
+		Logon logon = new Logon(url, properties);
+		Future<Connection> future;
+		try {
+			future = logons.submit(logon);
+		} catch (RejectedExecutionException e) {
+			throw new SQLException("Connection pool is closed");
+		}
+		try {
+			return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			Connection connection = logon.abandon();
+			if (connection != null) {
+				return connection;
+			}
+			throw new SQLTimeoutException(String.format("Logon to %s took longer than %d ms", key, timeoutMillis));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close(logon.abandon());
+			throw new SQLException("Interrupted logging on to " + key);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException) {
+				throw (SQLException) e.getCause();
+			}
+			throw new SQLException("Failed to log on to " + key, e.getCause());
+		}
+	}
+
+	/**
+	 * Digests a password with the salt of the pool, so the pool keeps no password
+	 */
+	private byte[] credentialOf(String password) throws SQLException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(salt);
+			return digest.digest(String.valueOf(password).getBytes(Charset.forName("UTF-8")));
+		} catch (NoSuchAlgorithmException e) {
+			throw new SQLException("Failed to digest the password", e);
+		}
+	}
+
+	private static void close(Connection connection) {
+		if (connection == null) {
+			return;
+		}
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			LOG.warn("SQLException closing pooled connection", e);
+		}
+	}
+
+	/**
+	 * Idle connections of one database and user.
+	 */
+	private final class Partition {
+
+		private final Key key;
+		private final Semaphore permits = new Semaphore(maxPerDatabase, true);
+		private final Deque<Idle> idle = new ArrayDeque<Idle>();
+
+		Partition(Key key) {
+			this.key = key;
+		}
+
+		/**
+		 * Takes the most recently used idle connection logged on with the credential that passes validation within the
+		 * given time.
+		 */
+		Connection take(byte[] credential, long timeoutMillis) {
+			long start = System.nanoTime();
+			while (true) {
+				Idle entry = null;
+				synchronized (this) {
+					Iterator<Idle> iterator = idle.iterator();
+					while (iterator.hasNext() && entry == null) {
+						Idle candidate = iterator.next();
+						if (MessageDigest.isEqual(candidate.credential, credential)) {
+							entry = candidate;
+							iterator.remove();
+						}
+					}
+				}
+				if (entry == null) {
+					return null;
+				}
+				if (System.nanoTime() - entry.since < VALIDATION_INTERVAL || isValid(entry.connection, remaining(start,
+						timeoutMillis))) {
+					return entry.connection;
+				}
+				LOG.debug("Discarding invalid connection to {}", key);
+				close(entry.connection);
+			}
+		}
+
+		synchronized void give(Connection connection, byte[] credential) {
+			idle.addFirst(new Idle(connection, credential, System.nanoTime()));
+		}
+
+		/**
+		 * Closes the idle connections of other passwords once a logon succeeded, as the password has changed
+		 */
+		void loggedOn(byte[] credential) {
+			List<Connection> stale = new ArrayList<Connection>();
+			synchronized (this) {
+				Iterator<Idle> iterator = idle.iterator();
+				while (iterator.hasNext()) {
+					Idle entry = iterator.next();
+					if (!MessageDigest.isEqual(entry.credential, credential)) {
+						stale.add(entry.connection);
+						iterator.remove();
+					}
+				}
+			}
+			for (Connection connection : stale) {
+				close(connection);
+			}
+		}
+
+		/**
+		 * Closes idle connections, oldest first, that exceeded the idle timeout or all of them.
+		 */
+		void evict(boolean all) {
+			List<Connection> expired = new ArrayList<Connection>();
+			long now = System.nanoTime();
+			synchronized (this) {
+				Iterator<Idle> iterator = idle.descendingIterator();
+				while (iterator.hasNext()) {
+					Idle entry = iterator.next();
+					if (!all && now - entry.since < idleTimeout) {
+						break;
+					}
+					expired.add(entry.connection);
+					iterator.remove();
+				}
+			}
+			for (Connection connection : expired) {
+				LOG.debug("Evicting idle connection to {}", key);
+				close(connection);
+			}
+		}
+
+		private boolean isValid(Connection connection, long timeoutMillis) {
+			try {
+				// zero would wait without a timeout
+				return connection.isValid((int) Math.max(1, Math.min(VALIDATION_TIMEOUT, timeoutMillis / 1000)));
+			} catch (SQLException e) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Logon on a pool thread. A connection that arrives after the borrower gave up is closed.
+	 */
+	private static final class Logon implements Callable<Connection> {
+
+		private final String url;
+		private final Properties properties;
+		private Connection connection;
+		private boolean abandoned;
+
+		Logon(String url, Properties properties) {
+			this.url = url;
+			this.properties = properties;
+		}
+
+		@Override
+		public Connection call() throws SQLException {
+			Connection opened = CheckOracle.getDriver().connect(url, properties);
+			if (opened == null) {
+				throw new SQLException("JDBC driver does not accept " + url);
+			}
+			synchronized (this) {
+				if (!abandoned) {
+					connection = opened;
+					return opened;
+				}
+			}
+			LOG.debug("Closing connection to {} that was opened after the borrower gave up", url);
+			close(opened);
+			return null;
+		}
+
+		/**
+		 * Gives up waiting for the logon
+		 *
+		 * @return the connection if it was opened in the meantime, null otherwise
+		 */
+		synchronized Connection abandon() {
+			abandoned = true;
+			return connection;
+		}
+	}
+
+	private static final class Idle {
+
+		private final Connection connection;
+		private final byte[] credential;
+		private final long since;
+
+		Idle(Connection connection, byte[] credential, long since) {
+			this.connection = connection;
+			this.credential = credential;
+			this.since = since;
+		}
+	}
+
+	/**
+	 * Partition and password digest of a borrowed connection.
+	 */
+	private static final class Lease {
+
+		private final Partition partition;
+		private final byte[] credential;
+
+		Lease(Partition partition, byte[] credential) {
+			this.partition = partition;
+			this.credential = credential;
+		}
+	}
+
+	/**
+	 * Pool partition key.
+	 */
+	private static final class Key {
+
+		private final String hostname;
+		private final Integer port;
+		private final String instance;
+		private final String username;
+
+		Key(String hostname, Integer port, String instance, String username) {
+			this.hostname = hostname;
+			this.port = port;
+			this.instance = instance;
+			this.username = username;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = hostname.hashCode();
+			result = 31 * result + port.hashCode();
+			result = 31 * result + instance.hashCode();
+			result = 31 * result + username.hashCode();
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hostname.equals(other.hostname) && port.equals(other.port) && instance.equals(other.instance)
+					&& username.equals(other.username);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s@%s:%s:%s", username, hostname, port, instance);
+		}
+	}
+}
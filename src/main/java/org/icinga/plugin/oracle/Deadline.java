@@ -0,0 +1,284 @@
+package org.icinga.plugin.oracle;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Time budget of a single check, shared by the connect, execute and fetch phases. Statements created through
+ * {@link #guard(Connection)} get the remaining time as query timeout, and a watchdog cancels every open statement when
+ * the deadline expires, so a hung database cannot hold a check for longer than its timeout.
+ *
+ * @author David Webb
+ */
+public final class Deadline {
+
+	public static final String DRIVER = "driver";
+	public static final String CONNECT = "connect";
+	public static final String EXECUTE = "execute";
+	public static final String FETCH = "fetch";
+
+	private static final Logger LOG = LoggerFactory.getLogger(Deadline.class);
+
+	private static final ScheduledExecutorService WATCHDOG = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "check-deadline-watchdog");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final int timeoutSeconds;
+	private final long expiresAt;
+	private final PhaseTimer timer;
+	private final Set<Statement> open = Collections.newSetFromMap(new IdentityHashMap<Statement, Boolean>());
+	private final ScheduledFuture<?> watchdog;
+
+	private volatile String phase = CONNECT;
+	private volatile boolean expired = false;
+
+	/**
+	 * Starts the deadline and its watchdog. {@link #stop()} must be called when the check finishes.
+	 *
+	 * @param timeoutSeconds seconds the check may take
+	 */
+	public Deadline(int timeoutSeconds) {
+		this(timeoutSeconds, new PhaseTimer());
+	}
+
+	/**
+	 * Starts the deadline and its watchdog. {@link #stop()} must be called when the check finishes.
+	 *
+	 * @param timeoutSeconds seconds the check may take
+	 * @param timer timer measuring the phases entered
+	 */
+	public Deadline(int timeoutSeconds, PhaseTimer timer) {
+		if (timeoutSeconds <= 0) {
+			throw new IllegalArgumentException(String.format("Invalid timeout [%d], must be positive", timeoutSeconds));
+		}
+		this.timeoutSeconds = timeoutSeconds;
+		this.timer = timer;
+		this.expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+		this.watchdog = WATCHDOG.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				expire();
+			}
+		}, timeoutSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops the watchdog and the timer
+	 */
+	public void stop() {
+		watchdog.cancel(false);
+		timer.stop();
+	}
+
+	public PhaseTimer getTimer() {
+		return timer;
+	}
+
+	public int getTimeoutSeconds() {
+		return timeoutSeconds;
+	}
+
+	/**
+	 * Returns the phase the check is in, or was in when the deadline expired
+	 *
+	 * @return phase name
+	 */
+	public String getPhase() {
+		return phase;
+	}
+
+	/**
+	 * Enters the given phase
+	 *
+	 * @param newPhase phase name
+	 * @throws SQLTimeoutException thrown when the deadline already expired
+	 */
+	public void enter(String newPhase) throws SQLTimeoutException {
+		if (isExpired()) {
+			throw new SQLTimeoutException(String.format("Deadline expired before %s", newPhase));
+		}
+		phase = newPhase;
+		timer.enter(newPhase);
+	}
+
+	public boolean isExpired() {
+		return expired || remainingMillis() <= 0;
+	}
+
+	/**
+	 * Returns the milliseconds left, never less than 0
+	 *
+	 * @return remaining milliseconds
+	 */
+	public long remainingMillis() {
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime()));
+	}
+
+	/**
+	 * Returns the seconds left rounded up, as accepted by {@link Statement#setQueryTimeout(int)}
+	 *
+	 * @return remaining seconds, at least 1
+	 */
+	public int remainingSeconds() {
+		return (int) Math.max(1, (remainingMillis() + 999) / 1000);
+	}
+
+	/**
+	 * Returns the result of a check that ran out of time
+	 *
+	 * @return UNKNOWN check result naming the phase
+	 */
+	public CheckResult timeoutResult() {
+		return CheckResult.unknown(String.format("Check timed out after %d seconds during %s", timeoutSeconds, phase));
+	}
+
+	/**
+	 * Wraps a connection so every statement it creates is bound to this deadline. The statements enter the execute
+	 * phase when executed and the fetch phase when the execution returns.
+	 *
+	 * @param connection SQL connection
+	 * @return guarded connection, to be closed through the original connection
+	 */
+	public Connection guard(Connection connection) {
+		return (Connection) Proxy.newProxyInstance(Deadline.class.getClassLoader(), new Class<?>[] { Connection.class },
+				new ConnectionGuard(connection));
+	}
+
+	/**
+	 * Returns the deadline a connection was guarded with
+	 *
+	 * @param connection SQL connection
+	 * @return deadline, or null if the connection is not guarded
+	 */
+	public static Deadline of(Connection connection) {
+		if (connection != null && Proxy.isProxyClass(connection.getClass())) {
+			InvocationHandler handler = Proxy.getInvocationHandler(connection);
+			if (handler instanceof ConnectionGuard) {
+				return ((ConnectionGuard) handler).getDeadline();
+			}
+		}
+		return null;
+	}
+
+	private final class ConnectionGuard implements InvocationHandler {
+
+		private final Connection connection;
+
+		ConnectionGuard(Connection connection) {
+			this.connection = connection;
+		}
+
+		Deadline getDeadline() {
+			return Deadline.this;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			Object result = invokeTarget(connection, method, args);
+			if (result instanceof Statement) {
+				return guard((Statement) result);
+			}
+			return result;
+		}
+	}
+
+	private Statement guard(final Statement statement) {
+		Class<?> type = Statement.class;
+		if (statement instanceof CallableStatement) {
+			type = CallableStatement.class;
+		} else if (statement instanceof PreparedStatement) {
+			type = PreparedStatement.class;
+		}
+		return (Statement) Proxy.newProxyInstance(Deadline.class.getClassLoader(), new Class<?>[] { type },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().startsWith("execute")) {
+							enter(EXECUTE);
+							statement.setQueryTimeout(remainingSeconds());
+							register(statement);
+							Object result = invokeTarget(statement, method, args);
+							enter(FETCH);
+							return result;
+						}
+						if (method.getName().equals("close")) {
+							unregister(statement);
+						}
+						return invokeTarget(statement, method, args);
+					}
+				});
+	}
+
+	private void register(Statement statement) throws SQLTimeoutException {
+		synchronized (open) {
+			open.add(statement);
+		}
+		if (expired) {
+			// the watchdog fired between entering the phase and registering
+			cancel(statement);
+			throw new SQLTimeoutException(String.format("Deadline expired before %s", phase));
+		}
+	}
+
+	private void unregister(Statement statement) {
+		synchronized (open) {
+			open.remove(statement);
+		}
+	}
+
+	private void expire() {
+		expired = true;
+		Statement[] statements;
+		synchronized (open) {
+			statements = open.toArray(new Statement[open.size()]);
+		}
+		for (Statement statement : statements) {
+			cancel(statement);
+		}
+	}
+
+	private void cancel(Statement statement) {
+		try {
+			statement.cancel();
+			LOG.debug("Cancelled statement after {} seconds during {}", timeoutSeconds, phase);
+		} catch (SQLException e) {
+			LOG.warn("SQLException cancelling statement", e);
+		}
+	}
+
+	private static Object invokeTarget(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
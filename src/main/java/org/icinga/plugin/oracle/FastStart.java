@@ -0,0 +1,35 @@
+package org.icinga.plugin.oracle;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * Entry point of the startup-optimized jar built with <code>-Pfast-start</code>, which leaves out logback: binding
+ * slf4j to logback and reading its configuration takes longer than most checks, although the root logger is off. slf4j
+ * falls back to its no-operation logger without a binding and reports that on stderr, which Icinga would show with the
+ * plugin output, so the report is swallowed before the check starts.
+ * <p>
+ * The launcher runs the full jar instead when <code>--debug</code> is given.
+ *
+ * @author David Webb
+ */
+public class FastStart {
+
+	public static void main(String args[]) {
+		PrintStream err = System.err;
+		System.setErr(new PrintStream(new OutputStream() {
+
+			@Override
+			public void write(int b) {
+			}
+		}));
+		try {
+			LoggerFactory.getILoggerFactory();
+		} finally {
+			System.setErr(err);
+		}
+		CheckOracle.main(args);
+	}
+}
@@ -0,0 +1,71 @@
+package org.icinga.plugin.oracle;
+
+import java.util.Locale;
+
+/**
+ * Writes numbers with a fixed number of fraction digits into a buffer, with the same output as
+ * <code>String.format(Locale.ROOT, "%.nf", value)</code> but without creating a formatter, a pattern or a string per
+ * number. Only very large numbers and more than 9 fraction digits are left to <code>String.format</code>.
+ *
+ * @author David Webb
+ */
+final class FixedPoint {
+
+	private static final long[] POWERS = { 1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L,
+			1000000000L };
+
+	/**
+	 * Scaled values from here on have too few fraction bits to tell the rounding direction reliably
+	 */
+	private static final double LIMIT = 1e12;
+
+	/**
+	 * Distance from a half within which the rounding of the shortest decimal representation, which the formatter
+	 * rounds, may differ from the rounding of the scaled binary value
+	 */
+	private static final double HALF_MARGIN = 1e-3;
+
+	private FixedPoint() {
+	}
+
+	/**
+	 * Appends the number rounded half up to the given fraction digits
+	 *
+	 * @param out buffer
+	 * @param value number
+	 * @param decimals fraction digits
+	 * @return the buffer
+	 */
+	static StringBuilder append(StringBuilder out, double value, int decimals) {
+		if (decimals < 0 || decimals >= POWERS.length || Double.isNaN(value) || Double.isInfinite(value)) {
+			return out.append(String.format(Locale.ROOT, "%." + decimals + "f", value));
+		}
+		long scale = POWERS[decimals];
+		double scaled = Math.abs(value) * scale;
+		double floor = Math.floor(scaled);
+		double fraction = scaled - floor;
+		if (scaled >= LIMIT) {
+			return out.append(String.format(Locale.ROOT, "%." + decimals + "f", value));
+		}
+		boolean up = fraction > 0.5;
+		if (Math.abs(fraction - 0.5) < HALF_MARGIN) {
+			// the formatter rounds the shortest decimal representation half up, which is at or above the half exactly
+			// when the value is at or above the double nearest to the half
+			up = Math.abs(value) >= (floor + 0.5) / scale;
+		}
+		long units = (long) floor + (up ? 1 : 0);
+		if (Double.doubleToRawLongBits(value) < 0) {
+			// the formatter keeps the sign of negative values rounded to zero, and of -0.0
+			out.append('-');
+		}
+		out.append(units / scale);
+		if (decimals > 0) {
+			out.append('.');
+			long digits = units % scale;
+			for (long divisor = scale / 10; divisor > 0; divisor /= 10) {
+				out.append((char) ('0' + digits / divisor % 10));
+			}
+		}
+		return out;
+	}
+}
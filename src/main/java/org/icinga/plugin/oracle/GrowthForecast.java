@@ -0,0 +1,141 @@
+package org.icinga.plugin.oracle;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Growth forecast of one tablespace: an exponentially weighted least squares regression of the used space over time,
+ * updated in constant time and space per sample. Samples lose half of their weight every {@link #HALF_LIFE_HOURS}, so
+ * the growth rate follows recent trends.
+ * <p>
+ * The sums are kept relative to the newest sample, which keeps the time values small however long the history gets.
+ *
+ * @author David Webb
+ */
+public final class GrowthForecast {
+
+	/**
+	 * Hours after which a sample counts half
+	 */
+	public static final double HALF_LIFE_HOURS = 7 * 24;
+
+	/**
+	 * Samples and hours needed before a growth rate is reported
+	 */
+	static final int MIN_SAMPLES = 3;
+	static final double MIN_SPAN_HOURS = 1;
+
+	private static final double MILLIS_PER_HOUR = 3600000d;
+
+	private long first;
+	private long last;
+	private int samples;
+	private double usedMb;
+	private double totalMb;
+
+	// weighted sums of 1, t, t^2, y and t*y with t in hours relative to the last sample
+	private double s0;
+	private double st;
+	private double stt;
+	private double sy;
+	private double sty;
+
+	/**
+	 * Adds a sample
+	 *
+	 * @param timestamp time of the sample in milliseconds since the epoch
+	 * @param used used space in MB
+	 * @param total total space in MB
+	 * @return false if the sample is not newer than the last one and was ignored
+	 */
+	public boolean update(long timestamp, double used, double total) {
+		if (samples > 0) {
+			if (timestamp <= last) {
+				return false;
+			}
+			double dt = (timestamp - last) / MILLIS_PER_HOUR;
+			double decay = Math.pow(0.5, dt / HALF_LIFE_HOURS);
+			// shift the origin to the new sample, then decay
+			stt = decay * (stt - 2 * dt * st + dt * dt * s0);
+			st = decay * (st - dt * s0);
+			sty = decay * (sty - dt * sy);
+			s0 = decay * s0;
+			sy = decay * sy;
+		} else {
+			first = timestamp;
+		}
+		s0 += 1;
+		sy += used;
+		last = timestamp;
+		usedMb = used;
+		totalMb = total;
+		samples++;
+		return true;
+	}
+
+	/**
+	 * Returns the growth rate of the used space
+	 *
+	 * @return MB per hour, or NaN while there are too few samples
+	 */
+	public double getGrowthMbPerHour() {
+		if (samples < MIN_SAMPLES || (last - first) / MILLIS_PER_HOUR < MIN_SPAN_HOURS) {
+			return Double.NaN;
+		}
+		double denominator = s0 * stt - st * st;
+		if (denominator <= 0) {
+			return Double.NaN;
+		}
+		return (s0 * sty - st * sy) / denominator;
+	}
+
+	/**
+	 * Returns the hours until the used space reaches the total space at the current growth rate
+	 *
+	 * @return hours, or infinity if the tablespace does not grow or the growth rate is not known yet
+	 */
+	public double getHoursUntilFull() {
+		double growth = getGrowthMbPerHour();
+		if (Double.isNaN(growth) || growth <= 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return Math.max(0, totalMb - usedMb) / growth;
+	}
+
+	public long getLastTimestamp() {
+		return last;
+	}
+
+	public int getSamples() {
+		return samples;
+	}
+
+	void write(DataOutput out) throws IOException {
+		out.writeLong(first);
+		out.writeLong(last);
+		out.writeInt(samples);
+		out.writeDouble(usedMb);
+		out.writeDouble(totalMb);
+		out.writeDouble(s0);
+		out.writeDouble(st);
+		out.writeDouble(stt);
+		out.writeDouble(sy);
+		out.writeDouble(sty);
+	}
+
+	static GrowthForecast read(DataInput in) throws IOException {
+		GrowthForecast forecast = new GrowthForecast();
+		forecast.first = in.readLong();
+		forecast.last = in.readLong();
+		forecast.samples = in.readInt();
+		forecast.usedMb = in.readDouble();
+		forecast.totalMb = in.readDouble();
+		forecast.s0 = in.readDouble();
+		forecast.st = in.readDouble();
+		forecast.stt = in.readDouble();
+		forecast.sy = in.readDouble();
+		forecast.sty = in.readDouble();
+		return forecast;
+	}
+}
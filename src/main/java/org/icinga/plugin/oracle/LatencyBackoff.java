@@ -0,0 +1,58 @@
+package org.icinga.plugin.oracle;
+
+/**
+ * Stretches the collection interval of a database while it answers slowly. Keeps a moving average of the collection
+ * latency; while the average exceeds the latency budget, the interval grows in proportion to it, up to a cap, and it
+ * shrinks back as the latency recovers. The share of time the database spends on the collections thus stays at the
+ * share the budget was chosen for.
+ *
+ * @author David Webb
+ */
+public final class LatencyBackoff {
+
+	/**
+	 * Weight of the newest latency in the moving average
+	 */
+	static final double SMOOTHING = 0.3;
+
+	/**
+	 * Cap of the interval in multiples of the configured interval when no cap is given
+	 */
+	public static final int DEFAULT_MAX_FACTOR = 10;
+
+	private double latencyMillis = Double.NaN;
+
+	/**
+	 * Adds the latency of a collection, successful or not
+	 *
+	 * @param millis collection latency
+	 */
+	public synchronized void record(long millis) {
+		latencyMillis = Double.isNaN(latencyMillis) ? millis : SMOOTHING * millis + (1 - SMOOTHING) * latencyMillis;
+	}
+
+	/**
+	 * Returns the moving average of the collection latency
+	 *
+	 * @return milliseconds, or NaN before the first collection
+	 */
+	public synchronized double getLatencyMillis() {
+		return latencyMillis;
+	}
+
+	/**
+	 * Returns the interval to wait between collections
+	 *
+	 * @param intervalMillis configured interval
+	 * @param budgetMillis latency the configured interval is meant for, 0 to never stretch the interval
+	 * @param capMillis longest interval
+	 * @return configured interval while the latency is within the budget, otherwise the stretched interval
+	 */
+	public long stretch(long intervalMillis, long budgetMillis, long capMillis) {
+		double latency = getLatencyMillis();
+		if (budgetMillis <= 0 || Double.isNaN(latency) || latency <= budgetMillis) {
+			return intervalMillis;
+		}
+		return (long) Math.min(intervalMillis * latency / budgetMillis, Math.max(intervalMillis, capMillis));
+	}
+}
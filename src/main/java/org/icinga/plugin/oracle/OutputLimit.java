@@ -0,0 +1,190 @@
+package org.icinga.plugin.oracle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.icinga.plugin.oracle.bean.TablespaceMetricBatch;
+
+/**
+ * Bounds the output of the check of all tablespaces, so that databases with thousands of tablespaces stay within the
+ * plugin output limit of Icinga: only the N fullest tablespaces are named, the remaining violations are summarized as
+ * counts, and the perfdata can be restricted to the named tablespaces or to the tablespaces that changed.
+ * <p>
+ * The fullest tablespaces are selected with a heap bounded to N entries, so the memory used does not grow with the
+ * number of tablespaces.
+ *
+ * @author David Webb
+ */
+public final class OutputLimit {
+
+	/**
+	 * Tablespaces that get perfdata
+	 */
+	public enum PerfDataMode {
+
+		/**
+		 * every tablespace
+		 */
+		ALL,
+
+		/**
+		 * the N fullest tablespaces
+		 */
+		TOP,
+
+		/**
+		 * violating tablespaces and tablespaces whose used space changed since the previous check of the database in
+		 * this process
+		 */
+		CHANGED;
+
+		public static PerfDataMode fromName(String name) {
+			try {
+				return valueOf(name.trim().toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException(String.format("Invalid perfdata mode [%s], valid are all, top, "
+						+ "changed", name));
+			}
+		}
+	}
+
+	/**
+	 * Readings of the previous check, by database
+	 */
+	private static final ConcurrentMap<String, TablespaceMetricBatch> PREVIOUS = new ConcurrentHashMap<String, TablespaceMetricBatch>();
+
+	private final int top;
+	private final PerfDataMode perfDataMode;
+	private final String target;
+
+	/**
+	 * @param top number of tablespaces named in the output
+	 * @param perfDataMode tablespaces that get perfdata
+	 * @param target database and strategy the changes of {@link PerfDataMode#CHANGED} are tracked by
+	 */
+	public OutputLimit(int top, PerfDataMode perfDataMode, String target) {
+		if (top < 1) {
+			throw new IllegalArgumentException("--top must be at least 1");
+		}
+		this.top = top;
+		this.perfDataMode = perfDataMode;
+		this.target = target;
+	}
+
+	public int getTop() {
+		return top;
+	}
+
+	public PerfDataMode getPerfDataMode() {
+		return perfDataMode;
+	}
+
+	/**
+	 * Returns the N most severe tablespaces, critical before warning before OK and fullest first within a status, so
+	 * that tablespaces with their own thresholds are named even when fuller tablespaces are still healthy
+	 *
+	 * @param readings tablespace readings
+	 * @param statuses status of every reading, or null to rank by fullness only
+	 * @return positions of at most N readings
+	 */
+	int[] fullest(final TablespaceMetricBatch readings, final NagiosStatus[] statuses) {
+		Comparator<Integer> fullness = new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer a, Integer b) {
+				int order = statuses == null ? 0 : statuses[a].getCode() - statuses[b].getCode();
+				if (order != 0) {
+					return order;
+				}
+				order = Float.compare(readings.getUsedCapacityPct(a), readings.getUsedCapacityPct(b));
+				return order != 0 ? order : readings.getTablespaceName(b).compareTo(readings.getTablespaceName(a));
+			}
+		};
+		PriorityQueue<Integer> heap = new PriorityQueue<Integer>(Math.min(top, readings.size()) + 1, fullness);
+		for (int i = 0; i < readings.size(); i++) {
+			if (heap.size() < top) {
+				heap.add(i);
+			} else if (fullness.compare(i, heap.peek()) > 0) {
+				heap.poll();
+				heap.add(i);
+			}
+		}
+		int[] fullest = new int[heap.size()];
+		for (int i = fullest.length - 1; i >= 0; i--) {
+			fullest[i] = heap.poll();
+		}
+		return fullest;
+	}
+
+	/**
+	 * Remembers the readings and tells which tablespaces' used space changed since the previous call for the same
+	 * target. Every tablespace has changed on the first call.
+	 *
+	 * @param readings tablespace readings
+	 * @return changed flag of every reading
+	 */
+	boolean[] changed(TablespaceMetricBatch readings) {
+		boolean[] changed = new boolean[readings.size()];
+		TablespaceMetricBatch previous = target == null ? null : PREVIOUS.put(target, readings);
+		if (previous == null) {
+			Arrays.fill(changed, true);
+			return changed;
+		}
+		Map<String, Integer> positions = null;
+		for (int i = 0; i < changed.length; i++) {
+			String name = readings.getTablespaceName(i);
+			int index = i;
+			// the scans list the tablespaces in the same order unless tablespaces were added or dropped
+			if (i >= previous.size() || !name.equals(previous.getTablespaceName(i))) {
+				if (positions == null) {
+					positions = new HashMap<String, Integer>(previous.size() * 2);
+					for (int p = 0; p < previous.size(); p++) {
+						positions.put(previous.getTablespaceName(p), p);
+					}
+				}
+				Integer position = positions.get(name);
+				index = position == null ? -1 : position;
+			}
+			changed[i] = index < 0 || readings.getUsedCapacityMb(i) != previous.getUsedCapacityMb(index);
+		}
+		return changed;
+	}
+
+	/**
+	 * Drops the growth perfdata the tablespace history added for tablespaces without usage perfdata
+	 *
+	 * @param result combined result of the usage check and the history
+	 * @return result with bounded growth perfdata
+	 */
+	CheckResult retainGrowth(CheckResult result) {
+		TablespacePerfData usage = result.getTablespacePerfData();
+		List<PerfData> other = result.getOtherPerfData();
+		Set<String> labels = new HashSet<String>();
+		for (int i = 0; usage != null && i < usage.size(); i++) {
+			labels.add(usage.getLabel(i));
+		}
+		for (PerfData perfData : other) {
+			labels.add(perfData.getLabel());
+		}
+		List<PerfData> retained = new ArrayList<PerfData>(other.size());
+		for (PerfData perfData : other) {
+			String label = perfData.getLabel();
+			if (!label.endsWith(TablespaceHistory.GROWTH_SUFFIX) || labels.contains(label.substring(0, label.length()
+					- TablespaceHistory.GROWTH_SUFFIX.length()))) {
+				retained.add(perfData);
+			}
+		}
+		return retained.size() == other.size() ? result : new CheckResult(result.getStatus(), result.getMessage(),
+				usage, retained);
+	}
+}
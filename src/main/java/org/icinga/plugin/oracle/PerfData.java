@@ -0,0 +1,153 @@
+package org.icinga.plugin.oracle;
+
+/**
+ * Immutable performance data item in the Nagios plugin format
+ * <code>'label'=value[UOM];[warn];[crit];[min];[max]</code>.
+ *
+ * @author David Webb
+ */
+public final class PerfData {
+
+	private final String label;
+	private final double value;
+	private final String unit;
+	private final Double warning;
+	private final Double critical;
+	private final Double min;
+	private final Double max;
+	private final int decimals;
+
+	/**
+	 * @param label label
+	 * @param value measured value
+	 * @param unit unit of measurement, empty for a plain number
+	 * @param decimals number of fraction digits rendered
+	 */
+	public PerfData(String label, double value, String unit, int decimals) {
+		this(label, value, unit, null, null, null, null, decimals);
+	}
+
+	/**
+	 * @param label label
+	 * @param value measured value
+	 * @param unit unit of measurement, empty for a plain number
+	 * @param warning warning threshold, may be null
+	 * @param critical critical threshold, may be null
+	 * @param min minimum value, may be null
+	 * @param max maximum value, may be null
+	 * @param decimals number of fraction digits rendered
+	 */
+	public PerfData(String label, double value, String unit, Double warning, Double critical, Double min, Double max,
+			int decimals) {
+		this.label = label;
+		this.value = value;
+		this.unit = unit == null ? "" : unit;
+		this.warning = warning;
+		this.critical = critical;
+		this.min = min;
+		this.max = max;
+		this.decimals = decimals;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	public double getValue() {
+		return value;
+	}
+
+	public String getUnit() {
+		return unit;
+	}
+
+	public Double getWarning() {
+		return warning;
+	}
+
+	public Double getCritical() {
+		return critical;
+	}
+
+	public Double getMin() {
+		return min;
+	}
+
+	public Double getMax() {
+		return max;
+	}
+
+	public int getDecimals() {
+		return decimals;
+	}
+
+	/**
+	 * Returns a copy with the given label
+	 *
+	 * @param newLabel label
+	 * @return relabeled perfdata
+	 */
+	public PerfData withLabel(String newLabel) {
+		return new PerfData(newLabel, value, unit, warning, critical, min, max, decimals);
+	}
+
+	@Override
+	public String toString() {
+		return appendTo(new StringBuilder()).toString();
+	}
+
+	/**
+	 * Renders the perfdata into the given buffer, writing the numbers without intermediate strings
+	 *
+	 * @param builder buffer
+	 * @return the buffer
+	 */
+	public StringBuilder appendTo(StringBuilder builder) {
+		appendLabel(builder, label).append('=');
+		appendNumber(builder, value, decimals).append(unit);
+		if (warning != null || critical != null || min != null || max != null) {
+			format(builder.append(';'), warning);
+			format(builder.append(';'), critical);
+		}
+		if (min != null || max != null) {
+			format(builder.append(';'), min);
+			format(builder.append(';'), max);
+		}
+		return builder;
+	}
+
+	private StringBuilder format(StringBuilder builder, Double number) {
+		return number == null ? builder : appendNumber(builder, number, decimals);
+	}
+
+	/**
+	 * Appends a label, quoted if it contains blanks, equal signs or quotes
+	 *
+	 * @param builder buffer
+	 * @param label label
+	 * @return the buffer
+	 */
+	static StringBuilder appendLabel(StringBuilder builder, String label) {
+		if (label.indexOf(' ') >= 0 || label.indexOf('=') >= 0 || label.indexOf('\'') >= 0) {
+			return builder.append('\'').append(label.replace("'", "''")).append('\'');
+		}
+		return builder.append(label);
+	}
+
+	/**
+	 * Appends a perfdata number with the given fraction digits
+	 *
+	 * @param builder buffer
+	 * @param number number
+	 * @param decimals fraction digits
+	 * @return the buffer
+	 */
+	static StringBuilder appendNumber(StringBuilder builder, double number, int decimals) {
+		double value = number;
+		if (Math.abs(value) < 0.5 / Math.pow(10, decimals)) {
+			// no "-0.00" for tiny negative values
+			value = 0d;
+		}
+		return FixedPoint.append(builder, value, decimals);
+	}
+}
@@ -0,0 +1,133 @@
+package org.icinga.plugin.oracle;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures where the time of a check goes, phase by phase, with the monotonic clock. Time spent in a phase that is
+ * entered several times, e.g. the execute phase of a batch, is summed up.
+ *
+ * @author David Webb
+ */
+public final class PhaseTimer {
+
+	/**
+	 * From the start of the JVM to the start of the check, only known when the check runs as its own process
+	 */
+	public static final String JVM = "jvm";
+
+	/**
+	 * Loading the JDBC driver
+	 */
+	public static final String DRIVER = "driver";
+
+	private final long start = System.nanoTime();
+	private final Map<String, Long> elapsed = new LinkedHashMap<String, Long>();
+	private String current = null;
+	private long since;
+
+	/**
+	 * Stops the running phase, if any, and starts the given one
+	 *
+	 * @param phase phase name
+	 */
+	public synchronized void enter(String phase) {
+		long now = System.nanoTime();
+		stop(now);
+		current = phase;
+		since = now;
+	}
+
+	/**
+	 * Stops the running phase
+	 */
+	public synchronized void stop() {
+		stop(System.nanoTime());
+	}
+
+	/**
+	 * Adds time measured outside of the timer
+	 *
+	 * @param phase phase name
+	 * @param nanos elapsed nanoseconds
+	 */
+	public synchronized void record(String phase, long nanos) {
+		Long previous = elapsed.get(phase);
+		elapsed.put(phase, previous == null ? nanos : previous + nanos);
+	}
+
+	private void stop(long now) {
+		if (current != null) {
+			record(current, now - since);
+			current = null;
+		}
+	}
+
+	/**
+	 * Returns the elapsed milliseconds of every phase in the order they were first entered, followed by the total
+	 * milliseconds since the timer was created.
+	 *
+	 * @return milliseconds by phase
+	 */
+	public synchronized Map<String, Long> getMillis() {
+		Map<String, Long> millis = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, Long> phase : elapsed.entrySet()) {
+			millis.put(phase.getKey(), TimeUnit.NANOSECONDS.toMillis(phase.getValue()));
+		}
+		millis.put("total", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return millis;
+	}
+
+	/**
+	 * Returns the timings as perfdata labelled <code>&lt;phase&gt;_ms</code>
+	 *
+	 * @return perfdata
+	 */
+	public List<PerfData> toPerfData() {
+		List<PerfData> perfData = new ArrayList<PerfData>();
+		for (Map.Entry<String, Long> phase : getMillis().entrySet()) {
+			perfData.add(new PerfData(phase.getKey() + "_ms", phase.getValue(), "ms", 0));
+		}
+		return perfData;
+	}
+
+	/**
+	 * Renders the timings as a single line JSON object, with the given fields first
+	 *
+	 * @param fields leading string fields, e.g. the target and the status of the check
+	 * @return JSON object
+	 */
+	public String toJson(Map<String, String> fields) {
+		StringBuilder json = new StringBuilder("{");
+		for (Map.Entry<String, String> field : fields.entrySet()) {
+			appendString(json.append(json.length() > 1 ? "," : ""), field.getKey()).append(':');
+			appendString(json, field.getValue());
+		}
+		for (Map.Entry<String, Long> phase : getMillis().entrySet()) {
+			appendString(json.append(json.length() > 1 ? "," : ""), phase.getKey() + "_ms").append(':');
+			json.append(phase.getValue());
+		}
+		return json.append('}').toString();
+	}
+
+	private static StringBuilder appendString(StringBuilder json, String value) {
+		if (value == null) {
+			return json.append("null");
+		}
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		return json.append('"');
+	}
+}
@@ -0,0 +1,21 @@
+package org.icinga.plugin.oracle;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps the current row of a result set to an object. Mappers read the columns by index in the order of the select
+ * list.
+ *
+ * @param <T> mapped type
+ * @author David Webb
+ */
+public interface RowMapper<T> {
+
+	/**
+	 * @param rs result set positioned on the row
+	 * @return mapped row
+	 * @throws SQLException thrown when a column cannot be read
+	 */
+	T map(ResultSet rs) throws SQLException;
+}
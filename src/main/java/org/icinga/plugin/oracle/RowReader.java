@@ -0,0 +1,19 @@
+package org.icinga.plugin.oracle;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Reads the current row of a result set into a target of its own, e.g. the columns of a batch, without creating an
+ * object per row like a {@link RowMapper}. Readers read the columns by index in the order of the select list.
+ *
+ * @author David Webb
+ */
+public interface RowReader {
+
+	/**
+	 * @param rs result set positioned on the row
+	 * @throws SQLException thrown when a column cannot be read
+	 */
+	void read(ResultSet rs) throws SQLException;
+}
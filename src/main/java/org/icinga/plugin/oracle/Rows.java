@@ -0,0 +1,145 @@
+package org.icinga.plugin.oracle;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared result reading of the checks: executes a prepared query with string parameters and maps every row with a
+ * {@link RowMapper}, or passes it to a {@link RowReader}. The fetch size is derived from the number of rows expected,
+ * so a result is usually transferred in a single round-trip instead of one per 10 rows, the default prefetch of the
+ * thin driver.
+ *
+ * @author David Webb
+ */
+public final class Rows {
+
+	private static final Logger LOG = LoggerFactory.getLogger(Rows.class);
+
+	/**
+	 * Default row prefetch of the Oracle thin driver
+	 */
+	public static final int DEFAULT_FETCH_SIZE = 10;
+
+	/**
+	 * Upper bound of the fetch size, the driver allocates its row buffers for the full fetch size
+	 */
+	public static final int MAX_FETCH_SIZE = 1000;
+
+	private Rows() {
+	}
+
+	/**
+	 * Executes the query and maps all rows
+	 *
+	 * @param connection SQL connection
+	 * @param sql query
+	 * @param expectedRows number of rows expected, used to size the fetch
+	 * @param mapper row mapper
+	 * @param parameters values bound to the parameters of the query in order
+	 * @return mapped rows
+	 * @throws SQLException thrown when the query fails
+	 */
+	public static <T> List<T> query(Connection connection, String sql, int expectedRows, final RowMapper<T> mapper,
+			String... parameters) throws SQLException {
+		final List<T> rows = new ArrayList<T>(Math.max(expectedRows, 1));
+		read(connection, sql, expectedRows, new RowReader() {
+
+			@Override
+			public void read(ResultSet rs) throws SQLException {
+				rows.add(mapper.map(rs));
+			}
+		}, parameters);
+		return rows;
+	}
+
+	/**
+	 * Executes the query and passes every row to a reader
+	 *
+	 * @param connection SQL connection
+	 * @param sql query
+	 * @param expectedRows number of rows expected, used to size the fetch
+	 * @param reader row reader
+	 * @param parameters values bound to the parameters of the query in order
+	 * @return number of rows read
+	 * @throws SQLException thrown when the query fails
+	 */
+	public static int read(Connection connection, String sql, int expectedRows, RowReader reader,
+			String... parameters) throws SQLException {
+
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+
+		try {
+
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Executing query " + sql);
+			}
+
+			pstmt = connection.prepareStatement(sql);
+			pstmt.setFetchSize(fetchSize(expectedRows));
+			for (int i = 0; i < parameters.length; i++) {
+				pstmt.setString(i + 1, parameters[i]);
+			}
+			rs = pstmt.executeQuery();
+
+			int rows = 0;
+			while (rs.next()) {
+				reader.read(rs);
+				rows++;
+			}
+			return rows;
+
+		} finally {
+			if (rs != null) {
+				try {
+					rs.close();
+				} catch (SQLException muted) {
+				}
+			}
+			if (pstmt != null) {
+				try {
+					pstmt.close();
+				} catch (SQLException muted) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Executes a query returning a single number, e.g. a count
+	 *
+	 * @param connection SQL connection
+	 * @param sql query
+	 * @param parameters values bound to the parameters of the query in order
+	 * @return value of the first column of the first row, or 0 without rows
+	 * @throws SQLException thrown when the query fails
+	 */
+	public static int queryInt(Connection connection, String sql, String... parameters) throws SQLException {
+		List<Integer> rows = query(connection, sql, 1, new RowMapper<Integer>() {
+
+			@Override
+			public Integer map(ResultSet rs) throws SQLException {
+				return rs.getInt(1);
+			}
+		}, parameters);
+		return rows.isEmpty() ? 0 : rows.get(0);
+	}
+
+	/**
+	 * Returns the fetch size for the expected number of rows: one more than expected, so the end of the result
+	 * arrives with the last row, within the driver default and {@link #MAX_FETCH_SIZE}.
+	 *
+	 * @param expectedRows number of rows expected
+	 * @return fetch size
+	 */
+	public static int fetchSize(int expectedRows) {
+		return Math.max(DEFAULT_FETCH_SIZE, Math.min(MAX_FETCH_SIZE, expectedRows + 1));
+	}
+}
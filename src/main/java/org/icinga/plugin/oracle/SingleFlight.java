@@ -0,0 +1,110 @@
+package org.icinga.plugin.oracle;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent identical collections: while a collection for a key is in flight, further callers with the
+ * same key wait for its result instead of running their own, but no longer than their own deadline allows. Nothing is
+ * cached once the collection completes.
+ * <p>
+ * A collection cancelled by the deadline of its caller, with a query timeout or ORA-01013, says nothing about the
+ * database: callers that joined it and still have time left run the collection again, or join the next one in flight.
+ *
+ * @param <K> key type, e.g. target and collection type
+ * @param <V> result type
+ * @author David Webb
+ */
+public final class SingleFlight<K, V> {
+
+	/**
+	 * ORA-01013, user requested cancel of current operation, as after a query timeout
+	 */
+	private static final int ORA_CANCELLED = 1013;
+
+	private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+	private final AtomicLong saved = new AtomicLong();
+
+	/**
+	 * Runs the collection, or joins the one in flight for the same key
+	 *
+	 * @param key collection key
+	 * @param deadline deadline of the caller, may be null to wait as long as the collection in flight takes
+	 * @param collection collection to run
+	 * @return result of the collection
+	 * @throws SQLException thrown by the collection
+	 * @throws SQLTimeoutException thrown when the deadline expires while waiting for the collection in flight
+	 */
+	public V execute(K key, Deadline deadline, Callable<V> collection) throws SQLException {
+		while (true) {
+			FutureTask<V> task = new FutureTask<V>(collection);
+			FutureTask<V> running = inFlight.putIfAbsent(key, task);
+			if (running == null) {
+				try {
+					task.run();
+					return await(task, null);
+				} finally {
+					inFlight.remove(key, task);
+				}
+			}
+			saved.incrementAndGet();
+			try {
+				return await(running, deadline);
+			} catch (SQLException e) {
+				// an expired deadline of our own fails the joined collection with a timeout as well
+				if (!isCancellation(e) || deadline != null && deadline.isExpired()) {
+					throw e;
+				}
+				saved.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Returns how many collections were answered by joining one in flight
+	 *
+	 * @return saved collections
+	 */
+	public long getSaved() {
+		return saved.get();
+	}
+
+	private static boolean isCancellation(SQLException e) {
+		return e instanceof SQLTimeoutException || e.getErrorCode() == ORA_CANCELLED;
+	}
+
+	private V await(FutureTask<V> task, Deadline deadline) throws SQLException {
+		try {
+			if (deadline == null) {
+				return task.get();
+			}
+			deadline.enter(Deadline.EXECUTE);
+			return task.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw new SQLTimeoutException("Deadline expired waiting for a collection in flight", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a collection in flight", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException) {
+				throw (SQLException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new SQLException(cause);
+		}
+	}
+}
@@ -0,0 +1,465 @@
+package org.icinga.plugin.oracle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.icinga.plugin.oracle.bean.TablespaceMetric;
+import org.icinga.plugin.oracle.bean.TablespaceMetricBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Time limited cache of full tablespace scans of one database, so that per-tablespace checks within the TTL are
+ * answered without a database round-trip.
+ * <p>
+ * Snapshots are kept in the memory of the process, which serves the daemon and batch modes, and optionally in a cache
+ * directory on the monitoring host, which is shared by separate check processes. Cache files are replaced atomically.
+ * <p>
+ * With a latency budget the TTL of a database is stretched by its {@link LatencyBackoff} while its scans take longer
+ * than the budget. While a scan of a database is running in this process, the last snapshot is served however old it
+ * is, so a slow scan is never joined by another one.
+ * <p>
+ * With a full scan interval, an expired snapshot of a strategy that supports it is refreshed incrementally: a
+ * {@link TablespaceProbe} tells which tablespaces changed since the last refresh, only those are collected again and
+ * the other readings are carried over. A full scan still runs once the interval has passed since the last one, when
+ * there is no probe of the last refresh, which is only kept in memory, or when too many tablespaces changed.
+ *
+ * @author David Webb
+ */
+public class TablespaceCache {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TablespaceCache.class);
+
+	private static final int FILE_VERSION = 1;
+
+	/**
+	 * ORA-01013, user requested cancel of current operation, as after a query timeout
+	 */
+	private static final int ORA_CANCELLED = 1013;
+
+	private static final ConcurrentMap<String, Snapshot> SNAPSHOTS = new ConcurrentHashMap<String, Snapshot>();
+	private static final ConcurrentMap<String, LatencyBackoff> BACKOFFS = new ConcurrentHashMap<String, LatencyBackoff>();
+	private static final ConcurrentMap<String, Boolean> SCANNING = new ConcurrentHashMap<String, Boolean>();
+
+	private final String target;
+	private final long ttlMillis;
+	private final long latencyBudgetMillis;
+	private final long maxTtlMillis;
+	private final long fullScanIntervalMillis;
+	private final File directory;
+
+	/**
+	 * @param hostname oracle server host
+	 * @param port listener port
+	 * @param instance instance name
+	 * @param username DBA user name
+	 * @param ttlSeconds seconds a snapshot may be reused
+	 * @param directory directory shared between check processes, or null to only cache in memory
+	 */
+	public TablespaceCache(String hostname, Integer port, String instance, String username, int ttlSeconds,
+			File directory) {
+		this(hostname, port, instance, username, ttlSeconds, 0, 0, directory);
+	}
+
+	/**
+	 * @param hostname oracle server host
+	 * @param port listener port
+	 * @param instance instance name
+	 * @param username DBA user name
+	 * @param ttlSeconds seconds a snapshot may be reused
+	 * @param latencyBudgetMillis scan latency above which the TTL is stretched, 0 to keep the TTL fixed
+	 * @param maxTtlSeconds longest stretched TTL
+	 * @param directory directory shared between check processes, or null to only cache in memory
+	 */
+	public TablespaceCache(String hostname, Integer port, String instance, String username, int ttlSeconds,
+			int latencyBudgetMillis, int maxTtlSeconds, File directory) {
+		this(hostname, port, instance, username, ttlSeconds, latencyBudgetMillis, maxTtlSeconds, 0, directory);
+	}
+
+	/**
+	 * @param hostname oracle server host
+	 * @param port listener port
+	 * @param instance instance name
+	 * @param username DBA user name
+	 * @param ttlSeconds seconds a snapshot may be reused
+	 * @param latencyBudgetMillis scan latency above which the TTL is stretched, 0 to keep the TTL fixed
+	 * @param maxTtlSeconds longest stretched TTL
+	 * @param fullScanIntervalSeconds seconds between full scans when refreshing incrementally, 0 to always scan fully
+	 * @param directory directory shared between check processes, or null to only cache in memory
+	 */
+	public TablespaceCache(String hostname, Integer port, String instance, String username, int ttlSeconds,
+			int latencyBudgetMillis, int maxTtlSeconds, int fullScanIntervalSeconds, File directory) {
+		this.target = String.format("%s@%s:%s:%s", username, hostname, port, instance);
+		this.ttlMillis = ttlSeconds * 1000L;
+		this.latencyBudgetMillis = latencyBudgetMillis;
+		this.maxTtlMillis = maxTtlSeconds * 1000L;
+		this.fullScanIntervalMillis = fullScanIntervalSeconds * 1000L;
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns the snapshot collected with the given strategy if it is younger than the TTL, or the last snapshot if a
+	 * scan of the database is running.
+	 *
+	 * @param strategy collection strategy
+	 * @return snapshot, or null if there is no fresh one
+	 */
+	public Snapshot get(TablespaceStrategy strategy) {
+		String key = key(strategy);
+		long ttl = getTtlMillis(strategy);
+		Snapshot snapshot = SNAPSHOTS.get(key);
+		if (!isFresh(snapshot, ttl) && directory != null) {
+			// another check process may have refreshed the shared copy
+			Snapshot shared = read(key);
+			if (shared != null) {
+				snapshot = shared;
+				SNAPSHOTS.put(key, snapshot);
+			}
+		}
+		if (isFresh(snapshot, ttl)) {
+			return snapshot;
+		}
+		if (snapshot != null && SCANNING.containsKey(key)) {
+			LOG.debug("Serving {}s old scan of {} while a scan is running", snapshot.getAgeMillis() / 1000, key);
+			return snapshot;
+		}
+		return null;
+	}
+
+	private static boolean isFresh(Snapshot snapshot, long ttl) {
+		return snapshot != null && snapshot.getAgeMillis() >= 0 && snapshot.getAgeMillis() < ttl;
+	}
+
+	/**
+	 * Returns the TTL of scans with the given strategy, stretched while the scans exceed the latency budget
+	 *
+	 * @param strategy collection strategy
+	 * @return TTL in milliseconds
+	 */
+	public long getTtlMillis(TablespaceStrategy strategy) {
+		LatencyBackoff backoff = BACKOFFS.get(key(strategy));
+		return backoff == null ? ttlMillis : backoff.stretch(ttlMillis, latencyBudgetMillis, maxTtlMillis);
+	}
+
+	/**
+	 * Scans all tablespaces, or only the changed ones when refreshing incrementally, and stores the scan. The latency
+	 * of the scan feeds the backoff of the TTL.
+	 *
+	 * @param connection SQL connection
+	 * @param strategy collection strategy
+	 * @param debug flag to enable debug logging
+	 * @return stored snapshot
+	 * @throws SQLException thrown when the scan fails
+	 */
+	public Snapshot refresh(Connection connection, TablespaceStrategy strategy, boolean debug) throws SQLException {
+		String key = key(strategy);
+		boolean first = SCANNING.putIfAbsent(key, Boolean.TRUE) == null;
+		long start = System.nanoTime();
+		try {
+			if (fullScanIntervalMillis <= 0 || !strategy.isIncremental()) {
+				return put(strategy, CheckTablespaces.collect(connection, strategy, null, debug));
+			}
+			Snapshot previous = SNAPSHOTS.get(key);
+			long probedAt = System.currentTimeMillis();
+			TablespaceProbe probe = probe(connection, key, previous);
+			if (probe != null && previous != null && previous.probe != null && probedAt >= previous.fullScanAt
+					&& probedAt - previous.fullScanAt < fullScanIntervalMillis) {
+				List<String> changed = probe.changedSince(previous.probe);
+				if (changed.size() <= CheckTablespaces.MAX_TABLESPACE_LIST && changed.size() * 2 <= probe.size()) {
+					TablespaceMetricBatch updates = CheckTablespaces.collectTablespaces(connection, strategy, changed,
+							debug);
+					LOG.debug("Refreshed {} changed of {} tablespaces of {}", new Object[] { changed.size(),
+							probe.size(), key });
+					return put(key, new Snapshot(System.currentTimeMillis(), merge(previous.getReadings(), updates,
+							changed, probe), probe, previous.fullScanAt));
+				}
+			}
+			TablespaceMetricBatch readings = CheckTablespaces.collect(connection, strategy, null, debug);
+			return put(key, new Snapshot(System.currentTimeMillis(), readings, probe, probedAt));
+		} finally {
+			if (first) {
+				// a failed scan, e.g. one that timed out, is a sign of load as well
+				backoff(key).record((System.nanoTime() - start) / 1000000L);
+				SCANNING.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Reads the datafile fingerprints before a scan, so changes during the scan show up in the next probe
+	 *
+	 * @return probe, or null if the views cannot be read, e.g. without the privilege, which makes every scan full
+	 */
+	private static TablespaceProbe probe(Connection connection, String key, Snapshot previous) throws SQLException {
+		try {
+			return TablespaceProbe.read(connection, previous == null ? CheckTablespaces.DEFAULT_TABLESPACE_COUNT
+					: previous.getReadings().size());
+		} catch (SQLException e) {
+			// a timed out or broken connection would fail the scan as well
+			if (e instanceof SQLTimeoutException || e.getErrorCode() == ORA_CANCELLED || connection.isClosed()) {
+				throw e;
+			}
+			LOG.warn("Scanning all tablespaces of {}, the datafile probe failed: {}", key, e.getMessage());
+			return null;
+		}
+	}
+
+	private static LatencyBackoff backoff(String key) {
+		LatencyBackoff backoff = BACKOFFS.get(key);
+		if (backoff == null) {
+			LatencyBackoff created = new LatencyBackoff();
+			backoff = BACKOFFS.putIfAbsent(key, created);
+			if (backoff == null) {
+				backoff = created;
+			}
+		}
+		return backoff;
+	}
+
+	/**
+	 * Stores a full tablespace scan.
+	 *
+	 * @param strategy collection strategy
+	 * @param readings readings of all tablespaces
+	 * @return stored snapshot
+	 */
+	public Snapshot put(TablespaceStrategy strategy, List<TablespaceMetric> readings) {
+		return put(key(strategy), new Snapshot(System.currentTimeMillis(), readings));
+	}
+
+	private Snapshot put(String key, Snapshot snapshot) {
+		SNAPSHOTS.put(key, snapshot);
+		if (directory != null) {
+			write(key, snapshot);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Carries the readings of the unchanged tablespaces over from the last snapshot and takes the others from the
+	 * update. Changed tablespaces missing from the update were dropped in the meantime, new ones go last.
+	 */
+	private static TablespaceMetricBatch merge(TablespaceMetricBatch previous, TablespaceMetricBatch updates,
+			List<String> changed, TablespaceProbe probe) {
+		Map<String, Integer> updated = new HashMap<String, Integer>(updates.size() * 2);
+		for (int i = 0; i < updates.size(); i++) {
+			updated.put(updates.getTablespaceName(i), i);
+		}
+		Set<String> pending = new HashSet<String>(changed);
+		TablespaceMetricBatch merged = new TablespaceMetricBatch(previous.size() + updates.size());
+		for (int i = 0; i < previous.size(); i++) {
+			String name = previous.getTablespaceName(i);
+			if (!pending.remove(name)) {
+				if (probe.contains(name)) {
+					merged.add(name, previous.getUsedCapacityPct(i), previous.getTotalCapacityMb(i), previous
+							.getUsedCapacityMb(i), previous.getFreeCapacityMb(i));
+				}
+			} else if (updated.containsKey(name)) {
+				add(merged, updates, updated.get(name));
+			}
+		}
+		for (String name : pending) {
+			if (updated.containsKey(name)) {
+				add(merged, updates, updated.get(name));
+			}
+		}
+		return merged.seal();
+	}
+
+	private static void add(TablespaceMetricBatch batch, TablespaceMetricBatch from, int index) {
+		batch.add(from.getTablespaceName(index), from.getUsedCapacityPct(index), from.getTotalCapacityMb(index), from
+				.getUsedCapacityMb(index), from.getFreeCapacityMb(index));
+	}
+
+	private String key(TablespaceStrategy strategy) {
+		return target + "/" + strategy.getName();
+	}
+
+	private File file(String key) {
+		return file(directory, key, ".cache");
+	}
+
+	/**
+	 * Returns the file of the given key in a directory shared between check processes
+	 *
+	 * @param directory shared directory
+	 * @param key key, e.g. the target database
+	 * @param suffix file name suffix
+	 * @return file named after the SHA-1 digest of the key
+	 */
+	static File file(File directory, String key, String suffix) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder("check_oracle-");
+			for (byte b : digest) {
+				name.append(String.format("%02x", b));
+			}
+			return new File(directory, name.append(suffix).toString());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private Snapshot read(String key) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file(key))));
+			if (in.readInt() != FILE_VERSION || !key.equals(in.readUTF())) {
+				return null;
+			}
+			long collectedAt = in.readLong();
+			int count = in.readInt();
+			TablespaceMetricBatch readings = new TablespaceMetricBatch(count);
+			for (int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				float usedPct = in.readFloat();
+				// the free percentage is derived from the used percentage
+				in.readFloat();
+				readings.add(name, usedPct, in.readDouble(), in.readDouble(), in.readDouble());
+			}
+			return new Snapshot(collectedAt, readings.seal());
+		} catch (FileNotFoundException e) {
+			return null;
+		} catch (IOException e) {
+			LOG.warn("Ignoring unreadable tablespace cache for " + key, e);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException muted) {
+				}
+			}
+		}
+	}
+
+	private void write(String key, Snapshot snapshot) {
+		File file = file(key);
+		File temp = null;
+		DataOutputStream out = null;
+		try {
+			temp = File.createTempFile(file.getName(), ".tmp", directory);
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			out.writeInt(FILE_VERSION);
+			out.writeUTF(key);
+			out.writeLong(snapshot.getCollectedAt());
+			TablespaceMetricBatch readings = snapshot.getReadings();
+			out.writeInt(readings.size());
+			for (int i = 0; i < readings.size(); i++) {
+				out.writeUTF(readings.getTablespaceName(i));
+				out.writeFloat(readings.getUsedCapacityPct(i));
+				out.writeFloat(readings.getFreeCapacityPct(i));
+				out.writeDouble(readings.getTotalCapacityMb(i));
+				out.writeDouble(readings.getUsedCapacityMb(i));
+				out.writeDouble(readings.getFreeCapacityMb(i));
+			}
+			out.close();
+			out = null;
+			if (!temp.renameTo(file)) {
+				LOG.warn("Failed to replace tablespace cache file {}", file);
+				temp.delete();
+			}
+		} catch (IOException e) {
+			LOG.warn("Failed to write tablespace cache file " + file, e);
+			if (temp != null) {
+				temp.delete();
+			}
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException muted) {
+				}
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Readings of all tablespaces of a database at one point in time.
+	 */
+	public static final class Snapshot {
+
+		private final long collectedAt;
+		private final TablespaceMetricBatch readings;
+		private final TablespaceProbe probe;
+		private final long fullScanAt;
+
+		Snapshot(long collectedAt, List<TablespaceMetric> readings) {
+			this(collectedAt, readings, null, collectedAt);
+		}
+
+		/**
+		 * @param collectedAt collection time
+		 * @param readings readings of all tablespaces
+		 * @param probe datafile fingerprints taken before the collection, or null
+		 * @param fullScanAt time of the last full scan the readings are based on
+		 */
+		Snapshot(long collectedAt, List<TablespaceMetric> readings, TablespaceProbe probe, long fullScanAt) {
+			this.collectedAt = collectedAt;
+			this.readings = TablespaceMetricBatch.of(readings);
+			this.probe = probe;
+			this.fullScanAt = fullScanAt;
+		}
+
+		/**
+		 * Returns the time of collection in milliseconds since the epoch
+		 *
+		 * @return collection time
+		 */
+		public long getCollectedAt() {
+			return collectedAt;
+		}
+
+		/**
+		 * Returns the age of the snapshot
+		 *
+		 * @return age in milliseconds
+		 */
+		public long getAgeMillis() {
+			return System.currentTimeMillis() - collectedAt;
+		}
+
+		/**
+		 * Returns the readings of all tablespaces
+		 *
+		 * @return tablespace readings
+		 */
+		public TablespaceMetricBatch getReadings() {
+			return readings;
+		}
+
+		/**
+		 * Looks up the reading of a tablespace, matching the name like the single tablespace query
+		 *
+		 * @param tablespaceName tablespace name as given on the command line
+		 * @return reading, or null if the tablespace does not exist
+		 */
+		public TablespaceMetric find(String tablespaceName) {
+			int index = readings.indexOfName(TablespaceStrategy.normalizeTablespaceName(tablespaceName));
+			return index < 0 ? null : readings.get(index);
+		}
+	}
+}
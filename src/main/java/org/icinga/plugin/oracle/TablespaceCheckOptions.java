@@ -0,0 +1,65 @@
+package org.icinga.plugin.oracle;
+
+/**
+ * Options of the tablespace checks: how the readings are collected, where they are cached and recorded, how the output
+ * is bounded, and the thresholds they are checked against.
+ *
+ * @author David Webb
+ */
+public final class TablespaceCheckOptions {
+
+	private final TablespaceStrategy strategy;
+	private final TablespaceCache cache;
+	private final TablespaceHistory history;
+	private final OutputLimit limit;
+	private final Thresholds thresholds;
+
+	/**
+	 * Options without cache, history or output limit
+	 *
+	 * @param strategy collection strategy
+	 * @param thresholds compiled thresholds
+	 */
+	public TablespaceCheckOptions(TablespaceStrategy strategy, Thresholds thresholds) {
+		this(strategy, null, null, null, thresholds);
+	}
+
+	/**
+	 * @param strategy collection strategy
+	 * @param cache tablespace cache of the database, may be null
+	 * @param history tablespace history of the database, may be null
+	 * @param limit bound of the output of the check of all tablespaces, may be null
+	 * @param thresholds compiled thresholds
+	 */
+	public TablespaceCheckOptions(TablespaceStrategy strategy, TablespaceCache cache, TablespaceHistory history,
+			OutputLimit limit, Thresholds thresholds) {
+		if (strategy == null || thresholds == null) {
+			throw new IllegalArgumentException("Tablespace checks need a strategy and thresholds");
+		}
+		this.strategy = strategy;
+		this.cache = cache;
+		this.history = history;
+		this.limit = limit;
+		this.thresholds = thresholds;
+	}
+
+	public TablespaceStrategy getStrategy() {
+		return strategy;
+	}
+
+	public TablespaceCache getCache() {
+		return cache;
+	}
+
+	public TablespaceHistory getHistory() {
+		return history;
+	}
+
+	public OutputLimit getLimit() {
+		return limit;
+	}
+
+	public Thresholds getThresholds() {
+		return thresholds;
+	}
+}
@@ -0,0 +1,435 @@
+package org.icinga.plugin.oracle;
+
+import static org.icinga.plugin.oracle.NagiosStatus.CRITICAL;
+import static org.icinga.plugin.oracle.NagiosStatus.OK;
+import static org.icinga.plugin.oracle.NagiosStatus.UNKNOWN;
+import static org.icinga.plugin.oracle.NagiosStatus.WARNING;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.icinga.plugin.oracle.bean.TablespaceMetric;
+import org.icinga.plugin.oracle.bean.TablespaceMetricBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tablespace usage history of one database on the monitoring host, with a growth forecast per tablespace.
+ * <p>
+ * Samples are appended to a file of fixed size records, so appending never reads the file. Once the oldest sample is
+ * older than the retention, the file is compacted by rewriting the samples within the retention. The forecasts are
+ * kept in a small state file next to it and updated incrementally with every sample. A lock file serializes the check
+ * processes sharing the directory.
+ *
+ * @author David Webb
+ */
+public class TablespaceHistory {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TablespaceHistory.class);
+
+	private static final int MAGIC = 0x434b4f48; // CKOH
+	private static final int FILE_VERSION = 1;
+	private static final int HEADER_SIZE = 12;
+	private static final int NAME_SIZE = 32;
+	private static final int RECORD_SIZE = 8 + NAME_SIZE + 8 + 8;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Suffix of the growth perfdata label, the unit is in the label as perfdata has no unit for rates
+	 */
+	static final String GROWTH_SUFFIX = "_growth_mb_per_day";
+
+	private final String target;
+	private final File historyFile;
+	private final File forecastFile;
+	private final File lockFile;
+	private final long retentionMillis;
+	private final Double fillWarningHours;
+	private final Double fillCriticalHours;
+
+	/**
+	 * @param directory directory holding the history files
+	 * @param hostname oracle server host
+	 * @param port listener port
+	 * @param instance instance name
+	 * @param username DBA user name
+	 * @param retentionDays days samples are kept
+	 * @param fillWarningHours warn when a tablespace fills within these hours, may be null
+	 * @param fillCriticalHours critical when a tablespace fills within these hours, may be null
+	 */
+	public TablespaceHistory(File directory, String hostname, Integer port, String instance, String username,
+			int retentionDays, Double fillWarningHours, Double fillCriticalHours) {
+		this.target = String.format("%s@%s:%s:%s", username, hostname, port, instance);
+		this.historyFile = TablespaceCache.file(directory, target, ".history");
+		this.forecastFile = TablespaceCache.file(directory, target, ".forecast");
+		this.lockFile = TablespaceCache.file(directory, target, ".lock");
+		this.retentionMillis = TimeUnit.DAYS.toMillis(retentionDays);
+		this.fillWarningHours = fillWarningHours;
+		this.fillCriticalHours = fillCriticalHours;
+	}
+
+	/**
+	 * Appends the readings to the history and updates the forecasts. Readings not newer than the last sample of their
+	 * tablespace, e.g. the same cached scan seen again, are skipped.
+	 *
+	 * @param timestamp collection time in milliseconds since the epoch
+	 * @param readings tablespace readings
+	 * @return forecasts of the given tablespaces
+	 * @throws IOException thrown when the history cannot be written
+	 */
+	public Map<String, GrowthForecast> record(long timestamp, List<TablespaceMetric> readings) throws IOException {
+		RandomAccessFile lock = new RandomAccessFile(lockFile, "rw");
+		try {
+			FileLock fileLock = lock.getChannel().lock();
+			try {
+				Map<String, GrowthForecast> forecasts = readForecasts();
+				TablespaceMetricBatch batch = TablespaceMetricBatch.of(readings);
+				int[] appended = new int[batch.size()];
+				int count = 0;
+				boolean updated = false;
+				Map<String, GrowthForecast> result = new LinkedHashMap<String, GrowthForecast>();
+				for (int i = 0; i < batch.size(); i++) {
+					String name = batch.getTablespaceName(i);
+					GrowthForecast forecast = forecasts.get(name);
+					if (forecast == null) {
+						forecast = new GrowthForecast();
+						forecasts.put(name, forecast);
+					}
+					if (forecast.update(timestamp, batch.getUsedCapacityMb(i), batch.getTotalCapacityMb(i))) {
+						updated = true;
+						if (name.getBytes(UTF8).length <= NAME_SIZE) {
+							appended[count++] = i;
+						} else {
+							// a cut name would read back as another tablespace, the forecast keeps the full name
+							LOG.warn("Not recording samples of tablespace {} of {}, the name is longer than {} bytes",
+									new Object[] { name, target, NAME_SIZE });
+						}
+					}
+					result.put(name, forecast);
+				}
+				if (count > 0 && append(timestamp, batch, appended, count)) {
+					// tablespaces without samples left, e.g. dropped ones, have no forecast either
+					long cutoff = timestamp - retentionMillis;
+					for (Iterator<GrowthForecast> iterator = forecasts.values().iterator(); iterator.hasNext();) {
+						if (iterator.next().getLastTimestamp() < cutoff) {
+							iterator.remove();
+						}
+					}
+				}
+				if (updated) {
+					writeForecasts(forecasts);
+				}
+				return result;
+			} finally {
+				fileLock.release();
+			}
+		} finally {
+			lock.close();
+		}
+	}
+
+	/**
+	 * Records the readings and combines the result of the usage check with the forecasts: growth perfdata for every
+	 * tablespace and, with fill thresholds, a violation for every tablespace filling up within them.
+	 *
+	 * @param result result of the usage check
+	 * @param timestamp collection time in milliseconds since the epoch
+	 * @param readings readings the result is based on
+	 * @return combined check result
+	 */
+	public CheckResult apply(CheckResult result, long timestamp, List<TablespaceMetric> readings) {
+		if (result.getStatus() == UNKNOWN) {
+			return result;
+		}
+
+		Map<String, GrowthForecast> forecasts;
+		try {
+			forecasts = record(timestamp, readings);
+		} catch (IOException e) {
+			LOG.warn("Failed to record tablespace history of " + target, e);
+			return result;
+		}
+
+		NagiosStatus status = result.getStatus();
+		StringBuilder violations = new StringBuilder();
+		List<PerfData> perfData = new ArrayList<PerfData>(forecasts.size());
+
+		for (Map.Entry<String, GrowthForecast> entry : forecasts.entrySet()) {
+			GrowthForecast forecast = entry.getValue();
+			double growth = forecast.getGrowthMbPerHour();
+			if (Double.isNaN(growth)) {
+				continue;
+			}
+			perfData.add(new PerfData(entry.getKey() + GROWTH_SUFFIX, growth * 24, "", 2));
+
+			double hours = forecast.getHoursUntilFull();
+			NagiosStatus fill = OK;
+			Double threshold = null;
+			if (fillCriticalHours != null && hours <= fillCriticalHours) {
+				fill = CRITICAL;
+				threshold = fillCriticalHours;
+			} else if (fillWarningHours != null && hours <= fillWarningHours) {
+				fill = WARNING;
+				threshold = fillWarningHours;
+			}
+			if (fill != OK) {
+				violations.append(String.format(Locale.ROOT, "%s (full in %.1fh<%.0fh) ", entry.getKey(), hours,
+						threshold));
+				status = fill.getCode() > status.getCode() ? fill : status;
+			}
+		}
+
+		if (violations.length() == 0) {
+			return result.with(status, result.getMessage(), perfData);
+		}
+		String message = result.getStatus() == OK ? violations.toString().trim() : result.getMessage() + " "
+				+ violations.toString().trim();
+		return result.with(status, message, perfData);
+	}
+
+	/**
+	 * Appends the given readings to the history file, compacting it first when it is due
+	 *
+	 * @return true if the history was compacted
+	 */
+	private boolean append(long timestamp, TablespaceMetricBatch readings, int[] indexes, int count)
+			throws IOException {
+		boolean compacted = false;
+		RandomAccessFile file = new RandomAccessFile(historyFile, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() < HEADER_SIZE) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(FILE_VERSION).putInt(RECORD_SIZE).flip();
+				channel.truncate(0);
+				channel.write(header, 0);
+			} else if (needsCompaction(channel, timestamp)) {
+				file.close();
+				compact(timestamp);
+				compacted = true;
+				file = new RandomAccessFile(historyFile, "rw");
+				channel = file.getChannel();
+			}
+
+			// drop a partly written record of an interrupted append
+			long end = HEADER_SIZE + (channel.size() - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+			ByteBuffer records = ByteBuffer.allocate(RECORD_SIZE * count);
+			for (int i = 0; i < count; i++) {
+				int index = indexes[i];
+				putRecord(records, timestamp, readings.getTablespaceName(index), readings.getUsedCapacityMb(index),
+						readings.getTotalCapacityMb(index));
+			}
+			records.flip();
+			channel.truncate(end);
+			while (records.hasRemaining()) {
+				end += channel.write(records, end);
+			}
+		} finally {
+			file.close();
+		}
+		return compacted;
+	}
+
+	private boolean needsCompaction(FileChannel channel, long now) throws IOException {
+		if (channel.size() < HEADER_SIZE + RECORD_SIZE) {
+			return false;
+		}
+		ByteBuffer oldest = ByteBuffer.allocate(8);
+		channel.read(oldest, HEADER_SIZE);
+		oldest.flip();
+		// compact at most once a day
+		return oldest.getLong() < now - retentionMillis - TimeUnit.DAYS.toMillis(1);
+	}
+
+	private void compact(long now) throws IOException {
+		long cutoff = now - retentionMillis;
+		File temp = File.createTempFile(historyFile.getName(), ".tmp", historyFile.getParentFile());
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(historyFile)));
+		DataOutputStream out = null;
+		int kept = 0;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			in.skipBytes(HEADER_SIZE);
+			out.writeInt(MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(RECORD_SIZE);
+			byte[] record = new byte[RECORD_SIZE];
+			while (readRecord(in, record)) {
+				if (ByteBuffer.wrap(record).getLong() >= cutoff) {
+					out.write(record);
+					kept++;
+				}
+			}
+			out.close();
+			out = null;
+		} finally {
+			in.close();
+			if (out != null) {
+				out.close();
+				temp.delete();
+			}
+		}
+		if (!temp.renameTo(historyFile)) {
+			temp.delete();
+			throw new IOException("Failed to replace history file " + historyFile);
+		}
+		LOG.debug("Compacted tablespace history of {} to {} samples", target, kept);
+	}
+
+	private static boolean readRecord(DataInputStream in, byte[] record) throws IOException {
+		int read = 0;
+		while (read < record.length) {
+			int count = in.read(record, read, record.length - read);
+			if (count < 0) {
+				return false;
+			}
+			read += count;
+		}
+		return true;
+	}
+
+	private static void putRecord(ByteBuffer buffer, long timestamp, String name, double usedMb, double totalMb) {
+		byte[] encoded = name.getBytes(UTF8);
+		byte[] slot = new byte[NAME_SIZE];
+		System.arraycopy(encoded, 0, slot, 0, encoded.length);
+		buffer.putLong(timestamp).put(slot).putDouble(usedMb).putDouble(totalMb);
+	}
+
+	/**
+	 * Reads the samples of the history, oldest first, e.g. for offline analysis.
+	 *
+	 * @return samples as readings with their collection time
+	 * @throws IOException thrown when the history cannot be read
+	 */
+	public List<Sample> readSamples() throws IOException {
+		List<Sample> samples = new ArrayList<Sample>();
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(historyFile)));
+		} catch (FileNotFoundException e) {
+			return samples;
+		}
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != FILE_VERSION || in.readInt() != RECORD_SIZE) {
+				throw new IOException("Unsupported history file " + historyFile);
+			}
+			byte[] record = new byte[RECORD_SIZE];
+			while (readRecord(in, record)) {
+				ByteBuffer buffer = ByteBuffer.wrap(record);
+				long timestamp = buffer.getLong();
+				byte[] slot = new byte[NAME_SIZE];
+				buffer.get(slot);
+				int length = 0;
+				while (length < NAME_SIZE && slot[length] != 0) {
+					length++;
+				}
+				samples.add(new Sample(timestamp, new String(slot, 0, length, UTF8), buffer.getDouble(), buffer
+						.getDouble()));
+			}
+		} finally {
+			in.close();
+		}
+		return samples;
+	}
+
+	private Map<String, GrowthForecast> readForecasts() {
+		Map<String, GrowthForecast> forecasts = new LinkedHashMap<String, GrowthForecast>();
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(forecastFile)));
+			if (in.readInt() != FILE_VERSION || !target.equals(in.readUTF())) {
+				return forecasts;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				forecasts.put(in.readUTF(), GrowthForecast.read(in));
+			}
+		} catch (FileNotFoundException e) {
+			return forecasts;
+		} catch (IOException e) {
+			LOG.warn("Ignoring unreadable forecast file " + forecastFile, e);
+			forecasts.clear();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException muted) {
+				}
+			}
+		}
+		return forecasts;
+	}
+
+	private void writeForecasts(Map<String, GrowthForecast> forecasts) throws IOException {
+		File temp = File.createTempFile(forecastFile.getName(), ".tmp", forecastFile.getParentFile());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(FILE_VERSION);
+			out.writeUTF(target);
+			out.writeInt(forecasts.size());
+			for (Map.Entry<String, GrowthForecast> entry : forecasts.entrySet()) {
+				out.writeUTF(entry.getKey());
+				entry.getValue().write(out);
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(forecastFile)) {
+			temp.delete();
+			throw new IOException("Failed to replace forecast file " + forecastFile);
+		}
+	}
+
+	/**
+	 * Usage of a tablespace at one point in time.
+	 */
+	public static final class Sample {
+
+		private final long timestamp;
+		private final String tablespaceName;
+		private final double usedMb;
+		private final double totalMb;
+
+		Sample(long timestamp, String tablespaceName, double usedMb, double totalMb) {
+			this.timestamp = timestamp;
+			this.tablespaceName = tablespaceName;
+			this.usedMb = usedMb;
+			this.totalMb = totalMb;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public String getTablespaceName() {
+			return tablespaceName;
+		}
+
+		public double getUsedMb() {
+			return usedMb;
+		}
+
+		public double getTotalMb() {
+			return totalMb;
+		}
+	}
+}
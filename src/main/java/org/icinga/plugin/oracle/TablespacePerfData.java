@@ -0,0 +1,109 @@
+package org.icinga.plugin.oracle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.icinga.plugin.oracle.bean.TablespaceMetricBatch;
+
+/**
+ * Usage perfdata of tablespaces, <code>name=usedMB;warn;crit;0;total</code>, rendered straight from the readings of a
+ * {@link TablespaceMetricBatch} instead of creating a {@link PerfData} per tablespace. The warning and critical values
+ * are the upper bounds of the thresholds of each tablespace in MB.
+ *
+ * @author David Webb
+ */
+final class TablespacePerfData {
+
+	private static final int DECIMALS = 2;
+
+	private final TablespaceMetricBatch batch;
+	private final int[] indexes;
+	private final int count;
+	private final Thresholds.Levels[] levels;
+
+	/**
+	 * @param batch tablespace readings
+	 * @param indexes positions of the tablespaces in the batch, or null for the first <code>count</code>
+	 * @param count number of tablespaces
+	 * @param levels thresholds of every tablespace of the batch
+	 */
+	TablespacePerfData(TablespaceMetricBatch batch, int[] indexes, int count, Thresholds.Levels[] levels) {
+		this.batch = batch;
+		this.indexes = indexes;
+		this.count = count;
+		this.levels = levels;
+	}
+
+	int size() {
+		return count;
+	}
+
+	String getLabel(int i) {
+		return batch.getTablespaceName(indexOf(i));
+	}
+
+	/**
+	 * Renders the perfdata of every tablespace, separated by blanks
+	 *
+	 * @param builder buffer
+	 * @return the buffer
+	 */
+	StringBuilder appendTo(StringBuilder builder) {
+		for (int i = 0; i < count; i++) {
+			int index = indexOf(i);
+			double total = batch.getTotalCapacityMb(index);
+			if (i > 0) {
+				builder.append(' ');
+			}
+			PerfData.appendLabel(builder, batch.getTablespaceName(index)).append('=');
+			PerfData.appendNumber(builder, batch.getUsedCapacityMb(index), DECIMALS).append("MB;");
+			appendBound(builder, boundOf(levels[index].getWarning(), total)).append(';');
+			appendBound(builder, boundOf(levels[index].getCritical(), total)).append(';');
+			PerfData.appendNumber(builder, 0d, DECIMALS).append(';');
+			PerfData.appendNumber(builder, total, DECIMALS);
+		}
+		return builder;
+	}
+
+	/**
+	 * Creates the perfdata items, for callers that work on single items such as the batch mode
+	 *
+	 * @return perfdata of every tablespace
+	 */
+	List<PerfData> toPerfData() {
+		List<PerfData> perfData = new ArrayList<PerfData>(count);
+		for (int i = 0; i < count; i++) {
+			int index = indexOf(i);
+			double total = batch.getTotalCapacityMb(index);
+			perfData.add(new PerfData(batch.getTablespaceName(index), batch.getUsedCapacityMb(index), "MB", boxed(
+					boundOf(levels[index].getWarning(), total)), boxed(boundOf(levels[index].getCritical(), total)), 0d,
+					total, DECIMALS));
+		}
+		return perfData;
+	}
+
+	private int indexOf(int i) {
+		return indexes == null ? i : indexes[i];
+	}
+
+	private static StringBuilder appendBound(StringBuilder builder, double bound) {
+		return Double.isNaN(bound) ? builder : PerfData.appendNumber(builder, bound, DECIMALS);
+	}
+
+	private static Double boxed(double bound) {
+		return Double.isNaN(bound) ? null : Double.valueOf(bound);
+	}
+
+	/**
+	 * Converts the upper bound of a threshold to MB of the tablespace
+	 *
+	 * @return bound in MB, or NaN if the threshold has no upper bound
+	 */
+	static double boundOf(Threshold threshold, double total) {
+		double bound = threshold.upperBound();
+		if (Double.isNaN(bound) || threshold.getUnit() == Threshold.Unit.MB) {
+			return bound;
+		}
+		return total * (bound / 100);
+	}
+}
@@ -0,0 +1,97 @@
+package org.icinga.plugin.oracle;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cheap fingerprint of the datafiles of every tablespace, read from the in-memory views instead of the dictionary: the
+ * number of files, their size and the physical writes to them since instance startup, summed over all RAC instances.
+ * Free space only changes when extents are allocated or freed, which writes the space bitmaps in the datafile headers,
+ * or when datafiles are added or resized, so a tablespace whose fingerprint is unchanged still has the usage of the
+ * last scan.
+ * <p>
+ * Bitmap changes count as writes only once the database writer has written them, usually within the checkpoint
+ * interval, which is why incremental scans are complemented by periodic full scans.
+ *
+ * @author David Webb
+ */
+final class TablespaceProbe {
+
+	static final String QUERY = "SELECT t.name, \n" //
+			+ "  COUNT(*) AS files, \n" //
+			+ "  SUM(f.bytes) AS bytes, \n" //
+			+ "  SUM(w.writes) AS writes \n" //
+			+ "FROM v$datafile f, \n" //
+			+ "  v$tablespace t, \n" //
+			+ "  (SELECT file#, SUM(phywrts) AS writes FROM gv$filestat GROUP BY file#) w \n" //
+			+ "WHERE f.ts# = t.ts# \n" //
+			+ "AND w.file#(+) = f.file# \n" //
+			+ "GROUP BY t.name \n";
+
+	private final Map<String, long[]> fingerprints;
+
+	private TablespaceProbe(Map<String, long[]> fingerprints) {
+		this.fingerprints = fingerprints;
+	}
+
+	/**
+	 * Reads the fingerprints of all tablespaces
+	 *
+	 * @param connection SQL connection
+	 * @param expectedRows number of tablespaces expected
+	 * @return probe
+	 * @throws SQLException thrown when the query fails
+	 */
+	static TablespaceProbe read(Connection connection, int expectedRows) throws SQLException {
+		final Map<String, long[]> fingerprints = new HashMap<String, long[]>(Math.max(expectedRows, 16) * 2);
+		Rows.read(connection, QUERY, expectedRows, new RowReader() {
+
+			@Override
+			public void read(ResultSet rs) throws SQLException {
+				fingerprints.put(rs.getString(1), new long[] { rs.getLong(2), rs.getLong(3), rs.getLong(4) });
+			}
+		});
+		return new TablespaceProbe(fingerprints);
+	}
+
+	/**
+	 * Returns the number of tablespaces with datafiles
+	 *
+	 * @return tablespace count
+	 */
+	int size() {
+		return fingerprints.size();
+	}
+
+	/**
+	 * Tells whether the tablespace has datafiles
+	 *
+	 * @param tablespaceName tablespace name
+	 * @return true if the probe found the tablespace
+	 */
+	boolean contains(String tablespaceName) {
+		return fingerprints.containsKey(tablespaceName);
+	}
+
+	/**
+	 * Returns the tablespaces that are new or whose fingerprint differs from an earlier probe
+	 *
+	 * @param previous earlier probe
+	 * @return names of the changed tablespaces
+	 */
+	List<String> changedSince(TablespaceProbe previous) {
+		List<String> changed = new ArrayList<String>();
+		for (Map.Entry<String, long[]> entry : fingerprints.entrySet()) {
+			if (!Arrays.equals(entry.getValue(), previous.fingerprints.get(entry.getKey()))) {
+				changed.add(entry.getKey());
+			}
+		}
+		return changed;
+	}
+}
@@ -0,0 +1,201 @@
+package org.icinga.plugin.oracle;
+
+import java.util.Locale;
+
+/**
+ * Ways of collecting tablespace usage. Every strategy returns the columns <code>tablespace_name</code>,
+ * <code>tbs_size</code> and <code>free_space</code> in MB and <code>pct_used</code>, so they are read into the same
+ * {@link org.icinga.plugin.oracle.bean.TablespaceMetricBatch}.
+ *
+ * @author David Webb
+ */
+public enum TablespaceStrategy {
+
+	/**
+	 * Aggregates every free extent of <code>dba_free_space</code> against <code>dba_data_files</code>. Exact, but slow
+	 * on fragmented databases and with large recyclebins.
+	 */
+	FREE_SPACE("free-space", "SELECT b.tablespace_name, \n" //
+			+ "  tbs_size, \n" //
+			+ "  a.free_space, \n" //
+			+ "  ((tbs_size - a.free_space) / tbs_size) * 100 AS pct_used \n" //
+			+ "FROM \n" //
+			+ "  (SELECT tablespace_name, \n" //
+			+ "    ROUND(SUM(bytes)/1024/1024 ,2) AS free_space \n" //
+			+ "  FROM dba_free_space \n" //
+			+ "%1$s" //
+			+ "  GROUP BY tablespace_name \n" //
+			+ "  ) a, \n" //
+			+ "  (SELECT tablespace_name, \n" //
+			+ "    SUM(bytes)/1024/1024 AS tbs_size \n" //
+			+ "  FROM dba_data_files \n" //
+			+ "%1$s" //
+			+ "  GROUP BY tablespace_name \n" //
+			+ "  ) b \n" //
+			+ "WHERE a.tablespace_name(+)=b.tablespace_name \n", "  WHERE tablespace_name = ? \n", true),
+
+	/**
+	 * Reads <code>dba_tablespace_usage_metrics</code>, which the server maintains from the datafile header bitmaps.
+	 * Sizes are relative to the maximum autoextend size, and temporary and undo tablespaces are included.
+	 */
+	USAGE_METRICS("usage-metrics", "SELECT m.tablespace_name, \n" //
+			+ "  m.tablespace_size * t.block_size / 1024 / 1024 AS tbs_size, \n" //
+			+ "  (m.tablespace_size - m.used_space) * t.block_size / 1024 / 1024 AS free_space, \n" //
+			+ "  m.used_percent AS pct_used \n" //
+			+ "FROM dba_tablespace_usage_metrics m, \n" //
+			+ "  dba_tablespaces t \n" //
+			+ "WHERE m.tablespace_name = t.tablespace_name \n" //
+			+ "%1$s", "AND m.tablespace_name = ? \n", false),
+
+	/**
+	 * Sums the allocated blocks of <code>v$filespace_usage</code> per tablespace. Sizes are the current datafile sizes
+	 * like {@link #FREE_SPACE}, but space held by the recyclebin counts as used.
+	 */
+	FILESPACE_USAGE("filespace-usage", "SELECT t.name AS tablespace_name, \n" //
+			+ "  SUM(f.file_size * p.block_size) / 1024 / 1024 AS tbs_size, \n" //
+			+ "  SUM((f.file_size - f.allocated_space) * p.block_size) / 1024 / 1024 AS free_space, \n" //
+			+ "  SUM(f.allocated_space) / SUM(f.file_size) * 100 AS pct_used \n" //
+			+ "FROM v$filespace_usage f, \n" //
+			+ "  v$tablespace t, \n" //
+			+ "  dba_tablespaces p \n" //
+			+ "WHERE f.tablespace_id = t.ts# \n" //
+			+ "AND t.name = p.tablespace_name \n" //
+			+ "%1$s" //
+			+ "GROUP BY t.name \n", "AND t.name = ? \n", true);
+
+	private final String name;
+	private final String template;
+	private final String filter;
+	private final String query;
+	private final String tablespaceQuery;
+	private final int tablespaceBindCount;
+	private final boolean incremental;
+
+	/**
+	 * Private constructor
+	 *
+	 * @param name name used on the command line
+	 * @param template query returning the usage of tablespaces, with <code>%1$s</code> where the filter goes
+	 * @param filter predicate restricting the query to the tablespace bound to its parameter
+	 * @param incremental whether the usage only changes with the datafiles, see {@link #isIncremental()}
+	 */
+	private TablespaceStrategy(String name, String template, String filter, boolean incremental) {
+		this.name = name;
+		this.template = template;
+		this.filter = filter;
+		this.query = String.format(template, "");
+		this.tablespaceQuery = String.format(template, filter);
+		this.tablespaceBindCount = tablespaceQuery.length() - tablespaceQuery.replace("?", "").length();
+		this.incremental = incremental;
+	}
+
+	/**
+	 * Returns the name used on the command line
+	 *
+	 * @return strategy name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the query collecting the usage of all tablespaces
+	 *
+	 * @return SQL query
+	 */
+	public String getQuery() {
+		return query;
+	}
+
+	/**
+	 * Returns the query collecting the usage of a single tablespace. The filter is applied inside the aggregation, so
+	 * only the extents and files of that tablespace are read. Every parameter is bound to the tablespace name as
+	 * returned by {@link #normalizeTablespaceName(String)}.
+	 *
+	 * @return SQL query
+	 * @see #getTablespaceBindCount()
+	 */
+	public String getTablespaceQuery() {
+		return tablespaceQuery;
+	}
+
+	/**
+	 * Returns the number of parameters of the single tablespace query
+	 *
+	 * @return parameter count
+	 */
+	public int getTablespaceBindCount() {
+		return tablespaceBindCount;
+	}
+
+	/**
+	 * Returns the query collecting the usage of the given number of tablespaces. Like the single tablespace query, but
+	 * every filter compares against a list of <code>count</code> parameters, which are bound to the tablespace names
+	 * once per filter.
+	 *
+	 * @param count number of tablespaces
+	 * @return SQL query
+	 */
+	public String getTablespacesQuery(int count) {
+		StringBuilder list = new StringBuilder("IN (?");
+		for (int i = 1; i < count; i++) {
+			list.append(", ?");
+		}
+		return String.format(template, filter.replace("= ?", list.append(')').toString()));
+	}
+
+	/**
+	 * Tells whether the usage of a tablespace only changes when its datafiles are resized or written, so a scan can be
+	 * updated with the tablespaces that {@link TablespaceProbe} reports as changed. Not so for
+	 * {@link #USAGE_METRICS}, which includes temporary tablespaces that have no datafiles.
+	 *
+	 * @return true if scans can be updated incrementally
+	 */
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * Normalizes a tablespace name the way Oracle does for identifiers: unquoted names are upper-cased, names in double
+	 * quotes are taken literally. Comparing the normalized name exactly keeps the dictionary column free of functions.
+	 *
+	 * @param tablespaceName tablespace name as given on the command line
+	 * @return tablespace name as stored in the dictionary
+	 */
+	public static String normalizeTablespaceName(String tablespaceName) {
+		String trimmed = tablespaceName.trim();
+		if (trimmed.length() > 1 && trimmed.startsWith("\"") && trimmed.endsWith("\"")) {
+			return trimmed.substring(1, trimmed.length() - 1);
+		}
+		return trimmed.toUpperCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Looks up a strategy by its command line name
+	 *
+	 * @param name strategy name
+	 * @return strategy
+	 */
+	public static TablespaceStrategy fromName(String name) {
+		for (TablespaceStrategy strategy : values()) {
+			if (strategy.name.equalsIgnoreCase(name)) {
+				return strategy;
+			}
+		}
+		throw new IllegalArgumentException(String.format("Unknown tablespace strategy [%s], use one of %s", name,
+				names()));
+	}
+
+	/**
+	 * Returns the command line names of all strategies
+	 *
+	 * @return strategy names separated by '|'
+	 */
+	public static String names() {
+		StringBuilder names = new StringBuilder();
+		for (TablespaceStrategy strategy : values()) {
+			names.append(names.length() == 0 ? "" : "|").append(strategy.name);
+		}
+		return names.toString();
+	}
+}
@@ -0,0 +1,216 @@
+package org.icinga.plugin.oracle;
+
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * A warning or critical threshold, parsed once from the Nagios range syntax:
+ * <ul>
+ * <li><code>10:</code> alerts below 10</li>
+ * <li><code>~:20</code> alerts above 20</li>
+ * <li><code>10:20</code> alerts outside 10 to 20</li>
+ * <li><code>@10:20</code> alerts inside 10 to 20</li>
+ * </ul>
+ * A plain number such as <code>95</code> alerts at 95 and above, as the thresholds of this plugin always did, instead
+ * of the Nagios meaning <code>0:95</code>, so existing service definitions keep their behaviour. Bounds may have
+ * decimals. Tablespace thresholds may end in a unit, <code>%</code> of the used space or <code>MB</code> of used space,
+ * e.g. <code>~:900000MB</code>; without a unit they apply to the used percentage.
+ *
+ * @author David Webb
+ */
+public final class Threshold {
+
+	/**
+	 * What a tablespace threshold is compared with
+	 */
+	public enum Unit {
+
+		/**
+		 * used space in percent
+		 */
+		PERCENT("%"),
+
+		/**
+		 * used space in MB
+		 */
+		MB("MB");
+
+		private final String suffix;
+
+		private Unit(String suffix) {
+			this.suffix = suffix;
+		}
+	}
+
+	private static final Pattern NUMBER = Pattern.compile("-?(\\d+(\\.\\d*)?|\\.\\d+)");
+
+	private final String spec;
+	private final double start;
+	private final double end;
+	private final String startText;
+	private final String endText;
+	private final boolean inside;
+	private final boolean plain;
+	private final Unit unit;
+
+	private Threshold(String spec, double start, double end, String startText, String endText, boolean inside,
+			boolean plain, Unit unit) {
+		this.spec = spec;
+		this.start = start;
+		this.end = end;
+		this.startText = startText;
+		this.endText = endText;
+		this.inside = inside;
+		this.plain = plain;
+		this.unit = unit;
+	}
+
+	/**
+	 * Parses a threshold
+	 *
+	 * @param spec threshold as given on the command line
+	 * @return threshold
+	 * @throws IllegalArgumentException thrown when the threshold is missing or invalid
+	 */
+	public static Threshold parse(String spec) {
+		if (spec == null || spec.trim().isEmpty()) {
+			throw new IllegalArgumentException("Missing threshold, set -W and -C");
+		}
+		String text = spec.trim();
+		Unit unit = null;
+		if (text.toUpperCase(Locale.ENGLISH).endsWith(Unit.MB.suffix)) {
+			unit = Unit.MB;
+		} else if (text.endsWith(Unit.PERCENT.suffix)) {
+			unit = Unit.PERCENT;
+		}
+		if (unit != null) {
+			text = text.substring(0, text.length() - unit.suffix.length()).trim();
+		}
+		boolean inside = text.startsWith("@");
+		if (inside) {
+			text = text.substring(1);
+		}
+
+		int colon = text.indexOf(':');
+		if (colon < 0) {
+			double end = number(spec, text);
+			return inside ? new Threshold(spec, 0, end, "0", text, true, false, unit) : new Threshold(spec,
+					Double.NEGATIVE_INFINITY, end, "~", text, false, true, unit);
+		}
+		String startText = text.substring(0, colon);
+		String endText = text.substring(colon + 1);
+		double start = startText.isEmpty() ? 0 : startText.equals("~") ? Double.NEGATIVE_INFINITY : number(spec,
+				startText);
+		double end = endText.isEmpty() ? Double.POSITIVE_INFINITY : number(spec, endText);
+		if (start > end) {
+			throw new IllegalArgumentException(String.format("Invalid threshold [%s], start is above end", spec));
+		}
+		return new Threshold(spec, start, end, startText.isEmpty() ? "0" : startText, endText, inside, false, unit);
+	}
+
+	private static double number(String spec, String text) {
+		if (!NUMBER.matcher(text).matches()) {
+			throw new IllegalArgumentException(String.format("Invalid threshold [%s], expected a number or a range "
+					+ "such as 10:, ~:20, 10:20 or @10:20", spec));
+		}
+		return Double.parseDouble(text);
+	}
+
+	/**
+	 * Tells whether a value raises the alert of this threshold
+	 *
+	 * @param value reading
+	 * @return true if the value is at or above a plain threshold, outside the range, or inside an <code>@</code>
+	 *         range
+	 */
+	public boolean alerts(double value) {
+		if (plain) {
+			return value >= end;
+		}
+		boolean within = value >= start && value <= end;
+		return inside ? within : !within;
+	}
+
+	/**
+	 * Returns the unit the threshold ends in
+	 *
+	 * @return unit, or null if none was given
+	 */
+	public Unit getUnit() {
+		return unit;
+	}
+
+	/**
+	 * Rejects a unit, for the checks that count instead of measuring space
+	 *
+	 * @return this threshold
+	 * @throws IllegalArgumentException thrown when the threshold has a unit
+	 */
+	public Threshold withoutUnit() {
+		if (unit != null) {
+			throw new IllegalArgumentException(String.format("Invalid threshold [%s], the check has no units", spec));
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the bound to report as perfdata warning or critical value, which is only a number for thresholds that
+	 * alert above a value
+	 *
+	 * @return upper bound, or null for ranges with a lower bound and <code>@</code> ranges
+	 */
+	public Double getUpperBound() {
+		double bound = upperBound();
+		return Double.isNaN(bound) ? null : Double.valueOf(bound);
+	}
+
+	/**
+	 * Returns the upper bound of {@link #getUpperBound()} without boxing it
+	 *
+	 * @return upper bound, or NaN for ranges with a lower bound and <code>@</code> ranges
+	 */
+	double upperBound() {
+		if (inside || start > 0 || Double.isInfinite(end)) {
+			return Double.NaN;
+		}
+		return end;
+	}
+
+	/**
+	 * Appends <code>value&gt;threshold</code>, <code>value&lt;threshold</code> or <code>value in range</code> for an
+	 * alerting value, with the unit of the threshold
+	 *
+	 * @param out buffer
+	 * @param value alerting reading
+	 * @return the buffer
+	 */
+	StringBuilder appendViolation(StringBuilder out, double value) {
+		return appendViolation(out, value, 2);
+	}
+
+	/**
+	 * Appends the violation of an alerting value with the given fraction digits, 0 for counts
+	 *
+	 * @param out buffer
+	 * @param value alerting reading
+	 * @param decimals fraction digits of the value
+	 * @return the buffer
+	 */
+	StringBuilder appendViolation(StringBuilder out, double value, int decimals) {
+		String suffix = unit == null ? "" : unit.suffix;
+		FixedPoint.append(out, value, decimals).append(suffix);
+		if (inside) {
+			out.append(" in ").append(startText).append(':').append(endText);
+		} else if (value < start) {
+			out.append('<').append(startText);
+		} else {
+			out.append('>').append(endText);
+		}
+		return out.append(suffix);
+	}
+
+	@Override
+	public String toString() {
+		return spec;
+	}
+}
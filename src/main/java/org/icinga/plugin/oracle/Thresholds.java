@@ -0,0 +1,216 @@
+package org.icinga.plugin.oracle;
+
+import static org.icinga.plugin.oracle.NagiosStatus.CRITICAL;
+import static org.icinga.plugin.oracle.NagiosStatus.OK;
+import static org.icinga.plugin.oracle.NagiosStatus.WARNING;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Warning and critical thresholds of the tablespace checks, with overrides for single tablespaces, compiled once so
+ * that a check of all tablespaces evaluates every tablespace against its own thresholds in one pass.
+ * <p>
+ * Overrides are given as <code>NAME=WARNING/CRITICAL</code> separated by commas, e.g.
+ * <code>UNDOTBS1=98/99,ARCH_*=~:900000MB/~:950000MB</code>. Names are normalized like tablespace names, may contain
+ * the wildcards <code>*</code> and <code>?</code>, and exact names take precedence over patterns, which are tried in
+ * the given order. Tablespaces without an override get the thresholds of <code>-W</code> and <code>-C</code>.
+ * <p>
+ * The daemon checks the same thresholds over and over, so compiled thresholds are kept by their specification.
+ *
+ * @author David Webb
+ */
+public final class Thresholds {
+
+	/**
+	 * Compiled thresholds kept, the daemon rarely sees more than a handful of distinct specifications
+	 */
+	private static final int MAX_COMPILED = 256;
+
+	private static final ConcurrentMap<String, Thresholds> COMPILED = new ConcurrentHashMap<String, Thresholds>();
+
+	/**
+	 * Warning and critical threshold of a tablespace
+	 */
+	public static final class Levels {
+
+		private final Threshold warning;
+		private final Threshold critical;
+
+		Levels(Threshold warning, Threshold critical) {
+			this.warning = warning;
+			this.critical = critical;
+		}
+
+		public Threshold getWarning() {
+			return warning;
+		}
+
+		public Threshold getCritical() {
+			return critical;
+		}
+
+		/**
+		 * Evaluates a tablespace reading, comparing thresholds in MB with the used MB and all others with the used
+		 * percentage
+		 *
+		 * @param usedPct used space in percent
+		 * @param usedMb used space in MB
+		 * @return status
+		 */
+		public NagiosStatus statusOf(double usedPct, double usedMb) {
+			if (critical.alerts(valueOf(critical, usedPct, usedMb))) {
+				return CRITICAL;
+			}
+			return warning.alerts(valueOf(warning, usedPct, usedMb)) ? WARNING : OK;
+		}
+
+		/**
+		 * Evaluates a count
+		 *
+		 * @param value reading
+		 * @return status
+		 */
+		public NagiosStatus statusOf(double value) {
+			return statusOf(value, value);
+		}
+
+		/**
+		 * Returns the threshold that caused a status
+		 *
+		 * @param status status other than OK
+		 * @return critical threshold for CRITICAL, warning threshold otherwise
+		 */
+		public Threshold thresholdOf(NagiosStatus status) {
+			return status == CRITICAL ? critical : warning;
+		}
+
+		static double valueOf(Threshold threshold, double usedPct, double usedMb) {
+			return threshold.getUnit() == Threshold.Unit.MB ? usedMb : usedPct;
+		}
+	}
+
+	private final Levels defaults;
+	private final Map<String, Levels> names;
+	private final List<Pattern> patterns;
+	private final List<Levels> patternLevels;
+
+	private Thresholds(Levels defaults, Map<String, Levels> names, List<Pattern> patterns, List<Levels> patternLevels) {
+		this.defaults = defaults;
+		this.names = names;
+		this.patterns = patterns;
+		this.patternLevels = patternLevels;
+	}
+
+	/**
+	 * Compiles thresholds without overrides
+	 *
+	 * @param warning warning threshold
+	 * @param critical critical threshold
+	 * @return compiled thresholds
+	 * @throws IllegalArgumentException thrown when a threshold is invalid
+	 */
+	public static Thresholds parse(String warning, String critical) {
+		return parse(warning, critical, null);
+	}
+
+	/**
+	 * Compiles thresholds with overrides of single tablespaces
+	 *
+	 * @param warning default warning threshold
+	 * @param critical default critical threshold
+	 * @param overrides <code>NAME=WARNING/CRITICAL,...</code>, may be null
+	 * @return compiled thresholds
+	 * @throws IllegalArgumentException thrown when a threshold or an override is invalid
+	 */
+	public static Thresholds parse(String warning, String critical, String overrides) {
+		String key = warning + "\n" + critical + "\n" + overrides;
+		Thresholds thresholds = COMPILED.get(key);
+		if (thresholds == null) {
+			thresholds = compile(warning, critical, overrides);
+			if (COMPILED.size() >= MAX_COMPILED) {
+				COMPILED.clear();
+			}
+			COMPILED.put(key, thresholds);
+		}
+		return thresholds;
+	}
+
+	private static Thresholds compile(String warning, String critical, String overrides) {
+		Levels defaults = new Levels(Threshold.parse(warning), Threshold.parse(critical));
+		Map<String, Levels> names = new HashMap<String, Levels>();
+		List<Pattern> patterns = new ArrayList<Pattern>();
+		List<Levels> patternLevels = new ArrayList<Levels>();
+		if (overrides != null && !overrides.trim().isEmpty()) {
+			for (String spec : overrides.split(",")) {
+				int equals = spec.lastIndexOf('=');
+				String[] levels = equals > 0 ? spec.substring(equals + 1).split("/") : new String[0];
+				if (levels.length != 2) {
+					throw new IllegalArgumentException(String.format(
+							"Invalid tablespace threshold [%s], expected name=warning/critical", spec));
+				}
+				String name = TablespaceStrategy.normalizeTablespaceName(spec.substring(0, equals));
+				Levels override = new Levels(Threshold.parse(levels[0]), Threshold.parse(levels[1]));
+				if (name.indexOf('*') < 0 && name.indexOf('?') < 0) {
+					if (!names.containsKey(name)) {
+						names.put(name, override);
+					}
+				} else {
+					patterns.add(glob(name));
+					patternLevels.add(override);
+				}
+			}
+		}
+		return new Thresholds(defaults, names, patterns, patternLevels);
+	}
+
+	private static Pattern glob(String name) {
+		StringBuilder regex = new StringBuilder();
+		int literal = 0;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c == '*' || c == '?') {
+				if (i > literal) {
+					regex.append(Pattern.quote(name.substring(literal, i)));
+				}
+				regex.append(c == '*' ? ".*" : ".");
+				literal = i + 1;
+			}
+		}
+		if (literal < name.length()) {
+			regex.append(Pattern.quote(name.substring(literal)));
+		}
+		return Pattern.compile(regex.toString(), Pattern.DOTALL);
+	}
+
+	/**
+	 * Returns the thresholds of a tablespace
+	 *
+	 * @param tablespaceName tablespace name as stored in the dictionary
+	 * @return thresholds of the first matching override, or the defaults
+	 */
+	public Levels levelsOf(String tablespaceName) {
+		if (names.isEmpty() && patterns.isEmpty()) {
+			return defaults;
+		}
+		Levels levels = names.get(tablespaceName);
+		if (levels != null) {
+			return levels;
+		}
+		for (int i = 0; i < patterns.size(); i++) {
+			if (patterns.get(i).matcher(tablespaceName).matches()) {
+				return patternLevels.get(i);
+			}
+		}
+		return defaults;
+	}
+
+	public Levels getDefaults() {
+		return defaults;
+	}
+}